@@ -3,7 +3,7 @@ package irvine.crypto;
 import java.io.IOException;
 
 import irvine.entropy.Entropy;
-import irvine.entropy.FourGramAlphabetModel;
+import irvine.entropy.ModelRegistry;
 import irvine.util.IOUtils;
 import irvine.util.LimitedLengthPriorityQueue;
 
@@ -16,22 +16,18 @@ import irvine.util.LimitedLengthPriorityQueue;
  */
 public class Autospace {
 
-  private static final Autospace DEFAULT;
-  static {
-    try {
-      DEFAULT = new Autospace(FourGramAlphabetModel.loadModel());
-    } catch (final IOException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
   /**
-   * Convenience method to automatically insert spaces into a text string.
+   * Convenience method to automatically insert spaces into a text string
+   * using the default model.
    * @param text string to put spaces in
    * @return string with spaces in
    */
   public static String autospace(final String text) {
-    return DEFAULT.autospace(text, 1, 100).first().getValue();
+    try {
+      return new Autospace(ModelRegistry.getDefault()).autospace(text, 1, 100).first().getValue();
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   private final Entropy mModel;
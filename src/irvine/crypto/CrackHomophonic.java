@@ -8,7 +8,8 @@ import java.util.Random;
 import java.util.TreeSet;
 
 import irvine.entropy.Entropy;
-import irvine.entropy.FourGramAlphabetModel;
+import irvine.entropy.ModelRegistry;
+import irvine.entropy.PositionalCosts;
 import irvine.util.CliFlags;
 import irvine.util.DoubleUtils;
 import irvine.util.IntegerUtils;
@@ -69,14 +70,17 @@ public class CrackHomophonic {
     }
   }
 
-  static char[] decrypt(final char[] map, final int[] cipher) {
-    final char[] decrypt = new char[cipher.length];
+  static char[] decrypt(final char[] map, final int[] cipher, final char[] decrypt) {
     for (int k = 0; k < cipher.length; ++k) {
       decrypt[k] = map[cipher[k]];
     }
     return decrypt;
   }
 
+  static char[] decrypt(final char[] map, final int[] cipher) {
+    return decrypt(map, cipher, new char[cipher.length]);
+  }
+
   private final Entropy mModel;
   private final String mDistribution;
   private final int mRetain;
@@ -84,6 +88,10 @@ public class CrackHomophonic {
   // repetitively requesting the last entropy of the set.
   private double mLastEntropy = Double.POSITIVE_INFINITY;
   private final Random mRandom = new Random();
+  // Reusable buffer for decryptions being scored
+  private char[] mDecrypt = new char[0];
+  // Reusable buffer for positions changed by a move
+  private int[] mChanged = new int[0];
 
   CrackHomophonic(final Entropy model, final String distribution, final int retain) {
     mModel = model;
@@ -140,9 +148,60 @@ public class CrackHomophonic {
     }
   }
 
-  private TreeSet<Key> percolateExchange(final TreeSet<Key> current, final int[] cipher, final int j) {
+  private double score(final char[] map, final int[] cipher, final double cutoff) {
+    if (mDecrypt.length != cipher.length) {
+      mDecrypt = new char[cipher.length];
+    }
+    return mModel.entropy(decrypt(map, cipher, mDecrypt), 0, cipher.length, cutoff);
+  }
+
+  // Positions in the cipher of each cipher symbol
+  static int[][] positions(final int[] cipher) {
+    final int[] counts = new int[100];
+    for (final int c : cipher) {
+      ++counts[c];
+    }
+    final int[][] positions = new int[100][];
+    for (int k = 0; k < positions.length; ++k) {
+      positions[k] = new int[counts[k]];
+      counts[k] = 0;
+    }
+    for (int k = 0; k < cipher.length; ++k) {
+      positions[cipher[k]][counts[cipher[k]]++] = k;
+    }
+    return positions;
+  }
+
+  // Score the decryption under map, given the costs of its decryption under a
+  // nearby map.  Only the positions of symbols mapped differently are rescored.
+  private double score(final PositionalCosts costs, final char[] base, final char[] map, final int[] cipher, final int[][] positions) {
+    if (mChanged.length != costs.length()) {
+      mChanged = new int[costs.length()];
+    }
+    final char[] text = costs.getText();
+    int changed = 0;
+    for (int s = 0; s < map.length; ++s) {
+      if (map[s] != base[s]) {
+        for (final int p : positions[s]) {
+          text[p] = map[s];
+          mChanged[changed++] = p;
+        }
+      }
+    }
+    final double e = costs.rescore(mChanged, changed);
+    for (int k = 0; k < changed; ++k) {
+      final int p = mChanged[k];
+      text[p] = base[cipher[p]];
+    }
+    return e;
+  }
+
+  private TreeSet<Key> percolateExchange(final TreeSet<Key> current, final int[] cipher, final int[][] positions, final int j) {
     final TreeSet<Key> res = new TreeSet<>();
     for (final Key key : current) {
+      // Each candidate differs from the key in a few symbols, so is scored by
+      // rescoring only the positions of those symbols in the key's decryption
+      final PositionalCosts costs = new PositionalCosts(mModel, decrypt(key.mMap, cipher));
       // replace each occurrence of c in cipher for each character of alphabet in turn.
       // already known to occur at least once
       final int cnt = key.mSurvivorCount++ / 100; // scales number of random swaps to do
@@ -154,9 +213,7 @@ public class CrackHomophonic {
           m[j] = key.mMap[k];
           m[k] = key.mMap[j];
           swapRandomPairs(m, cnt);
-          final char[] d = decrypt(m, cipher);
-          final double e = mModel.entropy(new String(d));
-          update(res, new Key(e, m, 0));
+          update(res, new Key(score(costs, key.mMap, m, cipher, positions), m, 0));
         }
       }
     }
@@ -167,21 +224,18 @@ public class CrackHomophonic {
     for (int k = 0; k < mRetain; ++k) {
       final char[] map = mDistribution.toCharArray();
       Shuffle.shuffle(map, mRandom);
-      final char[] dec = new char[cipher.length];
-      for (int j = 0; j < dec.length; ++j) {
-        dec[j] = map[cipher[j]];
-      }
-      res.add(new Key(mModel.entropy(new String(dec)), map, 0));
+      res.add(new Key(score(map, cipher, Double.POSITIVE_INFINITY), map, 0));
     }
   }
 
   void solveByExchange(final int[] cipher, final int cycles) {
     TreeSet<Key> res = new TreeSet<>();
     randomDistributionInit(res, cipher);
+    final int[][] positions = positions(cipher);
     for (int cycle = 0; cycle < cycles; ++cycle) { // todo parameter
       for (int c = 0; c < 100; ++c) {
         System.out.println("Doing " + c + " cycle=" + cycle);
-        res = percolateExchange(res, cipher, c);
+        res = percolateExchange(res, cipher, positions, c);
         printBestSolutions(res, 5, cipher); // todo parameter
       }
     }
@@ -216,12 +270,7 @@ public class CrackHomophonic {
     flags.setValidator(new HomophonicFlagsValidator());
     flags.setFlags(args);
 
-    final Entropy model;
-    if (flags.isSet(MODEL_FLAG)) {
-      model = FourGramAlphabetModel.loadModel((String) flags.getValue(MODEL_FLAG));
-    } else {
-      model = FourGramAlphabetModel.loadModel();
-    }
+    final Entropy model = flags.isSet(MODEL_FLAG) ? ModelRegistry.get((String) flags.getValue(MODEL_FLAG)) : ModelRegistry.getDefault();
     final CrackHomophonic homophonic = new CrackHomophonic(model, (String) flags.getValue(DISTRIBUTION_FLAG), (Integer) flags.getValue(RETAIN_FLAG));
     if (flags.isSet(SEED_FLAG)) {
       homophonic.setSeed((Long) flags.getValue(SEED_FLAG));
@@ -29,25 +29,31 @@ public class Furcate {
    */
   public LimitedLengthPriorityQueue<String> furcate(final String message, final int maxResults) {
     final LimitedLengthPriorityQueue<String> q = new LimitedLengthPriorityQueue<>(maxResults, false);
-    for (int k = 2; k <= message.length() / 2; ++k) {
-      if (message.length() % k == 0) {
-        final StringBuilder[] components = new StringBuilder[k];
-        for (int j = 0; j < k; ++j) {
-          components[j] = new StringBuilder();
-        }
-        for (int j = 0; j < message.length(); j += k) {
-          for (int i = 0; i < k; ++i) {
-            components[i].append(message.charAt(j + i));
+    // Every candidate is a rearrangement of the whole message, so they are scored as a batch
+    final int len = message.length();
+    int n = 0;
+    for (int k = 2; k <= len / 2; ++k) {
+      if (len % k == 0) {
+        ++n;
+      }
+    }
+    final char[] batch = new char[n * len];
+    n = 0;
+    for (int k = 2; k <= len / 2; ++k) {
+      if (len % k == 0) {
+        int off = n++ * len;
+        for (int i = 0; i < k; ++i) {
+          for (int j = i; j < len; j += k) {
+            batch[off++] = message.charAt(j);
           }
         }
-        final StringBuilder sb = new StringBuilder();
-        for (final StringBuilder h : components) {
-          sb.append(h);
-        }
-        final String s = sb.toString();
-        q.add(mModel.entropy(s), s);
       }
     }
+    final double[] scores = new double[n];
+    mModel.entropies(batch, len, n, scores);
+    for (int k = 0; k < n; ++k) {
+      q.add(scores[k], new String(batch, k * len, len));
+    }
     final Autospace spacer = new Autospace(mModel);
     final LimitedLengthPriorityQueue<String> answer = new LimitedLengthPriorityQueue<>(maxResults, false);
     for (final LimitedLengthPriorityQueue.Node<String> res : q) {
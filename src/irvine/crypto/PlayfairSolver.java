@@ -37,6 +37,11 @@ public class PlayfairSolver {
 
   // The ciphertext broken into pairs
   private char[][] mCipherPairs = null;
+  // Reusable buffer for the decryption under the current key
+  private char[] mDecode = null;
+  // Reusable buffer for the decryptions under every pair swap of a key, and their scores
+  private char[] mBatch = null;
+  private double[] mBatchScores = null;
   // The largest entropy in the set under construction.  Maintained separately to avoid
   // repetitively requesting the last entropy of the set.
   private double mLastEntropy = Double.POSITIVE_INFINITY;
@@ -81,28 +86,26 @@ public class PlayfairSolver {
       return -1;
     }
 
-    private char[] decode(final int posA, final int posB) {
+    private void decode(final int posA, final int posB, final char[] res, final int off) {
       assert posA != posB;
       final int xa = mPosToCoords[posA][0];
       final int ya = mPosToCoords[posA][1];
       final int xb = mPosToCoords[posB][0];
       final int yb = mPosToCoords[posB][1];
-      final char[] res = new char[2];
       if (ya == yb) {
         // same row
         final int d = mGridWidth * ya;
-        res[0] = mPermutation[d + mPrevCoordX[xa]];
-        res[1] = mPermutation[d + mPrevCoordX[xb]];
+        res[off] = mPermutation[d + mPrevCoordX[xa]];
+        res[off + 1] = mPermutation[d + mPrevCoordX[xb]];
       } else if (xa == xb) {
         // same column
-        res[0] = mPermutation[xa + mPrevCoordY[ya]];
-        res[1] = mPermutation[xb + mPrevCoordY[yb]];
+        res[off] = mPermutation[xa + mPrevCoordY[ya]];
+        res[off + 1] = mPermutation[xb + mPrevCoordY[yb]];
       } else {
         // rectangle
-        res[0] = mPermutation[xb + mGridWidth * ya];
-        res[1] = mPermutation[xa + mGridWidth * yb];
+        res[off] = mPermutation[xb + mGridWidth * ya];
+        res[off + 1] = mPermutation[xa + mGridWidth * yb];
       }
-      return res;
     }
 
     @Override
@@ -232,14 +235,24 @@ public class PlayfairSolver {
     return res;
   }
 
-  String decode(final Key key) {
-    final StringBuilder out = new StringBuilder();
-    for (final char[] pair : mCipherPairs) {
+  // Decode into the given buffer
+  private void decodeToBuffer(final Key key, final char[] buf, final int off) {
+    for (int k = 0; k < mCipherPairs.length; ++k) {
+      final char[] pair = mCipherPairs[k];
       final int posA = key.getPosition(pair[0]);
       final int posB = key.getPosition(pair[1]);
-      out.append(key.decode(posA, posB));
+      key.decode(posA, posB, buf, off + 2 * k);
     }
-    return out.toString();
+  }
+
+  // Decode into the reusable decode buffer
+  private char[] decodeToBuffer(final Key key) {
+    decodeToBuffer(key, mDecode, 0);
+    return mDecode;
+  }
+
+  String decode(final Key key) {
+    return new String(decodeToBuffer(key));
   }
 
   private String printForm(final String s) {
@@ -276,7 +289,7 @@ public class PlayfairSolver {
         final Key newKey = new Key();
         System.arraycopy(key.mPermutation, 0, newKey.mPermutation, 0, mAlphabet.length);
         swapRows(newKey.mPermutation, row0, row1);
-        newKey.mEntropy = score(decode(newKey));
+        newKey.mEntropy = score(newKey);
         newKey.mSurivivalCount = 0;
         update(next, newKey);
       }
@@ -288,7 +301,7 @@ public class PlayfairSolver {
       for (int col1 = col0 + 1; col1 < mGridWidth; ++col1) {
         final Key newKey = key.copy();
         swapCols(newKey.mPermutation, col0, col1);
-        newKey.mEntropy = score(decode(newKey));
+        newKey.mEntropy = score(newKey);
         newKey.mSurivivalCount = 0;
         update(next, newKey);
       }
@@ -297,27 +310,31 @@ public class PlayfairSolver {
 
   private void doReverse(final TreeSet<Key> next, final Key key) {
     final Key newKey = new Key(reverse(key.mPermutation));
-    newKey.mEntropy = score(decode(newKey));
+    newKey.mEntropy = score(newKey);
     newKey.mSurivivalCount = 0;
     update(next, newKey);
   }
 
   private void doReflectVertical(final TreeSet<Key> next, final Key key) {
     final Key newKey = new Key(reflectVertical(key.mPermutation, mGridWidth, mGridHeight));
-    newKey.mEntropy = score(decode(newKey));
+    newKey.mEntropy = score(newKey);
     newKey.mSurivivalCount = 0;
     update(next, newKey);
   }
 
   private void doReflectHorizontal(final TreeSet<Key> next, final Key key) {
     final Key newKey = new Key(reflectHorizontal(key.mPermutation, mGridWidth, mGridHeight));
-    newKey.mEntropy = score(decode(newKey));
+    newKey.mEntropy = score(newKey);
     newKey.mSurivivalCount = 0;
     update(next, newKey);
   }
 
   void percolate(final String ciphertext, final int iterations, final String dictionary) {
     mCipherPairs = initCipherPairs(ciphertext);
+    mDecode = new char[2 * mCipherPairs.length];
+    final int swaps = mAlphabet.length * (mAlphabet.length - 1) / 2;
+    mBatch = new char[swaps * mDecode.length];
+    mBatchScores = new double[swaps];
     TreeSet<Key> currentKeys = initial(dictionary);
     printBestSolutions(currentKeys, 5);
     for (int i = 1; i <= iterations; ++i) {
@@ -349,7 +366,7 @@ public class PlayfairSolver {
                 newKey.mPermutation[q] = newKey.mPermutation[r];
                 newKey.mPermutation[r] = t;
               }
-              newKey.mEntropy = score(decode(newKey));
+              newKey.mEntropy = score(newKey);
               newKey.mSurivivalCount = 0;
               update(next, newKey);
             }
@@ -369,29 +386,41 @@ public class PlayfairSolver {
     // Performs a swap of each possible pair of values in the permutation, evaluating
     // the decrypt of each new permutation with respect to the model.
 
-    // For speed we temporarily modify the existing key and only make a copy if we
-    // discover this is a solution we want to keep.  In this way we avoid excessive
-    // object churn, but need to be very careful to reset the state on the original.
-    // In particular, we must be very careful to reset the original key state before
-    // updating a tree set that might already contain that key.
+    // For speed we temporarily modify the existing key to decode each swap into
+    // a batch, resetting the key after each swap.  The whole batch is scored at
+    // once, and a copy of the key is only made for swaps we want to keep.  In this
+    // way we avoid excessive object churn.  The last entropy never increases while
+    // the batch is processed, so its value before scoring is a safe cutoff.
+    final int len = mDecode.length;
+    if (len == 0) {
+      return;
+    }
+    int n = 0;
     for (int a = 0; a < mAlphabet.length; ++a) {
       final char ca = key.mPermutation[a];
       for (int b = a + 1; b < mAlphabet.length; ++b) {
         final char cb = key.mPermutation[b];
         key.mPermutation[a] = cb;
         key.mPermutation[b] = ca;
-        final double score = score(decode(key));
+        decodeToBuffer(key, mBatch, n++ * len);
         key.mPermutation[b] = cb; // reset to original value
+      }
+      key.mPermutation[a] = ca; // reset to original value
+    }
+    mModel.entropies(mBatch, len, n, mBatchScores, mLastEntropy);
+    n = 0;
+    for (int a = 0; a < mAlphabet.length; ++a) {
+      for (int b = a + 1; b < mAlphabet.length; ++b) {
+        final double score = mBatchScores[n++];
         if (score < mLastEntropy) {
           // This looks like something we want to retain, duplicate the key
           final Key newKey = key.copy();
-          newKey.mPermutation[b] = ca;
+          newKey.mPermutation[a] = key.mPermutation[b];
+          newKey.mPermutation[b] = key.mPermutation[a];
           newKey.mEntropy = score;
-          key.mPermutation[a] = ca; // reset to original value
           update(next, newKey);
         }
       }
-      key.mPermutation[a] = ca; // reset to original value
     }
   }
 
@@ -430,11 +459,12 @@ public class PlayfairSolver {
     return sb.toString();
   }
 
-  private double score(final String text) {
-    if (text.isEmpty()) {
+  private double score(final Key key) {
+    if (mDecode.length == 0) {
       return Double.POSITIVE_INFINITY;
     }
-    return mModel.entropy(text);
+    // Anything scoring worse than the current last entropy would be rejected anyway
+    return mModel.entropy(decodeToBuffer(key), 0, mDecode.length, mLastEntropy);
   }
 
   private Key buildKey(final String phrase) {
@@ -463,14 +493,15 @@ public class PlayfairSolver {
   }
 
   private TreeSet<Key> initial(final String dictionary) {
+    mLastEntropy = Double.POSITIVE_INFINITY;
     final Key defaultKey = getKey(); // Default A-Z style key
-    defaultKey.mEntropy = score(decode(defaultKey));
+    defaultKey.mEntropy = score(defaultKey);
     final TreeSet<Key> res = new TreeSet<>();
     res.add(defaultKey);
 
     for (int j = 0; j < mMaximumHypothesesCount; ++j) {
       final Key key = getRandomKey();
-      key.mEntropy = score(decode(key));
+      key.mEntropy = score(key);
       update(res, key);
     }
 
@@ -483,7 +514,7 @@ public class PlayfairSolver {
             // Strictly speaking the following uppercase should be depend on alphabet, but
             // all our current alphabets are uppercase anyway
             final Key key = buildKey(keyPhrase.toUpperCase(Locale.getDefault()));
-            key.mEntropy = score(decode(key));
+            key.mEntropy = score(key);
             update(res, key);
           }
         }
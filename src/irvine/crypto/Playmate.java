@@ -6,7 +6,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 
 import irvine.entropy.Entropy;
-import irvine.entropy.FourGramAlphabetModel;
+import irvine.entropy.ModelRegistry;
 import irvine.jilt.Command;
 import irvine.jilt.CommonFlags;
 import irvine.util.CliFlags;
@@ -94,31 +94,27 @@ public class Playmate extends Command {
     final char[] alphabet;
     final int width;
     final int height;
-    final String modelRes;
+    final String modelName;
     if (flags.isSet(SIX_FLAG)) {
       alphabet = SIX_ALPHABET;
       width = 6;
       height = 6;
-      modelRes = "irvine/resources/playfair6.model";
+      modelName = ModelRegistry.PLAYFAIR_6;
     } else if (flags.isSet(SEVEN_BY_FOUR_FLAG)) {
       alphabet = SEVEN_BY_FOUR_ALPHABET;
       width = 4;
       height = 7;
-      modelRes = "irvine/resources/playfair7x4.model";
+      modelName = ModelRegistry.PLAYFAIR_7X4;
     } else {
       alphabet = FIVE_ALPHABET_NO_J;
       width = 5;
       height = 5;
-      modelRes = "irvine/resources/playfair5.model";
+      modelName = ModelRegistry.PLAYFAIR_5;
     }
 
     final Entropy model;
     try {
-      if (flags.isSet(CommonFlags.MODEL_FLAG)) {
-        model = FourGramAlphabetModel.loadModel((String) flags.getValue(CommonFlags.MODEL_FLAG));
-      } else {
-        model = FourGramAlphabetModel.loadModelResource(modelRes);
-      }
+      model = CommonFlags.decorateModel(flags, ModelRegistry.get(flags.isSet(CommonFlags.MODEL_FLAG) ? (String) flags.getValue(CommonFlags.MODEL_FLAG) : modelName));
     } catch (final IOException e) {
       throw new RuntimeException("Could to load entropy model.", e);
     }
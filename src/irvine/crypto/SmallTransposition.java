@@ -3,7 +3,7 @@ package irvine.crypto;
 import java.io.File;
 
 import irvine.entropy.Entropy;
-import irvine.entropy.FourGramAlphabetModel;
+import irvine.entropy.ModelRegistry;
 import irvine.util.CliFlags;
 import irvine.util.CliFlags.Flag;
 import irvine.util.IOUtils;
@@ -18,6 +18,8 @@ import irvine.util.Permutation;
  */
 public class SmallTransposition {
 
+  private static final int BATCH_SIZE = 256;
+
   /** Underlying language model. */
   private final Entropy mModel;
 
@@ -47,20 +49,37 @@ public class SmallTransposition {
     }
     final LimitedLengthPriorityQueue<String> q = new LimitedLengthPriorityQueue<>(maxResults, false);
     final Permutation permuter = new Permutation(size);
+    // Candidates are all the same length, so are scored in batches
+    final int len = message.length();
+    final char[] batch = new char[BATCH_SIZE * len];
+    final double[] scores = new double[BATCH_SIZE];
+    int n = 0;
     int[] p;
     while ((p = permuter.next()) != null) {
-      final StringBuilder plaintext = new StringBuilder();
-      for (int k = 0; k < message.length(); k += size) {
+      int off = n * len;
+      for (int k = 0; k < len; k += size) {
         for (int j = 0; j < size; ++j) {
-          plaintext.append(message.charAt(k + p[j]));
+          batch[off++] = message.charAt(k + p[j]);
         }
       }
-      final String plain = plaintext.toString();
-      q.add(mModel.entropy(plain), plain);
+      if (++n == BATCH_SIZE) {
+        add(q, batch, len, n, scores);
+        n = 0;
+      }
     }
+    add(q, batch, len, n, scores);
     return q;
   }
 
+  private void add(final LimitedLengthPriorityQueue<String> q, final char[] batch, final int len, final int count, final double[] scores) {
+    // Once the queue is full only texts scoring at most its worst entry can enter it
+    final double cutoff = q.size() < q.maxSize() ? Double.POSITIVE_INFINITY : q.last().getScore();
+    mModel.entropies(batch, len, count, scores, cutoff);
+    for (int k = 0; k < count; ++k) {
+      q.add(scores[k], new String(batch, k * len, len));
+    }
+  }
+
   /**
    * Solve a simple transposition.
    * @param model language model
@@ -113,12 +132,7 @@ public class SmallTransposition {
 
     flags.setFlags(args);
 
-    final Entropy model;
-    if (modelFlag.isSet()) {
-      model = FourGramAlphabetModel.loadModel((String) modelFlag.getValue());
-     } else {
-      model = FourGramAlphabetModel.loadModel();
-    }
+    final Entropy model = modelFlag.isSet() ? ModelRegistry.get((String) modelFlag.getValue()) : ModelRegistry.getDefault();
 
     final String cipertext = IOUtils.readAll(textFlag.getValue()).trim().replace(" ", "");
     final int maxOrder = (Integer) orderFlag.getValue();
@@ -3,6 +3,8 @@ package irvine.crypto;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import irvine.entropy.Entropy;
 import irvine.jilt.Command;
@@ -41,31 +43,44 @@ public final class Telephone extends Command {
   public static LimitedLengthPriorityQueue<String> telephoneCode(final Entropy m, final int maxResults, final String text) {
     LimitedLengthPriorityQueue<String> best = new LimitedLengthPriorityQueue<>(maxResults, false);
     best.add(0.0, "");
+    // Scoring cursor for each retained hypothesis, so that each step only scores the new character
+    Map<String, Entropy.Cursor> cursors = new HashMap<>();
+    cursors.put("", m.cursor());
     final boolean hasSpaces = text.contains(" ");
     for (int k = 0; k < text.length(); ++k) {
       final char c = text.charAt(k);
       final LimitedLengthPriorityQueue<String> next = new LimitedLengthPriorityQueue<>(maxResults, false);
+      final Map<String, Entropy.Cursor> nextCursors = new HashMap<>();
       for (final LimitedLengthPriorityQueue.Node<String> n : best) {
+        final Entropy.Cursor cursor = cursors.get(n.getValue());
         if (c >= '2' && c <= '9') {
           final String p = TELEPHONE[c - '2'];
           for (int j = 0; j < p.length(); ++j) {
-            final String tt = n.getValue() + p.charAt(j);
-            next.add(m.entropy(tt), tt);
+            final Entropy.Cursor tc = extend(next, nextCursors, n.getValue(), cursor, p.charAt(j));
             if (!hasSpaces) {
-              final String ss = tt + " ";
-              next.add(m.entropy(ss), ss);
+              extend(next, nextCursors, n.getValue() + p.charAt(j), tc, ' ');
             }
           }
         } else {
-          final String tt = n.getValue() + c;
-          next.add(m.entropy(tt), tt);
+          extend(next, nextCursors, n.getValue(), cursor, c);
         }
       }
       best = next;
+      cursors = nextCursors;
     }
     return best;
   }
 
+  private static Entropy.Cursor extend(final LimitedLengthPriorityQueue<String> next, final Map<String, Entropy.Cursor> nextCursors, final String prefix, final Entropy.Cursor cursor, final char c) {
+    final Entropy.Cursor tc = cursor.copy();
+    tc.append(c);
+    final String tt = prefix + c;
+    if (next.add(tc.entropy(), tt)) {
+      nextCursors.put(tt, tc);
+    }
+    return tc;
+  }
+
   /**
    * Main program.
    * @param args see usage
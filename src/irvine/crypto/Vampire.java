@@ -1,11 +1,12 @@
 package irvine.crypto;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
 import irvine.entropy.Entropy;
-import irvine.entropy.UniwordModel;
+import irvine.entropy.ModelRegistry;
 import irvine.jilt.Command;
 import irvine.jilt.CommonFlags;
 import irvine.util.CliFlags;
@@ -27,6 +28,7 @@ public class Vampire extends Command {
   private static final String SPACE_FLAG = "ignore-spaces";
   private static final String RETAIN_FLAG = "retain";
   private static final String RESULTS_FLAG = "results";
+  private static final String POLISH_FLAG = "polish";
 
   /**
    * Construct a simple substitution solver.
@@ -48,6 +50,7 @@ public class Vampire extends Command {
     flags.registerOptional('q', QUIET_FLAG, "print only the answer");
     flags.registerOptional('p', PERMUTATION_FLAG, "print the permutation for the top solution");
     flags.registerOptional('s', SPACE_FLAG, "ignore whitespace in input");
+    flags.registerOptional(POLISH_FLAG, String.class, "FILE", "word gram model used to polish the final answers (default: unigram word model)");
     flags.setValidator(f -> {
       for (final Object pairs : flags.getValues(FIX_FLAG)) {
         if (((String) pairs).length() != 2) {
@@ -55,6 +58,10 @@ public class Vampire extends Command {
           return false;
         }
       }
+      if (flags.isSet(POLISH_FLAG) && !new File((String) flags.getValue(POLISH_FLAG)).canRead()) {
+        f.setParseMessage("Specified polishing model \"" + flags.getValue(POLISH_FLAG) + "\" is not readable.");
+        return false;
+      }
       return CommonFlags.validateOutput(f)
         && CommonFlags.validateInput(f)
         && CommonFlags.validateModel(f)
@@ -64,8 +71,14 @@ public class Vampire extends Command {
     flags.setFlags(args);
 
     final Entropy model = CommonFlags.getEntropyModel(flags);
+    final Entropy polish;
+    try {
+      polish = ModelRegistry.get(flags.isSet(POLISH_FLAG) ? (String) flags.getValue(POLISH_FLAG) : ModelRegistry.UNIWORD_ENGLISH);
+    } catch (final IOException e) {
+      throw new RuntimeException("Could not load polishing model.", e);
+    }
     try (final PrintStream out = CommonFlags.getOutput(flags)) {
-      final VampireSolver vampire = new VampireSolver(out, model, UniwordModel.defaultEnglishModel(), flags.isSet(PERMUTATION_FLAG));
+      final VampireSolver vampire = new VampireSolver(out, model, polish, flags.isSet(PERMUTATION_FLAG));
       vampire.setDitHandling(flags.isSet(DIT_FLAG));
       vampire.setVerbose(!flags.isSet(QUIET_FLAG));
       vampire.setMaximumHypothesisCount((Integer) flags.getValue(RETAIN_FLAG));
@@ -36,6 +36,8 @@ public class VampireSolver {
 
   /** The cryptogram itself. */
   private String mCrypt = null;
+  /** Reusable buffer holding the current decryption of the cryptogram. */
+  private char[] mDecode = null;
   /** The permutation. */
   private final char[] mPermute = new char[ALPHABET_SIZE];
   /** Order in which cryptogram characters are to be considered. */
@@ -152,6 +154,7 @@ public class VampireSolver {
    */
   public void setCryptogram(final BufferedReader reader, final boolean ignoreWhitespace) throws IOException {
     mCrypt = cleanCryptogram(reader, isDitHandling(), ignoreWhitespace);
+    mDecode = new char[mCrypt.length()];
     message("Cryptogram: " + mCrypt);
     message("Cryptogram score: " + mModel.entropy(mCrypt));
   }
@@ -208,12 +211,17 @@ public class VampireSolver {
     }
   }
 
-  private double queryModel(final Entropy model, final String s, final char[] permute) {
-    final StringBuilder sb = new StringBuilder();
+  // Entropy beyond which a hypothesis cannot be retained in the result set
+  private double cutoff(final TreeSet<Node> result) {
+    return result.size() < getMaximumHypothesisCount() ? Double.POSITIVE_INFINITY : result.last().getScore();
+  }
+
+  private double queryModel(final Entropy model, final String s, final char[] permute, final double cutoff) {
+    final char[] decode = mDecode;
     for (int k = 0; k < s.length(); ++k) {
-      sb.append(permute[s.charAt(k)]);
+      decode[k] = permute[s.charAt(k)];
     }
-    return model.entropy(sb.toString());
+    return model.entropy(decode, 0, s.length(), cutoff);
   }
 
   private TreeSet<Node> polish(final TreeSet<Node> nodes) {
@@ -223,7 +231,7 @@ public class VampireSolver {
     message("Polishing");
     final TreeSet<Node> t = new TreeSet<>();
     for (final Node n : nodes) {
-      t.add(new Node(n.getPermutation(), queryModel(mPolish, mCrypt, n.getPermutation())));
+      t.add(new Node(n.getPermutation(), queryModel(mPolish, mCrypt, n.getPermutation(), Double.POSITIVE_INFINITY)));
     }
     return t;
   }
@@ -240,7 +248,7 @@ public class VampireSolver {
       for (final char c : VALID) {
         if (used[c] == 0) {
           n.getPermutation()[next] = c;
-          final double score = queryModel(mModel, mCrypt, n.getPermutation());
+          final double score = queryModel(mModel, mCrypt, n.getPermutation(), cutoff(result));
           update(result, score, n.getPermutation());
         }
       }
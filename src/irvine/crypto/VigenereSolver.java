@@ -90,6 +90,19 @@ public class VigenereSolver {
     }
   }
 
+  // Entropy beyond which a key cannot be retained in the result set
+  private double cutoff(final TreeSet<Node> result) {
+    return result.size() < mRetain ? Double.POSITIVE_INFINITY : result.last().getScore();
+  }
+
+  private double score(final String key, final String cipher, final TreeSet<Node> result) {
+    final StringBuilder decrypt = decrypt(key, cipher, mReverse);
+    if (mIncludeKeyEntropy) {
+      decrypt.insert(0, key);
+    }
+    return mModel.entropy(decrypt, cutoff(result));
+  }
+
   /**
    * Solve a Vigenere cipher
    * @param cipher the cipher
@@ -105,9 +118,7 @@ public class VigenereSolver {
         for (char c = 'A'; c <= 'Z'; ++c) {
           final char[] copy = Arrays.copyOf(n.getPermutation(), n.getPermutation().length);
           copy[k] = c;
-          final String decrypt = decrypt(new String(copy), cipher, mReverse).toString();
-          final double e = mModel.entropy(mIncludeKeyEntropy ? new String(copy) + decrypt : decrypt);
-          update(next, e, copy);
+          update(next, score(new String(copy), cipher, next), copy);
         }
       }
       best = next;
@@ -132,9 +143,7 @@ public class VigenereSolver {
     String key;
     while ((key = r.readLine()) != null) {
       final String k = key.toUpperCase(Locale.getDefault());
-      final String decrypt = decrypt(k, cipher, mReverse).toString();
-      final double e = mModel.entropy(mIncludeKeyEntropy ? k + decrypt : decrypt);
-      update(best, e, k.toCharArray());
+      update(best, score(k, cipher, best), k.toCharArray());
     }
     printResults(cipher, best);
   }
@@ -0,0 +1,47 @@
+package irvine.entropy;
+
+import java.util.Arrays;
+
+/**
+ * Support for models scoring a batch of texts in lockstep.
+ * @author Sean A. Irvine
+ */
+final class Batch {
+
+  private Batch() { }
+
+  /** Number of positions between checks for abandoning a whole batch. */
+  static final int CHECK_INTERVAL = 32;
+
+  /**
+   * Test if every text of a batch already exceeds the cutoff, in which case
+   * all the scores are set to positive infinity.
+   * @param scores partial scores
+   * @param count number of texts
+   * @param cutoff largest entropy of interest
+   * @return true if the whole batch can be abandoned
+   */
+  static boolean abandon(final double[] scores, final int count, final double cutoff) {
+    for (int k = 0; k < count; ++k) {
+      if (scores[k] <= cutoff) {
+        return false;
+      }
+    }
+    Arrays.fill(scores, 0, count, Double.POSITIVE_INFINITY);
+    return true;
+  }
+
+  /**
+   * Replace any scores exceeding the cutoff with positive infinity.
+   * @param scores scores
+   * @param count number of texts
+   * @param cutoff largest entropy of interest
+   */
+  static void cutoff(final double[] scores, final int count, final double cutoff) {
+    for (int k = 0; k < count; ++k) {
+      if (scores[k] > cutoff) {
+        scores[k] = Double.POSITIVE_INFINITY;
+      }
+    }
+  }
+}
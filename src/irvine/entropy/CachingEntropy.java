@@ -0,0 +1,273 @@
+package irvine.entropy;
+
+import java.nio.CharBuffer;
+
+/**
+ * Remembers the entropies computed by an underlying model, so that texts
+ * which are scored repeatedly, as commonly happens in search, are only
+ * scored once.  Texts are identified by a 64-bit hash.  By default the
+ * text itself is also retained and compared, but optionally the hash can
+ * be trusted, saving memory and time at the risk of an occasional wrong
+ * answer if two texts collide.
+ *
+ * The number of remembered entries is bounded.  When the cache is full an
+ * entry is evicted using the CLOCK algorithm, which approximates least
+ * recently used eviction: each hit marks its entry as referenced, and the
+ * clock hand passes over (and clears) referenced entries, evicting the
+ * first unreferenced entry it finds.
+ *
+ * Scores computed with a cutoff are remembered only when they are known
+ * to be exact.  Cursors are not cached and are provided by the underlying
+ * model.  This class is thread-safe provided the underlying model is.
+ *
+ * @author Sean A. Irvine
+ */
+public final class CachingEntropy implements Entropy {
+
+  private final Entropy mModel;
+  private final boolean mVerify;
+  private final int mCapacity;
+  private final long[] mHashes;
+  private final double[] mScores;
+  private final String[] mTexts;
+  private final boolean[] mReferenced;
+  /** Open addressing index of entries, holding entry number plus 1, 0 for empty. */
+  private final int[] mIndex;
+  private final int mIndexMask;
+  private int mSize = 0;
+  private int mHand = 0;
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mEvictions = 0;
+
+  /**
+   * Construct a cache over the given model.
+   * @param model underlying model
+   * @param capacity maximum number of entries to remember
+   * @param trustHash if true, texts are identified by their hash alone
+   * @exception IllegalArgumentException if the capacity is not positive or too large.
+   */
+  public CachingEntropy(final Entropy model, final int capacity, final boolean trustHash) {
+    if (capacity < 1 || capacity > 1 << 29) {
+      throw new IllegalArgumentException("Bad cache capacity: " + capacity);
+    }
+    mModel = model;
+    mVerify = !trustHash;
+    mCapacity = capacity;
+    mHashes = new long[capacity];
+    mScores = new double[capacity];
+    mTexts = mVerify ? new String[capacity] : null;
+    mReferenced = new boolean[capacity];
+    mIndex = new int[Integer.highestOneBit(2 * capacity - 1) << 1];
+    mIndexMask = mIndex.length - 1;
+  }
+
+  /**
+   * Construct a cache over the given model which checks the text of
+   * each entry.
+   * @param model underlying model
+   * @param capacity maximum number of entries to remember
+   */
+  public CachingEntropy(final Entropy model, final int capacity) {
+    this(model, capacity, false);
+  }
+
+  /**
+   * Return the underlying model.
+   * @return the model
+   */
+  public Entropy getModel() {
+    return mModel;
+  }
+
+  static long hash(final CharSequence text) {
+    long h = 0xCBF29CE484222325L;
+    for (int k = 0; k < text.length(); ++k) {
+      h = (h ^ text.charAt(k)) * 0x100000001B3L;
+    }
+    // Final mixing so that all bits depend on every character
+    h ^= text.length();
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    return h ^ (h >>> 33);
+  }
+
+  private int slot(final long hash) {
+    return (int) (hash ^ (hash >>> 32)) & mIndexMask;
+  }
+
+  // Score of the given text, or NaN if it is not in the cache
+  private synchronized double lookup(final long hash, final CharSequence text) {
+    int i = slot(hash);
+    int e;
+    while ((e = mIndex[i]) != 0) {
+      final int entry = e - 1;
+      if (mHashes[entry] == hash && (!mVerify || mTexts[entry].contentEquals(text))) {
+        mReferenced[entry] = true;
+        ++mHits;
+        return mScores[entry];
+      }
+      i = (i + 1) & mIndexMask;
+    }
+    ++mMisses;
+    return Double.NaN;
+  }
+
+  // Remove an entry from the index, shifting back later entries of the same run
+  private void unindex(final int entry) {
+    int i = slot(mHashes[entry]);
+    while (mIndex[i] != entry + 1) {
+      i = (i + 1) & mIndexMask;
+    }
+    int j = i;
+    while (true) {
+      j = (j + 1) & mIndexMask;
+      if (mIndex[j] == 0) {
+        break;
+      }
+      final int k = slot(mHashes[mIndex[j] - 1]);
+      // Move the entry at j back to i unless its home slot lies cyclically in (i, j]
+      if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+        mIndex[i] = mIndex[j];
+        i = j;
+      }
+    }
+    mIndex[i] = 0;
+  }
+
+  private int evict() {
+    while (mReferenced[mHand]) {
+      mReferenced[mHand] = false;
+      mHand = (mHand + 1) % mCapacity;
+    }
+    final int entry = mHand;
+    mHand = (mHand + 1) % mCapacity;
+    unindex(entry);
+    if (mVerify) {
+      mTexts[entry] = null;
+    }
+    ++mEvictions;
+    return entry;
+  }
+
+  private synchronized void store(final long hash, final CharSequence text, final double score) {
+    // Another thread may have stored the same text in the meantime
+    int i = slot(hash);
+    int e;
+    while ((e = mIndex[i]) != 0) {
+      final int entry = e - 1;
+      if (mHashes[entry] == hash && (!mVerify || mTexts[entry].contentEquals(text))) {
+        return;
+      }
+      i = (i + 1) & mIndexMask;
+    }
+    final int entry = mSize < mCapacity ? mSize++ : evict();
+    mHashes[entry] = hash;
+    mScores[entry] = score;
+    mReferenced[entry] = false;
+    if (mVerify) {
+      mTexts[entry] = text.toString();
+    }
+    // Eviction may have changed the index, so search for a free slot afresh
+    i = slot(hash);
+    while (mIndex[i] != 0) {
+      i = (i + 1) & mIndexMask;
+    }
+    mIndex[i] = entry + 1;
+  }
+
+  private double score(final CharSequence text, final char[] buf, final int off, final double cutoff) {
+    final long hash = hash(text);
+    final double cached = lookup(hash, text);
+    if (!Double.isNaN(cached)) {
+      return cached > cutoff ? Double.POSITIVE_INFINITY : cached;
+    }
+    final double e = buf == null ? mModel.entropy(text, cutoff) : mModel.entropy(buf, off, text.length(), cutoff);
+    // An infinite result may be due to the cutoff rather than the text
+    if (e != Double.POSITIVE_INFINITY || cutoff == Double.POSITIVE_INFINITY) {
+      store(hash, text, e);
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final String text) {
+    return score(text, null, 0, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return score(text, null, 0, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return score(CharBuffer.wrap(buf, off, len), buf, off, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    return score(text, null, 0, cutoff);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    return score(CharBuffer.wrap(buf, off, len), buf, off, cutoff);
+  }
+
+  @Override
+  public Cursor cursor() {
+    return mModel.cursor();
+  }
+
+  @Override
+  public int getOrder() {
+    return mModel.getOrder();
+  }
+
+  @Override
+  public void costs(final char[] buf, final int off, final int len, final double[] costs) {
+    mModel.costs(buf, off, len, costs);
+  }
+
+  /**
+   * Return the number of scores answered from the cache.
+   * @return number of hits
+   */
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  /**
+   * Return the number of scores not found in the cache.
+   * @return number of misses
+   */
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  /**
+   * Return the number of entries evicted to make room for new entries.
+   * @return number of evictions
+   */
+  public synchronized long getEvictions() {
+    return mEvictions;
+  }
+
+  /**
+   * Return the number of entries currently in the cache.
+   * @return number of entries
+   */
+  public synchronized int size() {
+    return mSize;
+  }
+
+  @Override
+  public synchronized String toString() {
+    final long total = mHits + mMisses;
+    return "Model cache of " + mSize + "/" + mCapacity + " entries: " + mHits + " hits, " + mMisses + " misses, " + mEvictions + " evictions"
+      + (total == 0 ? "" : String.format(", hit rate %.1f%%", 100.0 * mHits / total));
+  }
+}
@@ -0,0 +1,269 @@
+package irvine.entropy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Screens texts with a cheap model before scoring them with an expensive
+ * one.  Most candidates generated by a search are hopeless, and a search
+ * only needs scores below its current acceptance threshold, which it gives
+ * as the cutoff.  Each text scored with a cutoff is first scored by the
+ * cheap model, and is rejected outright if the cheap score exceeds the
+ * cutoff by more than a margin per character.  Only the survivors are
+ * scored by the expensive model, whose score is the one returned.
+ *
+ * The cheap model is usually a bigram model derived from a four-gram model,
+ * see <code>bigrams()</code>.  A wide margin makes the screen safe but lets
+ * more texts through; a narrow margin occasionally rejects a text which the
+ * expensive model would have accepted.  Texts scored without a cutoff, and
+ * cursors, go straight to the expensive model.  The number of texts
+ * rejected at each stage is counted.  This class is thread-safe provided
+ * the underlying models are.
+ *
+ * @author Sean A. Irvine
+ */
+public final class CascadedEntropy implements Entropy {
+
+  private final Entropy mCheap;
+  private final Entropy mModel;
+  private final double mMargin;
+  private final LongAdder mEvaluations = new LongAdder();
+  private final LongAdder mScreened = new LongAdder();
+  private final LongAdder mCheapRejections = new LongAdder();
+  private final LongAdder mModelRejections = new LongAdder();
+
+  /**
+   * Construct a cascade of two models.
+   * @param cheap model used for screening
+   * @param model model giving the final scores
+   * @param margin nats per character by which the cheap score may exceed the cutoff
+   * @exception IllegalArgumentException if the margin is negative.
+   */
+  public CascadedEntropy(final Entropy cheap, final Entropy model, final double margin) {
+    if (!(margin >= 0)) {
+      throw new IllegalArgumentException("Bad margin: " + margin);
+    }
+    mCheap = cheap;
+    mModel = model;
+    mMargin = margin;
+  }
+
+  /**
+   * Construct a cascade screening texts with a bigram model derived from the
+   * given model.
+   * @param model model giving the final scores
+   * @param margin nats per character by which the cheap score may exceed the cutoff
+   * @exception IllegalArgumentException if a bigram model cannot be derived from the model.
+   */
+  public CascadedEntropy(final Entropy model, final double margin) {
+    this(bigrams(model), model, margin);
+  }
+
+  /**
+   * Return a bigram model derived from a four-gram model, in any of its
+   * forms, possibly wrapped in a cache or instrumentation.
+   * @param model four-gram model
+   * @return bigram model
+   * @exception IllegalArgumentException if the model is not a four-gram model.
+   */
+  public static CompiledFourGramModel bigrams(final Entropy model) {
+    if (model instanceof FourGramAlphabetModel) {
+      return ((FourGramAlphabetModel) model).bigrams();
+    } else if (model instanceof CompiledFourGramModel) {
+      return ((CompiledFourGramModel) model).bigrams();
+    } else if (model instanceof QuantizedFourGramModel) {
+      return ((QuantizedFourGramModel) model).bigrams();
+    } else if (model instanceof CachingEntropy) {
+      return bigrams(((CachingEntropy) model).getModel());
+    } else if (model instanceof InstrumentedEntropy) {
+      return bigrams(((InstrumentedEntropy) model).getModel());
+    }
+    throw new IllegalArgumentException("Cannot derive a bigram model from " + model.getClass().getSimpleName());
+  }
+
+  /**
+   * Return the model used for screening.
+   * @return cheap model
+   */
+  public Entropy getCheapModel() {
+    return mCheap;
+  }
+
+  /**
+   * Return the model giving the final scores.
+   * @return the model
+   */
+  public Entropy getModel() {
+    return mModel;
+  }
+
+  /**
+   * Return the margin by which the cheap score may exceed the cutoff.
+   * @return nats per character
+   */
+  public double getMargin() {
+    return mMargin;
+  }
+
+  // Cutoff for the cheap model on a text of the given length
+  private double cheapCutoff(final double cutoff, final int len) {
+    return cutoff + mMargin * len;
+  }
+
+  private double model(final double e) {
+    if (e == Double.POSITIVE_INFINITY) {
+      mModelRejections.increment();
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final String text) {
+    mEvaluations.increment();
+    return mModel.entropy(text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    mEvaluations.increment();
+    return mModel.entropy(text);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    mEvaluations.increment();
+    return mModel.entropy(buf, off, len);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    mEvaluations.increment();
+    if (cutoff == Double.POSITIVE_INFINITY) {
+      return mModel.entropy(text);
+    }
+    mScreened.increment();
+    if (mCheap.entropy(text, cheapCutoff(cutoff, text.length())) == Double.POSITIVE_INFINITY) {
+      mCheapRejections.increment();
+      return Double.POSITIVE_INFINITY;
+    }
+    return model(mModel.entropy(text, cutoff));
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    mEvaluations.increment();
+    if (cutoff == Double.POSITIVE_INFINITY) {
+      return mModel.entropy(buf, off, len);
+    }
+    mScreened.increment();
+    if (mCheap.entropy(buf, off, len, cheapCutoff(cutoff, len)) == Double.POSITIVE_INFINITY) {
+      mCheapRejections.increment();
+      return Double.POSITIVE_INFINITY;
+    }
+    return model(mModel.entropy(buf, off, len, cutoff));
+  }
+
+  // The whole batch is screened by the cheap model, then the survivors are
+  // gathered into a smaller batch for the expensive model.
+  @Override
+  public void entropies(final char[] buf, final int len, final int count, final double[] scores, final double cutoff) {
+    mEvaluations.add(count);
+    if (cutoff == Double.POSITIVE_INFINITY) {
+      mModel.entropies(buf, len, count, scores, cutoff);
+      return;
+    }
+    mScreened.add(count);
+    mCheap.entropies(buf, len, count, scores, cheapCutoff(cutoff, len));
+    final int[] survivors = new int[count];
+    int n = 0;
+    for (int k = 0; k < count; ++k) {
+      if (scores[k] != Double.POSITIVE_INFINITY) {
+        survivors[n++] = k;
+      }
+    }
+    mCheapRejections.add(count - n);
+    if (n == 0) {
+      return;
+    }
+    final char[] batch;
+    if (n == count) {
+      batch = buf;
+    } else {
+      batch = new char[n * len];
+      for (int k = 0; k < n; ++k) {
+        System.arraycopy(buf, survivors[k] * len, batch, k * len, len);
+      }
+    }
+    final double[] modelScores = new double[n];
+    mModel.entropies(batch, len, n, modelScores, cutoff);
+    for (int k = 0; k < n; ++k) {
+      scores[survivors[k]] = model(modelScores[k]);
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return mModel.cursor();
+  }
+
+  @Override
+  public int getOrder() {
+    return mModel.getOrder();
+  }
+
+  @Override
+  public void costs(final char[] buf, final int off, final int len, final double[] costs) {
+    mModel.costs(buf, off, len, costs);
+  }
+
+  /**
+   * Return the number of texts scored.
+   * @return number of evaluations
+   */
+  public long getEvaluations() {
+    return mEvaluations.sum();
+  }
+
+  /**
+   * Return the number of texts scored with a cutoff, and hence screened by
+   * the cheap model.
+   * @return number of screened texts
+   */
+  public long getScreened() {
+    return mScreened.sum();
+  }
+
+  /**
+   * Return the number of texts rejected by the cheap model.
+   * @return number of rejections
+   */
+  public long getCheapRejections() {
+    return mCheapRejections.sum();
+  }
+
+  /**
+   * Return the number of texts passing the cheap model but exceeding the
+   * cutoff under the expensive model.
+   * @return number of rejections
+   */
+  public long getModelRejections() {
+    return mModelRejections.sum();
+  }
+
+  /** Reset the counts. */
+  public void reset() {
+    mEvaluations.reset();
+    mScreened.reset();
+    mCheapRejections.reset();
+    mModelRejections.reset();
+  }
+
+  @Override
+  public String toString() {
+    final long screened = getScreened();
+    final long cheap = getCheapRejections();
+    final long model = getModelRejections();
+    return "Model cascade with margin " + mMargin + ": " + getEvaluations() + " evaluations, " + screened + " screened, "
+      + cheap + " rejected by " + mCheap.getClass().getSimpleName() + ", " + model + " rejected by " + mModel.getClass().getSimpleName()
+      + (screened == 0 ? "" : String.format(", %.1f%% of screened texts reached the full model", 100.0 * (screened - cheap) / screened));
+  }
+}
@@ -0,0 +1,221 @@
+package irvine.entropy;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * A read-only form of a <code>FourGramAlphabetModel</code> in which the
+ * final code length of every symbol in every context has been precomputed.
+ * Scoring a character is then a single table lookup.  Code lengths are
+ * stored as floats, so results agree with the original model to within
+ * float precision.
+ * @author Sean A. Irvine
+ */
+public final class CompiledFourGramModel implements Entropy {
+
+  private final ModelFile mHeader;
+  private final int[] mCharToCode;
+  private final int mAlphabetBits;
+  private final int mContextMask;
+  private final boolean mUpcase;
+  private final FloatBuffer mCosts;
+
+  CompiledFourGramModel(final ModelFile header, final FloatBuffer costs) {
+    mHeader = header;
+    mCharToCode = FourGramAlphabetModel.buildCharToCodeMapping(header.getAlphabet());
+    mAlphabetBits = header.getAlphabetBits();
+    mUpcase = header.isUpcase();
+    mCosts = costs;
+    mContextMask = costs.limit() - 1;
+    if (1 << (mAlphabetBits * header.getOrder()) != costs.limit()) {
+      throw new IllegalArgumentException("Cost table does not match alphabet");
+    }
+  }
+
+  CompiledFourGramModel(final ModelFile file) {
+    this(file, file.getCosts());
+  }
+
+  /**
+   * Save this model.  An uncompressed model can subsequently be memory
+   * mapped when it is loaded.
+   * @param filename output filename
+   * @param compress should the model be gzip compressed
+   * @throws IOException if an I/O error occurs
+   */
+  void saveModel(final String filename, final boolean compress) throws IOException {
+    mHeader.writeCosts(filename, compress, mCosts);
+  }
+
+  /**
+   * Return a form of this model with each code length quantized to the
+   * given number of bits.
+   * @param bits bits per code length, 8 or 16
+   * @return quantized model
+   * @exception IllegalArgumentException if the number of bits is not supported.
+   */
+  public QuantizedFourGramModel quantize(final int bits) {
+    return QuantizedFourGramModel.quantize(mHeader, mCosts, bits);
+  }
+
+  /**
+   * Return a bigram model derived from this model.  The code length of a
+   * symbol following a given symbol is the code length this model gives the
+   * second symbol of a text.
+   * @return compiled bigram model
+   */
+  public CompiledFourGramModel bigrams() {
+    final float[] costs = new float[1 << (FourGramAlphabetModel.BIGRAM_ORDER * mAlphabetBits)];
+    for (int context = 0; context < costs.length; ++context) {
+      costs[context] = mCosts.get(context);
+    }
+    return new CompiledFourGramModel(mHeader.costsHeader(FourGramAlphabetModel.BIGRAM_ORDER), FloatBuffer.wrap(costs));
+  }
+
+  FloatBuffer getCosts() {
+    return mCosts.duplicate();
+  }
+
+  /**
+   * Get the alphabet used by this model.
+   * @return the alphabet
+   */
+  public String getAlphabet() {
+    return mHeader.getAlphabet();
+  }
+
+  @Override
+  public String toString() {
+    return "Compiled model built on " + mHeader.getDate() + " training size " + mHeader.getTotalTraining() + "\n" + mHeader.getBuildCommand();
+  }
+
+  private int charToCode(final int s) {
+    return mCharToCode[mUpcase ? Character.toUpperCase(s) : s];
+  }
+
+  private int next(final int context, final int c) {
+    return ((context << mAlphabetBits) | charToCode(c)) & mContextMask;
+  }
+
+  @Override
+  public double entropy(final String text) {
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return entropy(buf, off, len, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    int context = 0;
+    double e = 0;
+    for (int k = 0; k < text.length(); ++k) {
+      context = next(context, text.charAt(k));
+      e += mCosts.get(context);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    int context = 0;
+    double e = 0;
+    for (int k = off; k < off + len; ++k) {
+      context = next(context, buf[k]);
+      e += mCosts.get(context);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return e;
+  }
+
+  // Texts are scored four at a time, interleaving four independent chains
+  // of table lookups so that they can be in flight together.  A group of
+  // texts is abandoned once all four exceed the cutoff.
+  @Override
+  public void entropies(final char[] buf, final int len, final int count, final double[] scores, final double cutoff) {
+    int i = 0;
+    for (; i + 4 <= count; i += 4) {
+      final int off = i * len;
+      int c0 = 0;
+      int c1 = 0;
+      int c2 = 0;
+      int c3 = 0;
+      double e0 = 0;
+      double e1 = 0;
+      double e2 = 0;
+      double e3 = 0;
+      for (int k = off, end = off + len; k < end && (e0 <= cutoff || e1 <= cutoff || e2 <= cutoff || e3 <= cutoff);) {
+        for (final int stop = Math.min(end, k + Batch.CHECK_INTERVAL); k < stop; ++k) {
+          c0 = next(c0, buf[k]);
+          c1 = next(c1, buf[k + len]);
+          c2 = next(c2, buf[k + 2 * len]);
+          c3 = next(c3, buf[k + 3 * len]);
+          e0 += mCosts.get(c0);
+          e1 += mCosts.get(c1);
+          e2 += mCosts.get(c2);
+          e3 += mCosts.get(c3);
+        }
+      }
+      scores[i] = e0;
+      scores[i + 1] = e1;
+      scores[i + 2] = e2;
+      scores[i + 3] = e3;
+    }
+    for (; i < count; ++i) {
+      scores[i] = entropy(buf, i * len, len, cutoff);
+    }
+    Batch.cutoff(scores, count, cutoff);
+  }
+
+  /** Incremental scoring directly on the cost table. */
+  private final class TableCursor implements Cursor {
+
+    private int mContext;
+    private double mEntropy;
+
+    private TableCursor(final int context, final double entropy) {
+      mContext = context;
+      mEntropy = entropy;
+    }
+
+    @Override
+    public double append(final char c) {
+      mContext = next(mContext, c);
+      final double e = mCosts.get(mContext);
+      mEntropy += e;
+      return e;
+    }
+
+    @Override
+    public double entropy() {
+      return mEntropy;
+    }
+
+    @Override
+    public Cursor copy() {
+      return new TableCursor(mContext, mEntropy);
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new TableCursor(0, 0);
+  }
+
+  @Override
+  public int getOrder() {
+    return mHeader.getOrder();
+  }
+}
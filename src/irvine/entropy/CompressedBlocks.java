@@ -0,0 +1,213 @@
+package irvine.entropy;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Writes and reads large arrays as a sequence of independently deflated
+ * blocks.  Unlike a single compressed stream, the blocks can be compressed
+ * and decompressed in parallel, while still being written and read
+ * sequentially.  Each block holds up to <code>BLOCK_ENTRIES</code>
+ * little-endian entries, 4 or 8 bytes each, and is preceded by its
+ * compressed length as a little-endian int.  The number of entries is not
+ * recorded, the caller is expected to store it in its own header.  Only
+ * a bounded number of blocks are held in memory at once.
+ *
+ * @author Sean A. Irvine
+ */
+final class CompressedBlocks {
+
+  /** Source of the entries to write. */
+  interface Source {
+    /**
+     * Return the entry at the given index.
+     * @param index index
+     * @return entry
+     */
+    long get(long index);
+  }
+
+  /**
+   * Destination of entries read.  Entries are stored concurrently from
+   * several threads, but no index is stored more than once.
+   */
+  interface Sink {
+    /**
+     * Store the entry at the given index.
+     * @param index index
+     * @param value entry
+     */
+    void set(long index, long value);
+  }
+
+  /** Maximum number of entries in a block. */
+  static final int BLOCK_ENTRIES = 1 << 16;
+
+  private final int mThreads;
+
+  /**
+   * Construct a block reader and writer.
+   * @param threads number of blocks to compress or decompress at the same time
+   */
+  CompressedBlocks(final int threads) {
+    mThreads = Math.max(1, threads);
+  }
+
+  /** Construct a block reader and writer using every available processor. */
+  CompressedBlocks() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  private static void putInt(final OutputStream out, final int v) throws IOException {
+    out.write(v);
+    out.write(v >>> 8);
+    out.write(v >>> 16);
+    out.write(v >>> 24);
+  }
+
+  private static byte[] deflate(final Source source, final long start, final int n, final int width) {
+    final ByteBuffer raw = ByteBuffer.allocate(n * width).order(ByteOrder.LITTLE_ENDIAN);
+    for (long k = start; k < start + n; ++k) {
+      if (width == Long.BYTES) {
+        raw.putLong(source.get(k));
+      } else {
+        raw.putInt((int) source.get(k));
+      }
+    }
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(raw.array());
+      deflater.finish();
+      // Incompressible input can grow slightly
+      byte[] out = new byte[raw.capacity() + raw.capacity() / 1000 + 64];
+      int len = 0;
+      while (!deflater.finished()) {
+        if (len == out.length) {
+          out = Arrays.copyOf(out, 2 * out.length);
+        }
+        len += deflater.deflate(out, len, out.length - len);
+      }
+      return Arrays.copyOf(out, len);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static Void inflate(final byte[] compressed, final Sink sink, final long start, final int n, final int width) throws IOException {
+    final byte[] raw = new byte[n * width];
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      final int len = inflater.inflate(raw);
+      if (len != raw.length || !inflater.finished()) {
+        throw new IOException("Corrupt compressed block");
+      }
+    } catch (final DataFormatException e) {
+      throw new IOException("Corrupt compressed block", e);
+    } finally {
+      inflater.end();
+    }
+    final ByteBuffer buf = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+    for (long k = start; k < start + n; ++k) {
+      sink.set(k, width == Long.BYTES ? buf.getLong() : buf.getInt());
+    }
+    return null;
+  }
+
+  private static <T> List<T> await(final List<Future<T>> futures) throws IOException {
+    final List<T> results = new ArrayList<>(futures.size());
+    try {
+      for (final Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing blocks", e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+    return results;
+  }
+
+  // Number of blocks in flight at once, enough to keep every thread busy
+  private int batch() {
+    return 4 * mThreads;
+  }
+
+  /**
+   * Write entries as compressed blocks.
+   * @param out output stream
+   * @param source entries
+   * @param length number of entries
+   * @param width bytes per entry, 4 or 8
+   * @throws IOException if an I/O error occurs
+   */
+  void write(final OutputStream out, final Source source, final long length, final int width) throws IOException {
+    final ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+    try {
+      for (long start = 0; start < length;) {
+        final List<Future<byte[]>> futures = new ArrayList<>();
+        for (int b = 0; b < batch() && start < length; ++b, start += BLOCK_ENTRIES) {
+          final long s = start;
+          final int n = (int) Math.min(BLOCK_ENTRIES, length - start);
+          futures.add(pool.submit(() -> deflate(source, s, n, width)));
+        }
+        for (final byte[] block : await(futures)) {
+          putInt(out, block.length);
+          out.write(block);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Read entries written by <code>write</code>.
+   * @param in input stream
+   * @param sink destination of the entries
+   * @param length number of entries
+   * @param width bytes per entry, 4 or 8
+   * @throws IOException if an I/O error occurs or the blocks are corrupt.
+   */
+  void read(final InputStream in, final Sink sink, final long length, final int width) throws IOException {
+    final DataInputStream data = new DataInputStream(in);
+    final ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+    try {
+      for (long start = 0; start < length;) {
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int b = 0; b < batch() && start < length; ++b, start += BLOCK_ENTRIES) {
+          final int size = Integer.reverseBytes(data.readInt());
+          if (size < 0 || size > 2 * BLOCK_ENTRIES * width + 64) {
+            throw new IOException("Corrupt compressed block");
+          }
+          final byte[] compressed = new byte[size];
+          data.readFully(compressed);
+          final long s = start;
+          final int n = (int) Math.min(BLOCK_ENTRIES, length - start);
+          futures.add(pool.submit(() -> inflate(compressed, sink, s, n, width)));
+        }
+        await(futures);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -14,4 +14,171 @@ public interface Entropy {
    */
   double entropy(String text);
 
+  /**
+   * Return an estimate of the entropy of the given characters.  This avoids
+   * the need for callers to construct a string just to have it scored.
+   * @param text text to compute entropy of
+   * @return entropy
+   */
+  default double entropy(final CharSequence text) {
+    return entropy(text.toString());
+  }
+
+  /**
+   * Return an estimate of the entropy of a region of a character buffer.
+   * This allows callers to decode into a reusable buffer rather than
+   * constructing a string for each text scored.
+   * @param buf buffer containing the text
+   * @param off offset of the first character to score
+   * @param len number of characters to score
+   * @return entropy
+   */
+  default double entropy(final char[] buf, final int off, final int len) {
+    return entropy(new String(buf, off, len));
+  }
+
+  /**
+   * Return an estimate of the entropy of the given characters, abandoning the
+   * computation as soon as it is known to exceed <code>cutoff</code>.  This is
+   * useful when only entropies below some threshold are of interest, such as
+   * when maintaining a bounded set of hypotheses.  Implementations where the
+   * entropy of each successive character is non-negative can stop early.
+   * @param text text to compute entropy of
+   * @param cutoff largest entropy of interest
+   * @return entropy, or positive infinity if the entropy exceeds the cutoff
+   */
+  default double entropy(final CharSequence text, final double cutoff) {
+    final double e = entropy(text);
+    return e > cutoff ? Double.POSITIVE_INFINITY : e;
+  }
+
+  /**
+   * Return an estimate of the entropy of a region of a character buffer,
+   * abandoning the computation as soon as it is known to exceed <code>cutoff</code>.
+   * @param buf buffer containing the text
+   * @param off offset of the first character to score
+   * @param len number of characters to score
+   * @param cutoff largest entropy of interest
+   * @return entropy, or positive infinity if the entropy exceeds the cutoff
+   */
+  default double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    final double e = entropy(buf, off, len);
+    return e > cutoff ? Double.POSITIVE_INFINITY : e;
+  }
+
+  /**
+   * Compute estimates of the entropies of a batch of texts of the same length,
+   * held one after another in a buffer.  Text <code>i</code> occupies
+   * <code>buf[i * len]</code> to <code>buf[(i + 1) * len - 1]</code>.  Searches
+   * often generate many candidates of the same length, such as the decryptions
+   * under every key differing from a given key by one swap.  Models can then
+   * work through the batch a position at a time, keeping the state of every
+   * text in arrays, which can be much faster than scoring the texts in turn.
+   * The default implementation simply scores each text in turn.
+   * @param buf buffer containing the texts
+   * @param len length of each text
+   * @param count number of texts
+   * @param scores receives the entropy of each text, or positive infinity if it exceeds the cutoff
+   * @param cutoff largest entropy of interest
+   */
+  default void entropies(final char[] buf, final int len, final int count, final double[] scores, final double cutoff) {
+    for (int k = 0, off = 0; k < count; ++k, off += len) {
+      scores[k] = entropy(buf, off, len, cutoff);
+    }
+  }
+
+  /**
+   * Compute estimates of the entropies of a batch of texts of the same length,
+   * held one after another in a buffer.
+   * @param buf buffer containing the texts
+   * @param len length of each text
+   * @param count number of texts
+   * @param scores receives the entropy of each text
+   */
+  default void entropies(final char[] buf, final int len, final int count, final double[] scores) {
+    entropies(buf, len, count, scores, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Return the number of characters over which each character can affect
+   * the scoring of a text, that is, the character itself and the following
+   * characters whose costs may depend on it.  The cost of a character then
+   * depends only on the character, the preceding <code>getOrder() - 1</code>
+   * characters, and whether those reach back to the start of the text.
+   * The default of 0 means that there is no such bound.
+   * @return order of the model, or 0 if unbounded
+   */
+  default int getOrder() {
+    return 0;
+  }
+
+  /**
+   * Compute the cost, or code length, of each character of a region of a
+   * character buffer, scoring the region as a text on its own.  The costs
+   * sum to the entropy of the region.  The default implementation appends
+   * each character to a cursor.
+   * @param buf buffer containing the text
+   * @param off offset of the first character to score
+   * @param len number of characters to score
+   * @param costs receives the cost of <code>buf[off + k]</code> in <code>costs[k]</code>
+   */
+  default void costs(final char[] buf, final int off, final int len, final double[] costs) {
+    final Cursor cursor = cursor();
+    for (int k = 0; k < len; ++k) {
+      costs[k] = cursor.append(buf[off + k]);
+    }
+  }
+
+  /**
+   * A scoring position within a piece of text that can be extended one
+   * symbol at a time.  Cursors are independent of each other, so a search
+   * can <code>copy()</code> the cursor of a hypothesis and extend each copy
+   * with a different symbol.
+   */
+  interface Cursor {
+
+    /**
+     * Extend the text seen by this cursor by a single character.
+     * @param c character to append
+     * @return the increase in entropy caused by the character
+     */
+    double append(char c);
+
+    /**
+     * Extend the text seen by this cursor by a sequence of characters.
+     * @param s characters to append
+     * @return the increase in entropy caused by the characters
+     */
+    default double append(final CharSequence s) {
+      double e = 0;
+      for (int k = 0; k < s.length(); ++k) {
+        e += append(s.charAt(k));
+      }
+      return e;
+    }
+
+    /**
+     * Return the entropy of all the text appended to this cursor.
+     * @return entropy
+     */
+    double entropy();
+
+    /**
+     * Return an independent copy of this cursor.
+     * @return copy of the cursor
+     */
+    Cursor copy();
+  }
+
+  /**
+   * Return a cursor positioned at the start of an empty text.  For any text
+   * the total entropy after appending each character of the text to the
+   * cursor is the same as <code>entropy(text)</code>.  The default
+   * implementation simply rescores the entire text on each append, models
+   * able to score incrementally should override this.
+   * @return cursor
+   */
+  default Cursor cursor() {
+    return new RescoringCursor(this);
+  }
 }
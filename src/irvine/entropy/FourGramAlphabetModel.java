@@ -1,18 +1,19 @@
 package irvine.entropy;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Collection;
+import java.util.List;
 
 import irvine.util.CliFlags;
 import irvine.util.Date;
@@ -25,7 +26,7 @@ import irvine.util.IntegerUtils;
  * is the responsibility of the caller.
  * @author Sean A. Irvine
  */
-public class FourGramAlphabetModel implements Entropy, Serializable {
+public class FourGramAlphabetModel implements Entropy, Profiled, Serializable {
 
   // For speed this model uses a massive array with counts for every possible
   // context, rather than a hashtable or trie storing counts only for those
@@ -48,17 +49,50 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
   // when promoting to a long.
 
   private static final int MODEL_ORDER = 4;
+  static final int BIGRAM_ORDER = 2;
   private static final long MAKE_UNSIGNED = 0xFFFFFFFFL;
   private static final String BUILD_FLAG = "build";
   private static final String MODEL_FLAG = "model";
   private static final String ALPHABET_FLAG = "alphabet";
   private static final String UPCASE_FLAG = "upcase";
   private static final String VERSION_FLAG = "version";
+  private static final String COMPILE_FLAG = "compile";
+  private static final String SAVE_FLAG = "save";
+  private static final String GZIP_FLAG = "gzip";
+  private static final String THREADS_FLAG = "threads";
+  private static final String SHARD_FLAG = "shard";
+  private static final String MERGE_FLAG = "merge";
+  private static final String QUANTIZE_FLAG = "quantize";
   private static final String DEFAULT_MODEL = "irvine/resources/default.model";
   private static final long serialVersionUID = -5678133404521443306L;
+  private static final int MAX_ALPHABET_BITS = 7;
+  private static final int BUFFER_SIZE = 65536;
+
+  // Per-thread exclusion scratch space, large enough for any permitted alphabet
+  private static final ThreadLocal<boolean[]> EXCLUSIONS = ThreadLocal.withInitial(() -> new boolean[1 << MAX_ALPHABET_BITS]);
+
+  /** Code lengths remembered while scoring a single batch. */
+  private static final class BatchMemo {
+    private static final int BITS = 12;
+    private final int[] mContexts = new int[1 << BITS];
+    private final double[] mCosts = new double[1 << BITS];
+    private final int[] mStamps = new int[1 << BITS];
+    private int mStamp = 0;
+
+    // Forget everything remembered for the previous batch
+    private void clear() {
+      if (++mStamp == 0) {
+        Arrays.fill(mStamps, 0);
+        mStamp = 1;
+      }
+    }
+  }
+
+  // Per-thread batch memory
+  private static final ThreadLocal<BatchMemo> BATCH_MEMO = ThreadLocal.withInitial(BatchMemo::new);
 
   // Construct a code mapping from character to internal code (for efficiency)
-  private static int[] buildCharToCodeMapping(final String alphabet) {
+  static int[] buildCharToCodeMapping(final String alphabet) {
     final int[] charToCode = new int[256]; // assume bytes
     for (int k = 0; k < alphabet.length(); ++k) {
       final char c = alphabet.charAt(k);
@@ -78,36 +112,97 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
     return IntegerUtils.lg(IntegerUtils.nextPowerOf2(alphabet.length()));
   }
 
-  private final String mDate = Date.now();
+  private final String mDate;
   private final String mAlphabet;     // actual characters of the alphabet
   private final int[] mCharToCode;    // map alphabet symbol to internal code
   private final int mAlphabetBits;    // number of bits needed to hold a symbol in the alphabet
   private final int mAlphabetSize;    // power of 2 >= |alphabet|, for efficiency
   private final int mSymbolMask;      // mask for a single symbol
   private final int mContextMask;     // mask for entire context
-  private final int[] mCounts;        // table of frequency counts
+  private final int[] mCounts;        // table of frequency counts, null for a loaded model
+  private transient IntBuffer mTable; // view of the counts used for queries, possibly memory mapped
   private boolean mUpcase = false;    // should symbols be automatically upper-cased
 
   private String mBuildCommand = null;
   private long mTotalTraining = 0;
 
-  FourGramAlphabetModel(final String alphabet) {
+  private FourGramAlphabetModel(final String alphabet, final String date, final int[] counts, final IntBuffer table) {
+    mDate = date;
     mAlphabet = alphabet;
     mCharToCode = buildCharToCodeMapping(alphabet);
     mAlphabetBits = bits(alphabet);
-    if (mAlphabetBits > 7) {
+    if (mAlphabetBits > MAX_ALPHABET_BITS) {
       // With care 8 could be made to work, but larger values would need to move
       // context etc. into a long rather than an int
       throw new IllegalArgumentException("Alphabet too large");
     }
     mAlphabetSize = 1 << mAlphabetBits;
     mSymbolMask = (1 << mAlphabetBits) - 1;
-    mCounts = new int[1 << (mAlphabetBits * MODEL_ORDER)];
-    mContextMask = mCounts.length - 1;
+    mCounts = counts;
+    mTable = table;
+    mContextMask = (1 << (mAlphabetBits * MODEL_ORDER)) - 1;
+    if (table.limit() != mContextMask + 1) {
+      throw new IllegalArgumentException("Count table does not match alphabet");
+    }
+  }
+
+  private FourGramAlphabetModel(final String alphabet, final int[] counts) {
+    this(alphabet, Date.now(), counts, IntBuffer.wrap(counts));
+  }
+
+  FourGramAlphabetModel(final String alphabet) {
+    this(alphabet, new int[1 << (bits(alphabet) * MODEL_ORDER)]);
+  }
+
+  private FourGramAlphabetModel(final ModelFile file) {
+    this(file.getAlphabet(), file.getDate(), null, file.getCounts());
+    mUpcase = file.isUpcase();
+    mBuildCommand = file.getBuildCommand();
+    mTotalTraining = file.getTotalTraining();
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+    // Models saved by older versions were serialized objects
+    in.defaultReadObject();
+    mTable = IntBuffer.wrap(mCounts);
+  }
+
+  private static Entropy fromModelFile(final ModelFile file) throws IOException {
+    if (file.getKind() == ModelFile.KIND_HASHED_COUNTS) {
+      try {
+        return new HashedContextModel(file);
+      } catch (final IllegalArgumentException e) {
+        throw new IOException("Corrupt model file", e);
+      }
+    }
+    if (file.getOrder() != MODEL_ORDER) {
+      throw new IOException("Model file has order " + file.getOrder() + " but expected " + MODEL_ORDER);
+    }
+    if (file.getKind() == ModelFile.KIND_SHARD) {
+      throw new IOException("Model file is a shard, shards must be merged before use");
+    }
+    try {
+      switch (file.getKind()) {
+        case ModelFile.KIND_COSTS:
+          return new CompiledFourGramModel(file);
+        case ModelFile.KIND_COSTS_8:
+        case ModelFile.KIND_COSTS_16:
+          return new QuantizedFourGramModel(file);
+        default:
+          return new FourGramAlphabetModel(file);
+      }
+    } catch (final IllegalArgumentException e) {
+      throw new IOException("Corrupt model file", e);
+    }
   }
 
   private static Entropy loadModel(final InputStream stream) throws IOException {
-    try (final ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(stream))) {
+    final InputStream in = ModelFile.uncompressed(stream);
+    if (ModelFile.isModelFile(in)) {
+      return fromModelFile(ModelFile.read(in));
+    }
+    // Older serialized form of the model
+    try (final ObjectInputStream ois = new ObjectInputStream(in)) {
       return (Entropy) ois.readObject();
     } catch (final ClassNotFoundException e) {
       throw new RuntimeException("Incompatible model file", e);
@@ -115,12 +210,19 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
   }
 
   /**
-   * Load a model from the specified file.
+   * Load a model from the specified file.  An uncompressed model file is
+   * memory mapped rather than read.  Any character model saved in the
+   * model file format can be loaded, including compiled, quantized, and
+   * hashed context models.
    * @param filename file name of model
    * @return the model
    * @exception IOException if an I/O error occurs
    */
   public static Entropy loadModel(final String filename) throws IOException {
+    final ModelFile file = ModelFile.open(filename);
+    if (file != null) {
+      return fromModelFile(file);
+    }
     try (final InputStream is = new FileInputStream(filename)) {
       return loadModel(is);
     }
@@ -148,14 +250,23 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
   }
 
   /**
-   * Serialize the current model.
+   * Save the current model.  An uncompressed model can subsequently be
+   * memory mapped when it is loaded.
+   * @param filename output filename
+   * @param compress should the model be gzip compressed
+   * @throws IOException if an I/O error occurs
+   */
+  void saveModel(final String filename, final boolean compress) throws IOException {
+    new ModelFile(ModelFile.KIND_COUNTS, MODEL_ORDER, mAlphabetBits, mUpcase, mTotalTraining, mAlphabet, mDate, mBuildCommand, null).writeCounts(filename, compress, mTable);
+  }
+
+  /**
+   * Save the current model uncompressed.
    * @param filename output filename
    * @throws IOException if an I/O error occurs
    */
   void saveModel(final String filename) throws IOException {
-    try (final ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
-      oos.writeObject(this);
-    }
+    saveModel(filename, false);
   }
 
   @Override
@@ -192,9 +303,10 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
   }
 
   private double entropy(final int context, final int start, final boolean[] exclusions) {
+    final IntBuffer table = mTable;
     if (start >= MODEL_ORDER || (context & mSymbolMask) == 0) {
       // Zeroth order prediction
-      return Math.log((mCounts[0] & MAKE_UNSIGNED) + 1L);
+      return Math.log((table.get(0) & MAKE_UNSIGNED) + 1L);
     }
 
     // Find leftmost defined symbol
@@ -212,13 +324,13 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
     while (true) {
       assert subcontextMask != 0;
       final int parentContext = context & subcontextMask & ~mSymbolMask;
-      long parentCount = mCounts[parentContext] & MAKE_UNSIGNED;
+      long parentCount = table.get(parentContext) & MAKE_UNSIGNED;
       if (parentCount > 0) {
         // Found a valid context.
-        final long count = mCounts[context & subcontextMask];
+        final long count = table.get(context & subcontextMask);
         for (int j = 0; j < mAlphabetSize - 1; ++j) {
           if (exclusions[j]) {
-            parentCount -= mCounts[parentContext + j + 1] & MAKE_UNSIGNED;
+            parentCount -= table.get(parentContext + j + 1) & MAKE_UNSIGNED;
           }
         }
         assert parentCount >= count : parentCount + " " + count;
@@ -228,7 +340,7 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
         } else {
           // Update for new exclusions
           for (int j = 0; j < mAlphabetSize - 1; ++j) {
-            exclusions[j] |= mCounts[parentContext + j + 1] != 0;
+            exclusions[j] |= table.get(parentContext + j + 1) != 0;
           }
           // Escape to next lower order
           return Math.log(parentCount + 1) + entropy(context, start + 1, exclusions);
@@ -238,51 +350,415 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
     }
   }
 
+  // Follows entropy(context, start, exclusions), recording where the prediction is made
+  private void profile(final int context, final int start, final long[] hits, final long[] escapes) {
+    final IntBuffer table = mTable;
+    if (start >= MODEL_ORDER || (context & mSymbolMask) == 0) {
+      ++hits[0];
+      return;
+    }
+    int subcontextMask = mSymbolMask;
+    int p = MODEL_ORDER;
+    while (p > start && (context & subcontextMask) != 0) {
+      subcontextMask <<= mAlphabetBits;
+      --p;
+    }
+    subcontextMask >>>= mAlphabetBits;
+    subcontextMask |= subcontextMask - 1;
+    while (true) {
+      final int parentContext = context & subcontextMask & ~mSymbolMask;
+      if (table.get(parentContext) != 0) {
+        // Number of symbols in the mask, including the predicted symbol
+        final int order = Integer.bitCount(subcontextMask) / mAlphabetBits;
+        if (table.get(context & subcontextMask) != 0) {
+          ++hits[order];
+          return;
+        }
+        ++escapes[order];
+        profile(context, start + 1, hits, escapes);
+        return;
+      }
+      subcontextMask >>>= mAlphabetBits;
+    }
+  }
+
+  @Override
+  public int profileLength() {
+    return MODEL_ORDER + 1;
+  }
+
+  @Override
+  public void profile(final CharSequence text, final long[] hits, final long[] escapes) {
+    int context = 0;
+    for (int k = 0; k < text.length(); ++k) {
+      context = ((context << mAlphabetBits) | charToCode(text.charAt(k))) & mContextMask;
+      profile(context, 0, hits, escapes);
+    }
+  }
+
+  // Cost of the symbol at the bottom of the context, w == 0 corresponds to an
+  // unknown character, so will escape down the model
+  private double entropy(final int context, final boolean[] exclusions) {
+    Arrays.fill(exclusions, 0, mAlphabetSize, false);
+    return entropy(context, 0, exclusions);
+  }
+
   @Override
   public double entropy(final String text) {
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return entropy(buf, off, len, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    final boolean[] exclusions = EXCLUSIONS.get();
     int context = 0;
     double e = 0;
-    final boolean[] exclusions = new boolean[mAlphabetSize];
     for (int k = 0; k < text.length(); ++k) {
-      final int w = charToCode(text.charAt(k));
-      // w == 0 corresponds to an unknown character, so will escape down the model
-      context <<= mAlphabetBits;
-      context |= w;
-      context &= mContextMask;
-      Arrays.fill(exclusions, false);
-      e += entropy(context, 0, exclusions);
+      context = ((context << mAlphabetBits) | charToCode(text.charAt(k))) & mContextMask;
+      e += entropy(context, exclusions);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    final boolean[] exclusions = EXCLUSIONS.get();
+    int context = 0;
+    double e = 0;
+    for (int k = off; k < off + len; ++k) {
+      context = ((context << mAlphabetBits) | charToCode(buf[k])) & mContextMask;
+      e += entropy(context, exclusions);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
     }
     return e;
   }
 
+  private double entropy(final int context, final boolean[] exclusions, final BatchMemo memo) {
+    final int slot = (context * 0x9E3779B9) >>> (Integer.SIZE - BatchMemo.BITS);
+    if (memo.mStamps[slot] == memo.mStamp && memo.mContexts[slot] == context) {
+      return memo.mCosts[slot];
+    }
+    final double e = entropy(context, exclusions);
+    memo.mStamps[slot] = memo.mStamp;
+    memo.mContexts[slot] = context;
+    memo.mCosts[slot] = e;
+    return e;
+  }
+
+  // The texts are scored in lockstep.  Texts in a batch are typically similar,
+  // so at each position many of them share a context, and the code length of
+  // each context is computed just once for the batch.
+  @Override
+  public void entropies(final char[] buf, final int len, final int count, final double[] scores, final double cutoff) {
+    final boolean[] exclusions = EXCLUSIONS.get();
+    final BatchMemo memo = BATCH_MEMO.get();
+    memo.clear();
+    final int[] contexts = new int[count];
+    Arrays.fill(scores, 0, count, 0);
+    for (int k = 0; k < len; ++k) {
+      for (int i = 0, j = k; i < count; ++i, j += len) {
+        final int context = ((contexts[i] << mAlphabetBits) | charToCode(buf[j])) & mContextMask;
+        contexts[i] = context;
+        scores[i] += entropy(context, exclusions, memo);
+      }
+      if (k % Batch.CHECK_INTERVAL == Batch.CHECK_INTERVAL - 1 && Batch.abandon(scores, count, cutoff)) {
+        return;
+      }
+    }
+    Batch.cutoff(scores, count, cutoff);
+  }
+
+  /**
+   * Return a read-only form of this model in which the code length of every
+   * symbol in every context has been precomputed.  Subsequent changes to this
+   * model are not reflected in the compiled model.
+   * @return compiled model
+   */
+  public CompiledFourGramModel compile() {
+    final float[] costs = new float[mContextMask + 1];
+    final boolean[] exclusions = new boolean[mAlphabetSize];
+    final int maxCode = mAlphabet.length();
+    for (int context = 0; context < costs.length; ++context) {
+      // Contexts containing codes outside the alphabet can never be queried
+      boolean valid = true;
+      for (int c = context; c != 0; c >>>= mAlphabetBits) {
+        if ((c & mSymbolMask) > maxCode) {
+          valid = false;
+          break;
+        }
+      }
+      if (valid) {
+        costs[context] = (float) entropy(context, exclusions);
+      }
+    }
+    return new CompiledFourGramModel(new ModelFile(ModelFile.KIND_COSTS, MODEL_ORDER, mAlphabetBits, mUpcase, mTotalTraining, mAlphabet, mDate, mBuildCommand, null), FloatBuffer.wrap(costs));
+  }
+
+  /**
+   * Return a bigram model derived from this model.  The code length of a
+   * symbol following a given symbol is the code length this model gives the
+   * second symbol of a text, so the bigram model is a much cheaper, if
+   * cruder, approximation of this model.  This is useful for screening
+   * candidates before scoring them with the full model.
+   * @return compiled bigram model
+   */
+  public CompiledFourGramModel bigrams() {
+    final float[] costs = new float[1 << (BIGRAM_ORDER * mAlphabetBits)];
+    final boolean[] exclusions = new boolean[mAlphabetSize];
+    final int maxCode = mAlphabet.length();
+    for (int context = 0; context < costs.length; ++context) {
+      if ((context & mSymbolMask) <= maxCode && (context >>> mAlphabetBits) <= maxCode) {
+        costs[context] = (float) entropy(context, exclusions);
+      }
+    }
+    return new CompiledFourGramModel(new ModelFile(ModelFile.KIND_COSTS, BIGRAM_ORDER, mAlphabetBits, mUpcase, mTotalTraining, mAlphabet, mDate, mBuildCommand, null), FloatBuffer.wrap(costs));
+  }
+
+  /** Incremental scoring directly on the model context. */
+  private final class ModelCursor implements Cursor {
+
+    private int mContext;
+    private double mEntropy;
+
+    private ModelCursor(final int context, final double entropy) {
+      mContext = context;
+      mEntropy = entropy;
+    }
+
+    @Override
+    public double append(final char c) {
+      mContext = ((mContext << mAlphabetBits) | charToCode(c)) & mContextMask;
+      final double e = FourGramAlphabetModel.this.entropy(mContext, EXCLUSIONS.get());
+      mEntropy += e;
+      return e;
+    }
+
+    @Override
+    public double entropy() {
+      return mEntropy;
+    }
+
+    @Override
+    public Cursor copy() {
+      return new ModelCursor(mContext, mEntropy);
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new ModelCursor(0, 0);
+  }
+
+  @Override
+  public int getOrder() {
+    return MODEL_ORDER;
+  }
+
   void add(final InputStream in) throws IOException {
-    try (final BufferedInputStream is = new BufferedInputStream(in)) {
-      int c;
+    if (mCounts == null) {
+      throw new UnsupportedOperationException("Cannot add to a loaded model");
+    }
+    try (final InputStream is = in) {
+      final byte[] buf = new byte[BUFFER_SIZE];
+      int len;
       int context = 0;
-      while ((c = is.read()) != -1) {
-        final int w = charToCode(c);
-        if (w != 0) { // ignore symbols outside the alphabet
-          ++mTotalTraining;
-          context <<= mAlphabetBits;
-          context |= w;
-          context &= mContextMask;
-          for (int k = 0, m = mSymbolMask; k < MODEL_ORDER; ++k) {
-            assert context != 0;
-            // Update count
-            ++mCounts[context & m];
-            // Update parent count
-            if (++mCounts[context & m & ~mSymbolMask] == 0) {
-              // It is sufficient to check for overflow on the total, since this will
-              // always overflow no later than any individual count.  When we detect
-              // overflow we simply halve all the counts in the model.
-              downScale();
-            }
-            m <<= mAlphabetBits;
-            m += mSymbolMask;
+      while ((len = is.read(buf)) != -1) {
+        context = add(buf, 0, len, context);
+      }
+    }
+  }
+
+  // Count a block of training text following the given context, returning the context after the block
+  private int add(final byte[] buf, final int off, final int len, final int start) {
+    int context = start;
+    for (int j = off; j < off + len; ++j) {
+      final int w = charToCode(buf[j] & 0xFF);
+      if (w != 0) { // ignore symbols outside the alphabet
+        ++mTotalTraining;
+        context <<= mAlphabetBits;
+        context |= w;
+        context &= mContextMask;
+        for (int k = 0, m = mSymbolMask; k < MODEL_ORDER; ++k) {
+          assert context != 0;
+          // Update count
+          ++mCounts[context & m];
+          // Update parent count
+          if (++mCounts[context & m & ~mSymbolMask] == 0) {
+            // It is sufficient to check for overflow on the total, since this will
+            // always overflow no later than any individual count.  When we detect
+            // overflow we simply halve all the counts in the model.
+            downScale();
           }
+          m <<= mAlphabetBits;
+          m += mSymbolMask;
+        }
+      }
+    }
+    return context;
+  }
+
+  /**
+   * Return a stream to which training text for this model can be written.
+   * The text is counted exactly as if it had been given to <code>add()</code>
+   * as a single stream.  Different streams can be written by different
+   * threads at the same time, each write being counted atomically.
+   * @return stream
+   */
+  OutputStream trainer() {
+    if (mCounts == null) {
+      throw new UnsupportedOperationException("Cannot add to a loaded model");
+    }
+    return new OutputStream() {
+      private int mContext = 0;
+
+      @Override
+      public void write(final int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) {
+        synchronized (FourGramAlphabetModel.this) {
+          mContext = add(b, off, len, mContext);
         }
       }
+    };
+  }
+
+  /**
+   * Return a counter which can be used to count training text for this
+   * model using several threads.  Once all the text has been given to the
+   * counter, use <code>add(FourGramCounter)</code> to update the model.
+   * Each thread has its own table of 64-bit counts, so this needs
+   * considerably more memory than the model itself.
+   * @param threads number of counting threads
+   * @param chunkSize number of bytes given to a thread at a time
+   * @return counter
+   */
+  FourGramCounter counter(final int threads, final int chunkSize) {
+    final int[] codes = new int[256];
+    for (int b = 0; b < codes.length; ++b) {
+      final int c = isUpcase() ? Character.toUpperCase(b) : b;
+      codes[b] = c < mCharToCode.length ? mCharToCode[c] : 0;
     }
+    return new FourGramCounter(codes, MODEL_ORDER, mAlphabetBits, threads, chunkSize);
+  }
+
+  FourGramCounter counter(final int threads) {
+    return counter(threads, FourGramCounter.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Add all the text counted by the given counter to this model.  Scaling
+   * of counts, if needed, is done once after all the counts are combined.
+   * Therefore, provided no scaling occurs, the resulting model is exactly
+   * the same as if the text had been added sequentially.
+   * @param counter counter obtained from <code>counter()</code>
+   * @throws IOException if interrupted while waiting for the counter
+   */
+  void add(final FourGramCounter counter) throws IOException {
+    add(counter.finish(), counter.getTotalTraining());
+  }
+
+  // Add unscaled counts to the model, scaling once if necessary
+  private void add(final long[] counts, final long totalTraining) {
+    if (mCounts == null) {
+      throw new UnsupportedOperationException("Cannot add to a loaded model");
+    }
+    if (counts.length != mCounts.length) {
+      throw new IllegalArgumentException("Counter does not match model");
+    }
+    long max = 0;
+    for (int k = 0; k < counts.length; ++k) {
+      counts[k] += mCounts[k] & MAKE_UNSIGNED;
+      if ((k & mSymbolMask) == 0) {
+        max = Math.max(max, counts[k]);
+      }
+    }
+    while (max > MAKE_UNSIGNED) {
+      max = downScale(counts);
+    }
+    for (int k = 0; k < counts.length; ++k) {
+      mCounts[k] = (int) counts[k];
+    }
+    mTotalTraining += totalTraining;
+  }
+
+  /**
+   * Save the unscaled counts of the given counter as a shard.  Shards
+   * built independently, for example on different machines, can later be
+   * combined with <code>merge()</code>.  Only the alphabet and settings
+   * of this model are used, its counts are not included in the shard.
+   * @param filename output filename
+   * @param compress should the shard be gzip compressed
+   * @param counter counter obtained from <code>counter()</code>
+   * @throws IOException if an I/O error occurs
+   */
+  void saveShard(final String filename, final boolean compress, final FourGramCounter counter) throws IOException {
+    final long[] counts = counter.finish();
+    new ModelFile(ModelFile.KIND_SHARD, MODEL_ORDER, mAlphabetBits, mUpcase, counter.getTotalTraining(), mAlphabet, mDate, mBuildCommand, null).writeShard(filename, compress, counts);
+  }
+
+  /**
+   * Construct a model by summing the counts of a collection of shards.
+   * All the shards must have the same alphabet and settings.  Counts are
+   * scaled once, after all shards have been summed.
+   * @param shards file names of shards
+   * @return model
+   * @throws IOException if an I/O error occurs or the shards are incompatible
+   */
+  static FourGramAlphabetModel merge(final Collection<String> shards) throws IOException {
+    FourGramAlphabetModel model = null;
+    long[] counts = null;
+    long totalTraining = 0;
+    for (final String shard : shards) {
+      try (final InputStream in = ModelFile.uncompressed(new FileInputStream(shard))) {
+        if (!ModelFile.isModelFile(in)) {
+          throw new IOException(shard + " is not a model shard");
+        }
+        final long[] entries = new long[1];
+        final ModelFile header = ModelFile.readHeader(in, entries);
+        if (header.getKind() != ModelFile.KIND_SHARD) {
+          throw new IOException(shard + " is not a model shard");
+        }
+        if (header.getOrder() != MODEL_ORDER) {
+          throw new IOException(shard + " has order " + header.getOrder() + " but expected " + MODEL_ORDER);
+        }
+        if (model == null) {
+          // The first shard determines the alphabet
+          model = new FourGramAlphabetModel(header.getAlphabet());
+          model.setUpcase(header.isUpcase());
+          counts = new long[model.mCounts.length];
+        } else if (!model.mAlphabet.equals(header.getAlphabet()) || model.mUpcase != header.isUpcase()) {
+          throw new IOException(shard + " has a different alphabet or case handling to earlier shards");
+        }
+        if (entries[0] != counts.length) {
+          throw new IOException(shard + " has a table of the wrong size");
+        }
+        ModelFile.addCounts(in, counts);
+        totalTraining += header.getTotalTraining();
+      }
+    }
+    if (model == null) {
+      throw new IllegalArgumentException("No shards to merge");
+    }
+    model.add(counts, totalTraining);
+    return model;
   }
 
   private void downScale() {
@@ -304,6 +780,46 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
     }
   }
 
+  // As for downScale(), but for 64-bit counts, returning the largest total
+  private long downScale(final long[] counts) {
+    for (int k = 0; k < counts.length; ++k) {
+      counts[k] = (counts[k] + 1) >>> 1;
+    }
+    final int t = mAlphabet.length();
+    long max = 0;
+    for (int k = 0; k < counts.length; k += mAlphabetSize) {
+      long s = 0;
+      for (int j = 1; j <= t; ++j) {
+        s += counts[k + j];
+      }
+      counts[k] = s;
+      max = Math.max(max, s);
+    }
+    return max;
+  }
+
+  private static QuantizedFourGramModel quantize(final CompiledFourGramModel compiled, final CliFlags flags) {
+    final QuantizedFourGramModel quantized = compiled.quantize((Integer) flags.getValue(QUANTIZE_FLAG));
+    System.out.println(quantized.report(compiled));
+    return quantized;
+  }
+
+  // Save in the form selected by the flags
+  private static void save(final FourGramAlphabetModel model, final String modelName, final CliFlags flags) throws IOException {
+    if (flags.isSet(QUANTIZE_FLAG)) {
+      quantize(model.compile(), flags).saveModel(modelName, flags.isSet(GZIP_FLAG));
+    } else if (flags.isSet(COMPILE_FLAG)) {
+      model.compile().saveModel(modelName, flags.isSet(GZIP_FLAG));
+    } else {
+      model.saveModel(modelName, flags.isSet(GZIP_FLAG));
+    }
+  }
+
+  // Only four-gram models can be compiled or quantized
+  private static boolean isFourGramModel(final Entropy model) {
+    return model instanceof FourGramAlphabetModel || model instanceof CompiledFourGramModel || model instanceof QuantizedFourGramModel;
+  }
+
   /**
    * Build or query a 4-gram PPMC model.
    * @param args source files
@@ -313,35 +829,107 @@ public class FourGramAlphabetModel implements Entropy, Serializable {
     final CliFlags flags = new CliFlags("Four-gram entropy models");
     flags.registerRequired('m', MODEL_FLAG, String.class, "model", "name of model to load or build");
     flags.registerOptional('b', BUILD_FLAG, "build model and save in specified file name");
+    flags.registerOptional(SHARD_FLAG, "when building, save unscaled counts as a shard for later merging");
+    flags.registerOptional(MERGE_FLAG, "build model by merging the shards given as input files");
     flags.registerOptional('u', UPCASE_FLAG, "convert lowercase letters to uppercase");
     flags.registerOptional('V', VERSION_FLAG, "display model information");
+    flags.registerOptional('c', COMPILE_FLAG, "precompute all code lengths (the compiled form is saved when building or saving)");
+    flags.registerOptional('q', QUANTIZE_FLAG, Integer.class, "int", "precompute all code lengths quantized to 8 or 16 bits, reporting the accuracy (the quantized form is saved when building or saving)");
+    flags.registerOptional('s', SAVE_FLAG, String.class, "model", "save the loaded model in the current file format (use to upgrade older models)");
+    flags.registerOptional('z', GZIP_FLAG, "compress saved models (compressed models cannot be memory mapped)");
+    flags.registerOptional('t', THREADS_FLAG, Integer.class, "int", "build using this many threads (each thread needs a table of 8 * 2^(4 * bits) bytes, where bits is the number of bits per symbol, 6 for alphabets of 16 to 31 symbols giving 128 MB)");
     flags.registerOptional('a', ALPHABET_FLAG, String.class, "string", "alphabet of characters to build", "ABCDEFGHIJKLMNOPQRSTUVWXYZ ");
     flags.registerRequired(String.class, "file", "input files to build or compute entropy for, or - for standard input")
       .setMinCount(0)
       .setMaxCount(Integer.MAX_VALUE);
+    flags.setValidator(f -> {
+      if (f.isSet(BUILD_FLAG) && f.isSet(MERGE_FLAG)) {
+        f.setParseMessage("Do not specify both --" + BUILD_FLAG + " and --" + MERGE_FLAG + ".");
+        return false;
+      }
+      if (f.isSet(SHARD_FLAG) && !f.isSet(BUILD_FLAG)) {
+        f.setParseMessage("--" + SHARD_FLAG + " can only be used with --" + BUILD_FLAG + ".");
+        return false;
+      }
+      if (f.isSet(QUANTIZE_FLAG) && (Integer) f.getValue(QUANTIZE_FLAG) != Byte.SIZE && (Integer) f.getValue(QUANTIZE_FLAG) != Short.SIZE) {
+        f.setParseMessage("--" + QUANTIZE_FLAG + " must be 8 or 16.");
+        return false;
+      }
+      return true;
+    });
     flags.setFlags(args);
 
     final String modelName = (String) flags.getValue(MODEL_FLAG);
-    if (flags.isSet(BUILD_FLAG)) {
+    if (flags.isSet(MERGE_FLAG)) {
+      final List<String> shards = new ArrayList<>();
+      for (final Object shard : flags.getAnonymousValues(0)) {
+        shards.add((String) shard);
+      }
+      final FourGramAlphabetModel model = merge(shards);
+      model.setBuildCommand(Arrays.toString(args));
+      save(model, modelName, flags);
+      if (flags.isSet(VERSION_FLAG)) {
+        System.out.println(model);
+      }
+      System.out.println("Model saved.");
+    } else if (flags.isSet(BUILD_FLAG)) {
       final FourGramAlphabetModel model = new FourGramAlphabetModel((String) flags.getValue(ALPHABET_FLAG));
       model.setUpcase(flags.isSet(UPCASE_FLAG));
       model.setBuildCommand(Arrays.toString(args));
+      final FourGramCounter counter = flags.isSet(THREADS_FLAG) || flags.isSet(SHARD_FLAG) ? model.counter(flags.isSet(THREADS_FLAG) ? (Integer) flags.getValue(THREADS_FLAG) : 1) : null;
       for (final Object inputFile : flags.getAnonymousValues(0)) {
         System.out.println("Adding: " + inputFile);
         try (final InputStream fis = "-".equals(inputFile) ? System.in : IOUtils.getStream((String) inputFile)) {
-          model.add(fis);
+          if (counter != null) {
+            counter.add(fis);
+          } else {
+            model.add(fis);
+          }
         }
       }
-      model.saveModel(modelName);
+      if (flags.isSet(SHARD_FLAG)) {
+        model.saveShard(modelName, flags.isSet(GZIP_FLAG), counter);
+        System.out.println("Shard saved.");
+        return;
+      }
+      if (counter != null) {
+        model.add(counter);
+      }
+      save(model, modelName, flags);
       if (flags.isSet(VERSION_FLAG)) {
         System.out.println(model);
       }
       System.out.println("Model saved.");
     } else {
-      final Entropy model = loadModel(modelName);
+      final Entropy loaded = loadModel(modelName);
+      if ((flags.isSet(COMPILE_FLAG) || flags.isSet(QUANTIZE_FLAG)) && !isFourGramModel(loaded)) {
+        System.err.println("--" + COMPILE_FLAG + " and --" + QUANTIZE_FLAG + " require a four-gram model, but " + modelName + " is a " + loaded.getClass().getSimpleName() + ".");
+        return;
+      }
+      Entropy model = flags.isSet(COMPILE_FLAG) && loaded instanceof FourGramAlphabetModel ? ((FourGramAlphabetModel) loaded).compile() : loaded;
+      if (flags.isSet(QUANTIZE_FLAG) && !(model instanceof QuantizedFourGramModel)) {
+        model = quantize(model instanceof FourGramAlphabetModel ? ((FourGramAlphabetModel) model).compile() : (CompiledFourGramModel) model, flags);
+      }
       if (flags.isSet(VERSION_FLAG)) {
         System.out.println(model.toString());
       }
+      if (flags.isSet(SAVE_FLAG)) {
+        final String saveName = (String) flags.getValue(SAVE_FLAG);
+        if (model instanceof FourGramAlphabetModel) {
+          ((FourGramAlphabetModel) model).saveModel(saveName, flags.isSet(GZIP_FLAG));
+        } else if (model instanceof QuantizedFourGramModel) {
+          ((QuantizedFourGramModel) model).saveModel(saveName, flags.isSet(GZIP_FLAG));
+        } else if (model instanceof CompiledFourGramModel) {
+          ((CompiledFourGramModel) model).saveModel(saveName, flags.isSet(GZIP_FLAG));
+        } else if (model instanceof HashedContextModel) {
+          ((HashedContextModel) model).saveModel(saveName, flags.isSet(GZIP_FLAG));
+        } else {
+          System.err.println("Cannot save a " + model.getClass().getSimpleName() + " in the model file format.");
+          return;
+        }
+        System.out.println("Model saved.");
+        return;
+      }
       try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
         String line;
         while ((line = r.readLine()) != null) {
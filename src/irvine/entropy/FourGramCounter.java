@@ -0,0 +1,223 @@
+package irvine.entropy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Counts the n-grams of training text for a <code>FourGramAlphabetModel</code>
+ * using several threads.  Input is read in large blocks which are handed
+ * to worker threads, each worker accumulating counts into its own table
+ * of 64-bit counts.  When all the input has been added, the tables are
+ * summed into a single table.  Because the counts are 64-bit, no scaling
+ * is needed while counting.
+ *
+ * Each block is accompanied by the context (the last few symbols of the
+ * alphabet) preceding it, so that n-grams spanning a block boundary are
+ * counted exactly as they would be by a sequential pass.
+ * @author Sean A. Irvine
+ */
+final class FourGramCounter {
+
+  static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+  /** A block of input and the context preceding it. */
+  private static final class Chunk {
+    private final byte[] mBuffer;
+    private final int mLength;
+    private final int mContext;
+
+    private Chunk(final byte[] buffer, final int length, final int context) {
+      mBuffer = buffer;
+      mLength = length;
+      mContext = context;
+    }
+  }
+
+  private static final Chunk END = new Chunk(null, 0, 0);
+
+  private final int[] mCodes;
+  private final int mOrder;
+  private final int mAlphabetBits;
+  private final int mSymbolMask;
+  private final int mContextMask;
+  private final int mTailMask;
+  private final BlockingQueue<Chunk> mWork;
+  private final BlockingQueue<byte[]> mFree;
+  private final Worker[] mWorkers;
+  private boolean mFinished = false;
+
+  /** Counts the chunks it is given into a private table. */
+  private final class Worker extends Thread {
+
+    private final long[] mCounts;
+    private long mTotalTraining = 0;
+
+    private Worker(final int tableSize) {
+      mCounts = new long[tableSize];
+      setDaemon(true);
+    }
+
+    private void count(final byte[] buf, final int len, final int start) {
+      final long[] counts = mCounts;
+      int context = start;
+      for (int k = 0; k < len; ++k) {
+        final int w = mCodes[buf[k] & 0xFF];
+        if (w != 0) { // ignore symbols outside the alphabet
+          ++mTotalTraining;
+          context = ((context << mAlphabetBits) | w) & mContextMask;
+          for (int j = 0, m = mSymbolMask; j < mOrder; ++j) {
+            ++counts[context & m];
+            ++counts[context & m & ~mSymbolMask];
+            m <<= mAlphabetBits;
+            m += mSymbolMask;
+          }
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        Chunk chunk;
+        while ((chunk = mWork.take()) != END) {
+          count(chunk.mBuffer, chunk.mLength, chunk.mContext);
+          mFree.put(chunk.mBuffer);
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Construct a new counter.
+   * @param codes code for each byte value, 0 for bytes outside the alphabet
+   * @param order order of the model (length of the n-grams counted)
+   * @param alphabetBits number of bits in a symbol code
+   * @param threads number of counting threads
+   * @param chunkSize number of bytes in each block of input
+   */
+  FourGramCounter(final int[] codes, final int order, final int alphabetBits, final int threads, final int chunkSize) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one thread is required");
+    }
+    mCodes = codes;
+    mOrder = order;
+    mAlphabetBits = alphabetBits;
+    mSymbolMask = (1 << alphabetBits) - 1;
+    mContextMask = (1 << (alphabetBits * order)) - 1;
+    mTailMask = (1 << (alphabetBits * (order - 1))) - 1;
+    // Enough blocks that reading can proceed while every worker is busy
+    final int blocks = 2 * threads;
+    mWork = new ArrayBlockingQueue<>(blocks + threads);
+    mFree = new ArrayBlockingQueue<>(blocks);
+    for (int k = 0; k < blocks; ++k) {
+      mFree.add(new byte[chunkSize]);
+    }
+    mWorkers = new Worker[threads];
+    for (int k = 0; k < threads; ++k) {
+      mWorkers[k] = new Worker(mContextMask + 1);
+    }
+    for (final Worker worker : mWorkers) {
+      worker.start();
+    }
+  }
+
+  // Context at the end of a block, given the context before the block.
+  // Only the last order - 1 symbols are needed, so scan backwards.
+  private int endContext(final int context, final byte[] buf, final int len) {
+    int tail = 0;
+    int n = 0;
+    for (int k = len - 1; k >= 0 && n < mOrder - 1; --k) {
+      final int w = mCodes[buf[k] & 0xFF];
+      if (w != 0) {
+        tail |= w << (n++ * mAlphabetBits);
+      }
+    }
+    return n == mOrder - 1 ? tail : ((context << (n * mAlphabetBits)) | tail) & mTailMask;
+  }
+
+  private static int fill(final InputStream in, final byte[] buf) throws IOException {
+    int len = 0;
+    int r;
+    while (len < buf.length && (r = in.read(buf, len, buf.length - len)) != -1) {
+      len += r;
+    }
+    return len;
+  }
+
+  /**
+   * Count the n-grams in the given stream.  The stream is read to its end,
+   * but not closed.  As with the sequential build, each stream is counted
+   * as if it were preceded by an empty context.
+   * @param in stream to count
+   * @throws IOException if an I/O error occurs
+   */
+  void add(final InputStream in) throws IOException {
+    if (mFinished) {
+      throw new IllegalStateException("Counting has finished");
+    }
+    try {
+      int context = 0;
+      while (true) {
+        final byte[] buf = mFree.take();
+        final int len = fill(in, buf);
+        if (len == 0) {
+          mFree.put(buf);
+          return;
+        }
+        mWork.put(new Chunk(buf, len, context));
+        context = endContext(context, buf, len);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while counting", e);
+    }
+  }
+
+  /**
+   * Wait for all counting to complete and return the combined counts.
+   * After this no further input can be added.
+   * @return counts indexed by context
+   * @throws IOException if interrupted while waiting for counting to complete
+   */
+  long[] finish() throws IOException {
+    if (!mFinished) {
+      mFinished = true;
+      try {
+        for (int k = 0; k < mWorkers.length; ++k) {
+          mWork.put(END);
+        }
+        for (final Worker worker : mWorkers) {
+          worker.join();
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while counting", e);
+      }
+      final long[] counts = mWorkers[0].mCounts;
+      for (int k = 1; k < mWorkers.length; ++k) {
+        final long[] c = mWorkers[k].mCounts;
+        for (int j = 0; j < counts.length; ++j) {
+          counts[j] += c[j];
+        }
+      }
+    }
+    return mWorkers[0].mCounts;
+  }
+
+  /**
+   * Return the number of symbols counted by all threads.  Only meaningful
+   * after <code>finish()</code> has been called.
+   * @return number of training symbols
+   */
+  long getTotalTraining() {
+    long t = 0;
+    for (final Worker worker : mWorkers) {
+      t += worker.mTotalTraining;
+    }
+    return t;
+  }
+}
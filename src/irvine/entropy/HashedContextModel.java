@@ -0,0 +1,515 @@
+package irvine.entropy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import irvine.util.CliFlags;
+import irvine.util.Date;
+import irvine.util.IOUtils;
+import irvine.util.IntegerUtils;
+
+/**
+ * Alphabetic character model of arbitrary order, up to 8, using PPMC with
+ * exclusions, in which the contexts are held in a hash table of fixed size.
+ * Scoring follows <code>FourGramAlphabetModel</code>, but unlike that model
+ * the memory used is chosen when the model is constructed rather than being
+ * determined by the order, so that orders beyond 4 are practical.
+ *
+ * @author Sean A. Irvine
+ */
+public final class HashedContextModel implements Entropy {
+
+  // The table is an array of buckets, each of which holds the counts for
+  // a single context.  A bucket has one 16-bit entry per symbol code, the
+  // entry for code 0 (which is not a symbol) is used for a tag verifying
+  // which context occupies the bucket.  For alphabets of up to 32 symbols
+  // a bucket is therefore exactly 64 bytes, typically one cache line.
+  //
+  // A context is hashed to a bucket and the next few buckets are probed.
+  // When all of these are occupied by other contexts during training, the
+  // one with the smallest total count is replaced.  Tags are 16-bit, so an
+  // unseen context is occasionally mistaken for another context.  Counts
+  // are rescaled a bucket at a time when a count would overflow.
+
+  private static final int MAX_ORDER = 8;
+  private static final int MAX_ALPHABET_BITS = 7;
+  private static final int MAX_COUNT = 0xFFFF;
+  private static final int PROBES = 4;
+  private static final long MAX_ENTRIES = 1L << 30;
+  private static final int BUFFER_SIZE = 65536;
+  private static final String BUILD_FLAG = "build";
+  private static final String MODEL_FLAG = "model";
+  private static final String ALPHABET_FLAG = "alphabet";
+  private static final String UPCASE_FLAG = "upcase";
+  private static final String VERSION_FLAG = "version";
+  private static final String GZIP_FLAG = "gzip";
+  private static final String ORDER_FLAG = "order";
+  private static final String MEMORY_FLAG = "memory";
+
+  // Per-thread exclusion scratch space, large enough for any permitted alphabet
+  private static final ThreadLocal<boolean[]> EXCLUSIONS = ThreadLocal.withInitial(() -> new boolean[1 << MAX_ALPHABET_BITS]);
+
+  private final String mDate;
+  private final String mAlphabet;
+  private final int[] mCharToCode;
+  private final int mOrder;
+  private final int mAlphabetBits;
+  private final int mAlphabetSize;    // power of 2 >= |alphabet| + 1, also the bucket size
+  private final int mBucketMask;
+  private final long mHistoryMask;    // mask for order - 1 symbols
+  private final long[] mLengthMask;   // mask for each length of context
+  private final long[] mSentinel;     // distinguishes contexts of different lengths
+  private final CharBuffer mTable;
+  private final boolean mWritable;
+  private boolean mUpcase = false;
+  private String mBuildCommand = null;
+  private long mTotalTraining = 0;
+  private long mEvictions = 0;
+
+  private HashedContextModel(final String alphabet, final int order, final String date, final CharBuffer table, final boolean writable) {
+    if (order < 1 || order > MAX_ORDER) {
+      throw new IllegalArgumentException("Order must be between 1 and " + MAX_ORDER);
+    }
+    mDate = date;
+    mAlphabet = alphabet;
+    mCharToCode = FourGramAlphabetModel.buildCharToCodeMapping(alphabet);
+    mOrder = order;
+    mAlphabetBits = bits(alphabet);
+    if (mAlphabetBits > MAX_ALPHABET_BITS) {
+      throw new IllegalArgumentException("Alphabet too large");
+    }
+    mAlphabetSize = 1 << mAlphabetBits;
+    final int buckets = table.limit() >>> mAlphabetBits;
+    if (Integer.bitCount(buckets) != 1 || buckets < PROBES || buckets << mAlphabetBits != table.limit()) {
+      throw new IllegalArgumentException("Table does not match alphabet");
+    }
+    mBucketMask = buckets - 1;
+    mHistoryMask = (1L << (mAlphabetBits * (order - 1))) - 1;
+    mLengthMask = new long[order];
+    mSentinel = new long[order];
+    for (int len = 0; len < order; ++len) {
+      mSentinel[len] = 1L << (mAlphabetBits * len);
+      mLengthMask[len] = mSentinel[len] - 1;
+    }
+    mTable = table;
+    mWritable = writable;
+  }
+
+  /**
+   * Construct a new empty model.
+   * @param alphabet characters of the alphabet
+   * @param order model order, the number of characters in a context including the predicted character
+   * @param memory approximate number of bytes to use for the table, rounded down to a power of 2
+   * @exception IllegalArgumentException if the order, alphabet, or memory is unsuitable.
+   */
+  public HashedContextModel(final String alphabet, final int order, final long memory) {
+    this(alphabet, order, Date.now(), CharBuffer.wrap(new char[entries(alphabet, memory)]), true);
+  }
+
+  HashedContextModel(final ModelFile file) {
+    this(file.getAlphabet(), file.getOrder(), file.getDate(), file.getChars(), false);
+    mUpcase = file.isUpcase();
+    mBuildCommand = file.getBuildCommand();
+    mTotalTraining = file.getTotalTraining();
+  }
+
+  // Number of bits needed to hold the symbol codes 1 to |alphabet|
+  private static int bits(final String alphabet) {
+    return IntegerUtils.lg(alphabet.length());
+  }
+
+  // Number of table entries in the largest power of 2 buckets fitting in memory
+  private static int entries(final String alphabet, final long memory) {
+    final int bucketBytes = Character.BYTES << bits(alphabet);
+    final long buckets = Long.highestOneBit(memory / bucketBytes);
+    if (buckets < PROBES) {
+      throw new IllegalArgumentException("Too little memory for model: " + memory);
+    }
+    final long entries = buckets * bucketBytes / Character.BYTES;
+    if (entries > MAX_ENTRIES) {
+      throw new IllegalArgumentException("Too much memory for model: " + memory);
+    }
+    return (int) entries;
+  }
+
+  /**
+   * Save the current model.  An uncompressed model can subsequently be
+   * memory mapped when it is loaded with <code>FourGramAlphabetModel.loadModel</code>.
+   * @param filename output filename
+   * @param compress should the model be gzip compressed
+   * @throws IOException if an I/O error occurs
+   */
+  void saveModel(final String filename, final boolean compress) throws IOException {
+    new ModelFile(ModelFile.KIND_HASHED_COUNTS, mOrder, mAlphabetBits, mUpcase, mTotalTraining, mAlphabet, mDate, mBuildCommand, null).writeChars(filename, compress, mTable);
+  }
+
+  @Override
+  public String toString() {
+    return "Hashed order-" + mOrder + " model built on " + mDate + " training size " + mTotalTraining + "\n" + mBuildCommand;
+  }
+
+  public boolean isUpcase() {
+    return mUpcase;
+  }
+
+  public void setUpcase(final boolean upcase) {
+    mUpcase = upcase;
+  }
+
+  public String getBuildCommand() {
+    return mBuildCommand;
+  }
+
+  public void setBuildCommand(final String buildCommand) {
+    mBuildCommand = buildCommand;
+  }
+
+  /**
+   * Get the alphabet used by this model.
+   * @return the alphabet
+   */
+  public String getAlphabet() {
+    return mAlphabet;
+  }
+
+  /**
+   * Get the order of this model.
+   * @return the order
+   */
+  @Override
+  public int getOrder() {
+    return mOrder;
+  }
+
+  /**
+   * Return the size of the table.
+   * @return size in bytes
+   */
+  public long bytes() {
+    return (long) Character.BYTES * mTable.limit();
+  }
+
+  /**
+   * Return the number of contexts currently held by the table.
+   * @return number of contexts
+   */
+  public long contexts() {
+    long n = 0;
+    for (int k = 0; k < mTable.limit(); k += mAlphabetSize) {
+      if (mTable.get(k) != 0) {
+        ++n;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Return the number of contexts which have been replaced in order to
+   * make room for other contexts during training.
+   * @return number of replaced contexts
+   */
+  public long getEvictions() {
+    return mEvictions;
+  }
+
+  private int charToCode(final int s) {
+    return mCharToCode[mUpcase ? Character.toUpperCase(s) : s];
+  }
+
+  private static long mix(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 29;
+    h *= 0xBF58476D1CE4E5B9L;
+    return h ^ (h >>> 32);
+  }
+
+  private static char tag(final long hash) {
+    return (char) Math.max(1, hash >>> 48);
+  }
+
+  private long key(final long history, final int length) {
+    return (history & mLengthMask[length]) | mSentinel[length];
+  }
+
+  // Start of the bucket holding the given context, or -1 if it is not present
+  private int find(final long key) {
+    final long h = mix(key);
+    final char tag = tag(h);
+    for (int p = 0; p < PROBES; ++p) {
+      final int base = (((int) h + p) & mBucketMask) << mAlphabetBits;
+      final char t = mTable.get(base);
+      if (t == tag) {
+        return base;
+      }
+      if (t == 0) {
+        // Buckets are never emptied, so the context cannot be further along
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private long total(final int base) {
+    long total = 0;
+    for (int j = 1; j < mAlphabetSize; ++j) {
+      total += mTable.get(base + j);
+    }
+    return total;
+  }
+
+  // Start of the bucket for the given context, claiming a bucket if necessary
+  private int claim(final long key) {
+    final long h = mix(key);
+    final char tag = tag(h);
+    int victim = -1;
+    long victimTotal = Long.MAX_VALUE;
+    for (int p = 0; p < PROBES; ++p) {
+      final int base = (((int) h + p) & mBucketMask) << mAlphabetBits;
+      final char t = mTable.get(base);
+      if (t == tag) {
+        return base;
+      }
+      if (t == 0) {
+        mTable.put(base, tag);
+        return base;
+      }
+      final long total = total(base);
+      if (total < victimTotal) {
+        victimTotal = total;
+        victim = base;
+      }
+    }
+    for (int j = 1; j < mAlphabetSize; ++j) {
+      mTable.put(victim + j, (char) 0);
+    }
+    mTable.put(victim, tag);
+    ++mEvictions;
+    return victim;
+  }
+
+  private void increment(final long key, final int w) {
+    final int base = claim(key);
+    if (mTable.get(base + w) == MAX_COUNT) {
+      // Halve the counts of this context, rounding up so no count becomes zero
+      for (int j = 1; j < mAlphabetSize; ++j) {
+        mTable.put(base + j, (char) ((mTable.get(base + j) + 1) >>> 1));
+      }
+    }
+    mTable.put(base + w, (char) (mTable.get(base + w) + 1));
+  }
+
+  void add(final InputStream in) throws IOException {
+    if (!mWritable) {
+      throw new UnsupportedOperationException("Cannot add to a loaded model");
+    }
+    try (final InputStream is = in) {
+      final byte[] buf = new byte[BUFFER_SIZE];
+      int len;
+      long history = 0;
+      int length = 0;
+      while ((len = is.read(buf)) != -1) {
+        for (int j = 0; j < len; ++j) {
+          final int w = charToCode(buf[j] & 0xFF);
+          if (w != 0) { // ignore symbols outside the alphabet
+            ++mTotalTraining;
+            for (int k = 0; k <= length; ++k) {
+              increment(key(history, k), w);
+            }
+            history = ((history << mAlphabetBits) | w) & mHistoryMask;
+            if (length < mOrder - 1) {
+              ++length;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // Cost of symbol w following the given number of symbols of history,
+  // escaping from the longest context present down to shorter contexts
+  private double entropy(final long history, final int length, final int w, final boolean[] exclusions) {
+    double e = 0;
+    if (w != 0) {
+      Arrays.fill(exclusions, 0, mAlphabetSize, false);
+      for (int k = length; k >= 0; --k) {
+        final int base = find(key(history, k));
+        if (base >= 0) {
+          long parentCount = 0;
+          for (int j = 1; j < mAlphabetSize; ++j) {
+            final int c = mTable.get(base + j);
+            if (c != 0 && !exclusions[j]) {
+              parentCount += c;
+              exclusions[j] = true;
+            }
+          }
+          final int count = mTable.get(base + w);
+          if (count != 0) {
+            return e + Math.log(parentCount + 1) - Math.log(count);
+          }
+          e += Math.log(parentCount + 1);
+        }
+      }
+    }
+    // Symbol never seen, or not in the alphabet
+    final int root = find(key(0, 0));
+    return e + Math.log((root < 0 ? 0 : total(root)) + 1);
+  }
+
+  @Override
+  public double entropy(final String text) {
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return entropy(buf, off, len, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    final boolean[] exclusions = EXCLUSIONS.get();
+    long history = 0;
+    int length = 0;
+    double e = 0;
+    for (int k = 0; k < text.length(); ++k) {
+      final int w = charToCode(text.charAt(k));
+      e += entropy(history, length, w, exclusions);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+      // A symbol outside the alphabet breaks the context
+      history = ((history << mAlphabetBits) | w) & mHistoryMask;
+      length = w == 0 ? 0 : Math.min(length + 1, mOrder - 1);
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    final boolean[] exclusions = EXCLUSIONS.get();
+    long history = 0;
+    int length = 0;
+    double e = 0;
+    for (int k = off; k < off + len; ++k) {
+      final int w = charToCode(buf[k]);
+      e += entropy(history, length, w, exclusions);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+      history = ((history << mAlphabetBits) | w) & mHistoryMask;
+      length = w == 0 ? 0 : Math.min(length + 1, mOrder - 1);
+    }
+    return e;
+  }
+
+  /** Incremental scoring directly on the model context. */
+  private final class ModelCursor implements Cursor {
+
+    private long mHistory;
+    private int mLength;
+    private double mEntropy;
+
+    private ModelCursor(final long history, final int length, final double entropy) {
+      mHistory = history;
+      mLength = length;
+      mEntropy = entropy;
+    }
+
+    @Override
+    public double append(final char c) {
+      final int w = charToCode(c);
+      final double e = HashedContextModel.this.entropy(mHistory, mLength, w, EXCLUSIONS.get());
+      mHistory = ((mHistory << mAlphabetBits) | w) & mHistoryMask;
+      mLength = w == 0 ? 0 : Math.min(mLength + 1, mOrder - 1);
+      mEntropy += e;
+      return e;
+    }
+
+    @Override
+    public double entropy() {
+      return mEntropy;
+    }
+
+    @Override
+    public Cursor copy() {
+      return new ModelCursor(mHistory, mLength, mEntropy);
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new ModelCursor(0, 0, 0);
+  }
+
+  /**
+   * Build or query a hashed context model.
+   * @param args source files
+   * @exception IOException if an I/O error occurs
+   */
+  public static void main(final String[] args) throws IOException {
+    final CliFlags flags = new CliFlags("Hashed context entropy models");
+    flags.registerRequired('m', MODEL_FLAG, String.class, "model", "name of model to load or build");
+    flags.registerOptional('b', BUILD_FLAG, "build model and save in specified file name");
+    flags.registerOptional('O', ORDER_FLAG, Integer.class, "int", "order of model to build", 6);
+    flags.registerOptional('M', MEMORY_FLAG, Integer.class, "MB", "memory for the model being built, in megabytes", 256);
+    flags.registerOptional('u', UPCASE_FLAG, "convert lowercase letters to uppercase");
+    flags.registerOptional('V', VERSION_FLAG, "display model information");
+    flags.registerOptional('z', GZIP_FLAG, "compress saved models (compressed models cannot be memory mapped)");
+    flags.registerOptional('a', ALPHABET_FLAG, String.class, "string", "alphabet of characters to build", "ABCDEFGHIJKLMNOPQRSTUVWXYZ ");
+    flags.registerRequired(String.class, "file", "input files to build, or - for standard input")
+      .setMinCount(0)
+      .setMaxCount(Integer.MAX_VALUE);
+    flags.setValidator(f -> {
+      final int order = (Integer) f.getValue(ORDER_FLAG);
+      if (order < 1 || order > MAX_ORDER) {
+        f.setParseMessage("--" + ORDER_FLAG + " must be between 1 and " + MAX_ORDER + ".");
+        return false;
+      }
+      if ((Integer) f.getValue(MEMORY_FLAG) < 1) {
+        f.setParseMessage("--" + MEMORY_FLAG + " should be positive.");
+        return false;
+      }
+      return true;
+    });
+    flags.setFlags(args);
+
+    final String modelName = (String) flags.getValue(MODEL_FLAG);
+    if (flags.isSet(BUILD_FLAG)) {
+      final HashedContextModel model = new HashedContextModel((String) flags.getValue(ALPHABET_FLAG), (Integer) flags.getValue(ORDER_FLAG), (Integer) flags.getValue(MEMORY_FLAG) * (1L << 20));
+      model.setUpcase(flags.isSet(UPCASE_FLAG));
+      model.setBuildCommand(Arrays.toString(args));
+      for (final Object inputFile : flags.getAnonymousValues(0)) {
+        System.out.println("Adding: " + inputFile);
+        model.add("-".equals(inputFile) ? System.in : IOUtils.getStream((String) inputFile));
+      }
+      model.saveModel(modelName, flags.isSet(GZIP_FLAG));
+      final long buckets = model.mBucketMask + 1L;
+      final long contexts = model.contexts();
+      System.out.println(String.format("%d contexts in %d buckets (%.1f%% full), %d replaced", contexts, buckets, 100.0 * contexts / buckets, model.getEvictions()));
+      if (flags.isSet(VERSION_FLAG)) {
+        System.out.println(model);
+      }
+      System.out.println("Model saved.");
+    } else {
+      final Entropy model = FourGramAlphabetModel.loadModel(modelName);
+      if (flags.isSet(VERSION_FLAG)) {
+        System.out.println(model.toString());
+      }
+      try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
+        String line;
+        while ((line = r.readLine()) != null) {
+          System.out.println(model.entropy(line) + " " + line);
+        }
+      }
+    }
+  }
+}
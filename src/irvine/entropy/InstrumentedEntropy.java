@@ -0,0 +1,291 @@
+package irvine.entropy;
+
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects statistics on the use of an underlying model: the number of
+ * evaluations, the number of characters scored, and the time spent in the
+ * model.  For models able to report how their predictions are made (the
+ * four-gram and n-gram models), a sample of the evaluations is also
+ * profiled, counting the predictions made at each order of context and the
+ * escapes from each order.  Profiling rescores the sampled texts, but this
+ * is excluded from the timings.
+ *
+ * Statistics are available directly, or through JMX after calling
+ * <code>register()</code>.  Since the statistics are collected by this
+ * wrapper, an uninstrumented model incurs no cost at all.  This class is
+ * thread-safe provided the underlying model is.
+ *
+ * @author Sean A. Irvine
+ */
+public final class InstrumentedEntropy implements Entropy, InstrumentedEntropyMBean {
+
+  /** Default number of evaluations between profiled evaluations. */
+  public static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+  private final Entropy mModel;
+  private final Profiled mProfiled;
+  private final int mSampleInterval;
+  private final AtomicLong mEvaluations = new AtomicLong();
+  private final LongAdder mCharacters = new LongAdder();
+  private final LongAdder mNanoseconds = new LongAdder();
+  private final long[] mHits;
+  private final long[] mEscapes;
+  private volatile long mStart = System.nanoTime();
+
+  /**
+   * Instrument the given model.
+   * @param model underlying model
+   * @param sampleInterval number of evaluations between profiled evaluations
+   * @exception IllegalArgumentException if the sample interval is not positive.
+   */
+  public InstrumentedEntropy(final Entropy model, final int sampleInterval) {
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("Bad sample interval: " + sampleInterval);
+    }
+    mModel = model;
+    mProfiled = model instanceof Profiled ? (Profiled) model : null;
+    mSampleInterval = sampleInterval;
+    final int length = mProfiled == null ? 0 : mProfiled.profileLength();
+    mHits = new long[length];
+    mEscapes = new long[length];
+  }
+
+  /**
+   * Instrument the given model, profiling every 16th evaluation.
+   * @param model underlying model
+   */
+  public InstrumentedEntropy(final Entropy model) {
+    this(model, DEFAULT_SAMPLE_INTERVAL);
+  }
+
+  /**
+   * Return the underlying model.
+   * @return the model
+   */
+  public Entropy getModel() {
+    return mModel;
+  }
+
+  /**
+   * Register this model with the platform MBean server, under the name
+   * <code>irvine.entropy:type=InstrumentedEntropy,name=</code><i>name</i>.
+   * @param name name distinguishing this model from other instrumented models
+   * @return the name under which the model was registered
+   * @exception JMException if the model cannot be registered.
+   */
+  public ObjectName register(final String name) throws JMException {
+    final ObjectName objectName = new ObjectName("irvine.entropy:type=InstrumentedEntropy,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  // Count evaluations, returning true if one of them should be profiled
+  private boolean count(final long n) {
+    final long after = mEvaluations.addAndGet(n);
+    return mProfiled != null && after / mSampleInterval != (after - n) / mSampleInterval;
+  }
+
+  private void profile(final CharSequence text) {
+    final long[] hits = new long[mHits.length];
+    final long[] escapes = new long[mEscapes.length];
+    mProfiled.profile(text, hits, escapes);
+    synchronized (this) {
+      for (int k = 0; k < hits.length; ++k) {
+        mHits[k] += hits[k];
+        mEscapes[k] += escapes[k];
+      }
+    }
+  }
+
+  private double record(final long start, final long characters, final double e) {
+    mNanoseconds.add(System.nanoTime() - start);
+    mCharacters.add(characters);
+    return e;
+  }
+
+  @Override
+  public double entropy(final String text) {
+    if (count(1)) {
+      profile(text);
+    }
+    final long start = System.nanoTime();
+    return record(start, text.length(), mModel.entropy(text));
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    if (count(1)) {
+      profile(text);
+    }
+    final long start = System.nanoTime();
+    return record(start, text.length(), mModel.entropy(text));
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    if (count(1)) {
+      profile(CharBuffer.wrap(buf, off, len));
+    }
+    final long start = System.nanoTime();
+    return record(start, len, mModel.entropy(buf, off, len));
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    if (count(1)) {
+      profile(text);
+    }
+    final long start = System.nanoTime();
+    return record(start, text.length(), mModel.entropy(text, cutoff));
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    if (count(1)) {
+      profile(CharBuffer.wrap(buf, off, len));
+    }
+    final long start = System.nanoTime();
+    return record(start, len, mModel.entropy(buf, off, len, cutoff));
+  }
+
+  @Override
+  public void entropies(final char[] buf, final int len, final int count, final double[] scores, final double cutoff) {
+    if (count(count)) {
+      profile(CharBuffer.wrap(buf, 0, len));
+    }
+    final long start = System.nanoTime();
+    mModel.entropies(buf, len, count, scores, cutoff);
+    record(start, (long) len * count, 0);
+  }
+
+  /** Times each character appended to a cursor of the underlying model. */
+  private final class InstrumentedCursor implements Cursor {
+
+    private final Cursor mCursor;
+
+    private InstrumentedCursor(final Cursor cursor) {
+      mCursor = cursor;
+    }
+
+    @Override
+    public double append(final char c) {
+      count(1);
+      final long start = System.nanoTime();
+      return record(start, 1, mCursor.append(c));
+    }
+
+    @Override
+    public double entropy() {
+      return mCursor.entropy();
+    }
+
+    @Override
+    public Cursor copy() {
+      return new InstrumentedCursor(mCursor.copy());
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new InstrumentedCursor(mModel.cursor());
+  }
+
+  @Override
+  public int getOrder() {
+    return mModel.getOrder();
+  }
+
+  @Override
+  public void costs(final char[] buf, final int off, final int len, final double[] costs) {
+    count(1);
+    final long start = System.nanoTime();
+    mModel.costs(buf, off, len, costs);
+    record(start, len, 0);
+  }
+
+  @Override
+  public String getModelClass() {
+    return mModel.getClass().getName();
+  }
+
+  @Override
+  public long getEvaluations() {
+    return mEvaluations.get();
+  }
+
+  @Override
+  public long getCharacters() {
+    return mCharacters.sum();
+  }
+
+  @Override
+  public long getNanoseconds() {
+    return mNanoseconds.sum();
+  }
+
+  @Override
+  public double getNanosecondsPerCharacter() {
+    final long characters = getCharacters();
+    return characters == 0 ? 0 : (double) getNanoseconds() / characters;
+  }
+
+  @Override
+  public double getEvaluationsPerSecond() {
+    final long elapsed = System.nanoTime() - mStart;
+    return elapsed <= 0 ? 0 : 1E9 * getEvaluations() / elapsed;
+  }
+
+  @Override
+  public synchronized long[] getHits() {
+    return mHits.clone();
+  }
+
+  @Override
+  public synchronized long[] getEscapes() {
+    return mEscapes.clone();
+  }
+
+  @Override
+  public int getSampleInterval() {
+    return mSampleInterval;
+  }
+
+  @Override
+  public synchronized void reset() {
+    mEvaluations.set(0);
+    mCharacters.reset();
+    mNanoseconds.reset();
+    for (int k = 0; k < mHits.length; ++k) {
+      mHits[k] = 0;
+      mEscapes[k] = 0;
+    }
+    mStart = System.nanoTime();
+  }
+
+  @Override
+  public synchronized String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("Model ").append(mModel.getClass().getSimpleName()).append(": ")
+      .append(getEvaluations()).append(" evaluations, ")
+      .append(getCharacters()).append(" characters, ")
+      .append(String.format("%.1f ns per character, %.0f evaluations per second", getNanosecondsPerCharacter(), getEvaluationsPerSecond()));
+    long predictions = 0;
+    for (final long h : mHits) {
+      predictions += h;
+    }
+    if (predictions > 0) {
+      sb.append(String.format("%nProfile of 1 in %d evaluations, %d symbols:", mSampleInterval, predictions));
+      for (int k = mHits.length - 1; k >= 0; --k) {
+        sb.append(String.format("%n  order %2d: %5.1f%% predicted, %d escapes", k - 1, 100.0 * mHits[k] / predictions, mEscapes[k]));
+      }
+    }
+    return sb.toString();
+  }
+}
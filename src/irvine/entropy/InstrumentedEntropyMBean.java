@@ -0,0 +1,70 @@
+package irvine.entropy;
+
+/**
+ * Management interface of an instrumented entropy model.
+ * @author Sean A. Irvine
+ */
+public interface InstrumentedEntropyMBean {
+
+  /**
+   * Return the name of the class of the underlying model.
+   * @return model class name
+   */
+  String getModelClass();
+
+  /**
+   * Return the number of texts scored, counting each text of a batch and
+   * each character appended to a cursor.
+   * @return number of evaluations
+   */
+  long getEvaluations();
+
+  /**
+   * Return the number of characters given to the model to score.
+   * @return number of characters
+   */
+  long getCharacters();
+
+  /**
+   * Return the total time spent in the model.
+   * @return nanoseconds
+   */
+  long getNanoseconds();
+
+  /**
+   * Return the average time spent in the model per character.
+   * @return nanoseconds per character
+   */
+  double getNanosecondsPerCharacter();
+
+  /**
+   * Return the number of evaluations per second of elapsed time since the
+   * statistics were last reset.
+   * @return evaluations per second
+   */
+  double getEvaluationsPerSecond();
+
+  /**
+   * Return the number of profiled symbols predicted at each order, indexed
+   * by order plus one.  Index 0 counts symbols for which every context
+   * escaped.  Empty if the model cannot be profiled.
+   * @return prediction counts
+   */
+  long[] getHits();
+
+  /**
+   * Return the number of escapes from each order in profiled symbols,
+   * indexed by order plus one.  Empty if the model cannot be profiled.
+   * @return escape counts
+   */
+  long[] getEscapes();
+
+  /**
+   * Return the number of evaluations between profiled evaluations.
+   * @return sampling interval
+   */
+  int getSampleInterval();
+
+  /** Reset all the statistics. */
+  void reset();
+}
@@ -0,0 +1,226 @@
+package irvine.entropy;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact mapping between words and integer identifiers.  Identifiers
+ * are allocated consecutively from 1, so that 0 can denote an unknown
+ * word.  The characters of all the words are stored consecutively as
+ * bytes (words are therefore restricted to characters below 256) and
+ * located via an open addressing table of identifiers.  Words can be
+ * looked up directly from a character buffer, without creating strings.
+ *
+ * All storage is held in buffers, so that a lexicon saved as part of a
+ * model file can be used in place once the file is mapped.
+ * @author Sean A. Irvine
+ */
+final class Lexicon {
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  private final boolean mWritable;
+  private int mSize;
+  /** Open addressing table of identifiers, size is a power of 2. */
+  private IntBuffer mTable;
+  /** End of each word in the character store, indexed by identifier. */
+  private IntBuffer mEnds;
+  private ByteBuffer mChars;
+
+  /**
+   * Construct a new empty lexicon.
+   */
+  Lexicon() {
+    mWritable = true;
+    mSize = 0;
+    mTable = IntBuffer.wrap(new int[INITIAL_CAPACITY]);
+    mEnds = IntBuffer.wrap(new int[INITIAL_CAPACITY]);
+    mChars = ByteBuffer.wrap(new byte[8 * INITIAL_CAPACITY]);
+  }
+
+  /**
+   * Construct a read-only lexicon on existing storage, typically as
+   * previously obtained from <code>table()</code>, <code>ends()</code>,
+   * and <code>chars()</code>.
+   * @param size number of words
+   * @param table identifier table
+   * @param ends word ends
+   * @param chars word characters
+   */
+  Lexicon(final int size, final IntBuffer table, final IntBuffer ends, final ByteBuffer chars) {
+    if (Integer.bitCount(table.limit()) != 1 || ends.limit() != size + 1) {
+      throw new IllegalArgumentException("Inconsistent lexicon");
+    }
+    mWritable = false;
+    mSize = size;
+    mTable = table;
+    mEnds = ends;
+    mChars = chars;
+  }
+
+  /**
+   * Return the number of words.
+   * @return number of words
+   */
+  int size() {
+    return mSize;
+  }
+
+  // This hash is part of the file format, it must not be changed
+  private static int hash(final char[] word, final int off, final int len) {
+    int h = 0;
+    for (int k = off; k < off + len; ++k) {
+      h = 31 * h + word[k];
+    }
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private boolean matches(final int id, final char[] word, final int off, final int len) {
+    final int start = mEnds.get(id - 1);
+    if (mEnds.get(id) - start != len) {
+      return false;
+    }
+    for (int k = 0; k < len; ++k) {
+      if ((mChars.get(start + k) & 0xFF) != word[off + k]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Slot holding the given word, or the empty slot where it would go
+  private int slot(final char[] word, final int off, final int len) {
+    final int mask = mTable.limit() - 1;
+    int i = hash(word, off, len) & mask;
+    int id;
+    while ((id = mTable.get(i)) != 0 && !matches(id, word, off, len)) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * Return the identifier of a word.
+   * @param word buffer containing the word
+   * @param off offset of the word
+   * @param len length of the word
+   * @return identifier, or 0 if the word is not in the lexicon
+   */
+  int id(final char[] word, final int off, final int len) {
+    return mTable.get(slot(word, off, len));
+  }
+
+  /**
+   * Return the identifier of a word, adding the word if necessary.
+   * @param word buffer containing the word
+   * @param off offset of the word
+   * @param len length of the word
+   * @return identifier
+   * @exception UnsupportedOperationException if the lexicon is read-only.
+   * @exception IllegalArgumentException if the word contains a character above 255.
+   */
+  int add(final char[] word, final int off, final int len) {
+    final int s = slot(word, off, len);
+    final int existing = mTable.get(s);
+    if (existing != 0) {
+      return existing;
+    }
+    if (!mWritable) {
+      throw new UnsupportedOperationException("Cannot add to a read-only lexicon");
+    }
+    for (int k = off; k < off + len; ++k) {
+      if (word[k] > 0xFF) {
+        throw new IllegalArgumentException("Character outside lexicon range: " + word[k]);
+      }
+    }
+    final int start = mEnds.get(mSize);
+    if (start + len > mChars.limit()) {
+      mChars = ByteBuffer.wrap(Arrays.copyOf(mChars.array(), Math.max(2 * mChars.limit(), start + len)));
+    }
+    for (int k = 0; k < len; ++k) {
+      mChars.put(start + k, (byte) word[off + k]);
+    }
+    final int id = ++mSize;
+    if (id + 1 > mEnds.limit()) {
+      mEnds = IntBuffer.wrap(Arrays.copyOf(mEnds.array(), 2 * mEnds.limit()));
+    }
+    mEnds.put(id, start + len);
+    mTable.put(s, id);
+    if (2 * mSize > mTable.limit()) {
+      rehash();
+    }
+    return id;
+  }
+
+  private void rehash() {
+    final int capacity = 2 * mTable.limit();
+    final int mask = capacity - 1;
+    final IntBuffer table = IntBuffer.wrap(new int[capacity]);
+    char[] w = new char[64];
+    for (int id = 1; id <= mSize; ++id) {
+      final int start = mEnds.get(id - 1);
+      final int len = mEnds.get(id) - start;
+      if (len > w.length) {
+        w = new char[len];
+      }
+      for (int k = 0; k < len; ++k) {
+        w[k] = (char) (mChars.get(start + k) & 0xFF);
+      }
+      int i = hash(w, 0, len) & mask;
+      while (table.get(i) != 0) {
+        i = (i + 1) & mask;
+      }
+      table.put(i, id);
+    }
+    mTable = table;
+  }
+
+  /**
+   * Return a word.
+   * @param id identifier
+   * @return the word
+   */
+  String word(final int id) {
+    final int start = mEnds.get(id - 1);
+    final int len = mEnds.get(id) - start;
+    final StringBuilder sb = new StringBuilder(len);
+    for (int k = 0; k < len; ++k) {
+      sb.append((char) (mChars.get(start + k) & 0xFF));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Return the identifier table, suitable for saving.
+   * @return identifier table
+   */
+  IntBuffer table() {
+    return mTable.duplicate().clear();
+  }
+
+  /**
+   * Return the word ends, suitable for saving.
+   * @return word ends
+   */
+  IntBuffer ends() {
+    return mEnds.duplicate().clear().limit(mSize + 1);
+  }
+
+  /**
+   * Return the word characters, suitable for saving.
+   * @return characters
+   */
+  ByteBuffer chars() {
+    return mChars.duplicate().clear().limit(mEnds.get(mSize));
+  }
+
+  /**
+   * Return the number of bytes used by this lexicon.
+   * @return size in bytes
+   */
+  long bytes() {
+    return (long) Integer.BYTES * (mTable.limit() + mEnds.limit()) + mChars.limit();
+  }
+}
@@ -0,0 +1,364 @@
+package irvine.entropy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import irvine.util.CliFlags;
+
+/**
+ * Builds the standard four-gram character models in a single pass over a
+ * corpus.  Each corpus file is read and decompressed once, the files being
+ * read in parallel, and every block read is normalised inline for each
+ * model and counted by that model.  The normalisations are those of the
+ * old shell pipelines: reduction to the reduced alphabet, folding of J
+ * onto I for 5x5 Playfair, insertion of Playfair dummies, and removal of
+ * spaces.
+ *
+ * Reading, decompression and normalisation of the files proceed in
+ * parallel, but the normalised text is counted one file at a time in the
+ * order the files are given, each file as a single stream.  Since scaling
+ * of counts on overflow depends on the order in which text is counted,
+ * this makes the models exactly those of a sequential build, regardless
+ * of the number of threads.  Only a few blocks of each file are held
+ * waiting to be counted.  Models are counted directly into their own
+ * tables, so each needs no more memory than when built alone.  Since all
+ * the models are built at once, the total memory needed is the sum of
+ * their sizes.
+ * @author Sean A. Irvine
+ */
+public final class ModelBuilder {
+
+  private ModelBuilder() { }
+
+  private static final String OUTPUT_FLAG = "output";
+  private static final String MODEL_FLAG = "model";
+  private static final String THREADS_FLAG = "threads";
+  private static final String GZIP_FLAG = "gzip";
+  private static final String FORCE_FLAG = "force";
+  private static final String TEST = "the quick brown fox jumps over the lazy dog";
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int DELETE = -1;
+  private static final int QUEUE_BLOCKS = 4;
+  // Marks the end of the text of a file
+  private static final byte[][] END = new byte[0][];
+
+  private static final String UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+  private static final String LOWER = "abcdefghijklmnopqrstuvwxyz";
+  private static final String DIGITS = "0123456789";
+
+  /**
+   * The normalisation of raw corpus text and the alphabet for one model.
+   * Normalisation maps each byte to another byte or deletes it, and then
+   * optionally squeezes runs of spaces and inserts a dummy between
+   * the letters of any Playfair digraph consisting of a repeated letter.
+   */
+  static final class Recipe {
+
+    private final String mName;
+    private final String mAlphabet;
+    private final String mDescription;
+    private final int[] mMap = new int[256];
+    private final boolean mSqueeze;
+    private final int mDummy;
+
+    /**
+     * Construct a recipe.
+     * @param name name of the model
+     * @param alphabet alphabet of the model
+     * @param description description of the normalisation
+     * @param from characters to translate
+     * @param to translations of the characters in <code>from</code>
+     * @param keep characters retained, all others are deleted
+     * @param reduce true to map retained characters onto the reduced alphabet and squeeze spaces
+     * @param dummy Playfair dummy, or -1 for no dummies
+     */
+    Recipe(final String name, final String alphabet, final String description, final String from, final String to, final String keep, final boolean reduce, final int dummy) {
+      mName = name;
+      mAlphabet = alphabet;
+      mDescription = description;
+      mSqueeze = reduce;
+      mDummy = dummy;
+      for (int b = 0; b < mMap.length; ++b) {
+        final int t = from.indexOf(b);
+        final int c = t >= 0 ? to.charAt(t) : b;
+        mMap[b] = keep.indexOf(c) < 0 ? DELETE : reduce ? ReducedAlphabet.reducedAlphabetSymbol(c) : c;
+      }
+    }
+
+    String getName() {
+      return mName;
+    }
+
+    String getAlphabet() {
+      return mAlphabet;
+    }
+
+    String getDescription() {
+      return mDescription;
+    }
+
+    /**
+     * Return a stream normalising text written to it according to this
+     * recipe.  The normalised text is written to the given stream.
+     * @param out destination of normalised text
+     * @return normalising stream
+     */
+    OutputStream normalizer(final OutputStream out) {
+      return new Normalizer(this, out);
+    }
+  }
+
+  /** Applies a recipe to a single stream of text. */
+  private static final class Normalizer extends OutputStream {
+
+    private final Recipe mRecipe;
+    private final OutputStream mOut;
+    // Dummies can at most double the length of the text
+    private final byte[] mBuffer = new byte[2 * BUFFER_SIZE];
+    private boolean mLastWasSpace = true;
+    private int mPrev = -1;
+    private boolean mEven = false;
+
+    private Normalizer(final Recipe recipe, final OutputStream out) {
+      mRecipe = recipe;
+      mOut = out;
+    }
+
+    // Normalise a single byte into the buffer, returning the new length
+    private int normalize(final int b, final int len) {
+      final int c = mRecipe.mMap[b & 0xFF];
+      if (c == DELETE) {
+        return len;
+      }
+      int n = len;
+      if (mRecipe.mSqueeze) {
+        if (c == ' ' && mLastWasSpace) {
+          return len;
+        }
+        mLastWasSpace = c == ' ';
+      }
+      if (mRecipe.mDummy >= 0) {
+        if (c == mPrev && mEven) {
+          mBuffer[n++] = (byte) mRecipe.mDummy;
+        } else {
+          mEven = !mEven;
+        }
+        mPrev = c;
+      }
+      mBuffer[n++] = (byte) c;
+      return n;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      final int len = normalize(b, 0);
+      if (len > 0) {
+        mOut.write(mBuffer, 0, len);
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      int pos = off;
+      final int end = off + len;
+      while (pos < end) {
+        final int stop = Math.min(end, pos + BUFFER_SIZE);
+        int n = 0;
+        while (pos < stop) {
+          n = normalize(b[pos++], n);
+        }
+        mOut.write(mBuffer, 0, n);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      mOut.close();
+    }
+  }
+
+  private static final String REDUCED_KEEP = UPPER + LOWER + DIGITS + ",.';: \n";
+
+  /** The standard models. */
+  static final Recipe[] RECIPES = {
+    new Recipe("default", "ABCDEFGHIJKLMNOPQRSTUVWXYZ 0.'|", "reduced alphabet, slash and hyphen as space", "/-", "  ", REDUCED_KEEP, true, DELETE),
+    new Recipe("nospace", UPPER, "reduced alphabet, letters only", "", "", UPPER + LOWER, true, DELETE),
+    new Recipe("playfair5", "ABCDEFGHIKLMNOPQRSTUVWXYZ", "uppercase, J as I, letters only, dummy X", LOWER + "J", UPPER.replace('J', 'I') + "I", UPPER, false, 'X'),
+    new Recipe("playfair6", UPPER + DIGITS, "uppercase, letters and digits, dummy X", LOWER, UPPER, UPPER + DIGITS, false, 'X'),
+    new Recipe("playfair7x4", UPPER + "*#", "uppercase, letters only, dummy *", LOWER, UPPER, UPPER, false, '*'),
+  };
+
+  static Recipe recipe(final String name) {
+    for (final Recipe recipe : RECIPES) {
+      if (recipe.getName().equals(name)) {
+        return recipe;
+      }
+    }
+    return null;
+  }
+
+  // Read and normalise one corpus file, queueing the normalised text for every model
+  private static Void read(final String file, final List<Recipe> recipes, final BlockingQueue<byte[][]> queue) throws IOException, InterruptedException {
+    final ByteArrayOutputStream[] texts = new ByteArrayOutputStream[recipes.size()];
+    final OutputStream[] normalizers = new OutputStream[recipes.size()];
+    for (int k = 0; k < normalizers.length; ++k) {
+      texts[k] = new ByteArrayOutputStream(2 * BUFFER_SIZE);
+      normalizers[k] = recipes.get(k).normalizer(texts[k]);
+    }
+    try (final InputStream in = "-".equals(file) ? System.in : ModelFile.uncompressed(new FileInputStream(file))) {
+      final byte[] buf = new byte[BUFFER_SIZE];
+      int len;
+      while ((len = in.read(buf)) != -1) {
+        final byte[][] block = new byte[normalizers.length][];
+        for (int k = 0; k < normalizers.length; ++k) {
+          normalizers[k].write(buf, 0, len);
+          block[k] = texts[k].toByteArray();
+          texts[k].reset();
+        }
+        queue.put(block);
+      }
+    } catch (final IOException | RuntimeException e) {
+      // The build fails, so any text still waiting to be counted is not needed
+      queue.clear();
+      queue.offer(END);
+      throw e;
+    }
+    queue.put(END);
+    return null;
+  }
+
+  // Count the queued text of one corpus file into every model
+  private static void count(final BlockingQueue<byte[][]> queue, final List<FourGramAlphabetModel> models) throws IOException, InterruptedException {
+    final OutputStream[] trainers = new OutputStream[models.size()];
+    for (int k = 0; k < trainers.length; ++k) {
+      trainers[k] = models.get(k).trainer();
+    }
+    byte[][] block;
+    while ((block = queue.take()) != END) {
+      for (int k = 0; k < trainers.length; ++k) {
+        trainers[k].write(block[k]);
+      }
+    }
+  }
+
+  /**
+   * Build models for the given recipes from a corpus.
+   * @param recipes models to build
+   * @param files corpus files, possibly gzip compressed, or - for standard input
+   * @param threads number of files to read at the same time
+   * @param buildCommand build information to record in the models
+   * @return models corresponding to the recipes
+   * @throws IOException if an I/O error occurs
+   */
+  static List<FourGramAlphabetModel> build(final List<Recipe> recipes, final List<String> files, final int threads, final String buildCommand) throws IOException {
+    final List<FourGramAlphabetModel> models = new ArrayList<>();
+    for (final Recipe recipe : recipes) {
+      final FourGramAlphabetModel model = new FourGramAlphabetModel(recipe.getAlphabet());
+      model.setUpcase(true);
+      model.setBuildCommand(buildCommand + " " + recipe.getName() + ": " + recipe.getDescription());
+      models.add(model);
+    }
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      // Files are read in parallel, but counted one at a time in order
+      final List<BlockingQueue<byte[][]>> queues = new ArrayList<>();
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (final String file : files) {
+        final BlockingQueue<byte[][]> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+        queues.add(queue);
+        futures.add(pool.submit(() -> read(file, recipes, queue)));
+      }
+      for (int k = 0; k < files.size(); ++k) {
+        System.out.println("Adding: " + files.get(k));
+        count(queues.get(k), models);
+        futures.get(k).get();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while building models", e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    return models;
+  }
+
+  /**
+   * Build the standard models from a corpus.
+   * @param args see help
+   * @exception IOException if an I/O error occurs
+   */
+  public static void main(final String[] args) throws IOException {
+    final CliFlags flags = new CliFlags("ModelBuilder", "Build the standard four-gram models in a single pass over a corpus");
+    flags.registerOptional('o', OUTPUT_FLAG, String.class, "DIR", "directory for the models", "models");
+    flags.registerOptional('m', MODEL_FLAG, String.class, "NAME", "build only this model (default: all of default, nospace, playfair5, playfair6, playfair7x4)").setMaxCount(Integer.MAX_VALUE);
+    flags.registerOptional('t', THREADS_FLAG, Integer.class, "INT", "number of corpus files to read at the same time", Runtime.getRuntime().availableProcessors());
+    flags.registerOptional('z', GZIP_FLAG, "compress saved models");
+    flags.registerOptional('f', FORCE_FLAG, "rebuild models which already exist");
+    flags.registerRequired(String.class, "file", "corpus files, possibly gzip compressed, or - for standard input")
+      .setMaxCount(Integer.MAX_VALUE);
+    flags.setValidator(f -> {
+      for (final Object name : f.getValues(MODEL_FLAG)) {
+        if (recipe((String) name) == null) {
+          f.setParseMessage("Unknown model \"" + name + "\".");
+          return false;
+        }
+      }
+      if ((Integer) f.getValue(THREADS_FLAG) < 1) {
+        f.setParseMessage("--" + THREADS_FLAG + " must be positive.");
+        return false;
+      }
+      return true;
+    });
+    flags.setFlags(args);
+
+    final File dir = new File((String) flags.getValue(OUTPUT_FLAG));
+    final List<Recipe> recipes = new ArrayList<>();
+    final List<File> outputs = new ArrayList<>();
+    for (final Recipe recipe : RECIPES) {
+      final File output = new File(dir, recipe.getName() + ".model");
+      if (flags.isSet(MODEL_FLAG) && !flags.getValues(MODEL_FLAG).contains(recipe.getName())) {
+        continue;
+      }
+      if (output.exists() && !flags.isSet(FORCE_FLAG)) {
+        System.out.println("Skipping existing model: " + output);
+        continue;
+      }
+      recipes.add(recipe);
+      outputs.add(output);
+    }
+    if (recipes.isEmpty()) {
+      return;
+    }
+    final List<String> files = new ArrayList<>();
+    for (final Object file : flags.getAnonymousValues(0)) {
+      files.add((String) file);
+    }
+    final int threads = Math.min(files.size(), (Integer) flags.getValue(THREADS_FLAG));
+    final List<FourGramAlphabetModel> models = build(recipes, files, threads, "ModelBuilder " + Arrays.toString(args));
+    for (int k = 0; k < models.size(); ++k) {
+      final FourGramAlphabetModel model = models.get(k);
+      model.saveModel(outputs.get(k).getPath(), flags.isSet(GZIP_FLAG));
+      System.out.println("Saved: " + outputs.get(k));
+      System.out.println(model);
+      System.out.println(model.entropy(TEST));
+    }
+  }
+}
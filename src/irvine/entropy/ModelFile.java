@@ -0,0 +1,524 @@
+package irvine.entropy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Versioned binary file format for table based character models.
+ *
+ * The file starts with a little-endian header giving the kind of table,
+ * model order, alphabet and build information.  The header is padded to a
+ * page boundary and is followed by the table itself, one little-endian
+ * entry per context.  Entries are 32-bit, except for shards which hold
+ * 64-bit counts that have not been scaled, quantized code lengths which
+ * are 8-bit or 16-bit multiples of a scale recorded in the header, and
+ * the 16-bit entries of hashed context models.  An uncompressed file can
+ * therefore be memory mapped and the table used in place without copying.
+ * Files may also be stored gzip compressed (as is done for the resources
+ * shipped in the jar), in which case the table is inflated into off-heap
+ * memory.
+ *
+ * @author Sean A. Irvine
+ */
+final class ModelFile {
+
+  static final int VERSION = 1;
+  /** Table contains 32-bit unsigned frequency counts. */
+  static final int KIND_COUNTS = 0;
+  /** Table contains float code lengths. */
+  static final int KIND_COSTS = 1;
+  /** Table contains 64-bit unscaled frequency counts, for merging with other shards. */
+  static final int KIND_SHARD = 2;
+  /** Table contains code lengths quantized to 8 bits, to be multiplied by the scale. */
+  static final int KIND_COSTS_8 = 3;
+  /** Table contains code lengths quantized to 16 bits, to be multiplied by the scale. */
+  static final int KIND_COSTS_16 = 4;
+  /** Table contains buckets of 16-bit counts for hashed contexts, see <code>HashedContextModel</code>. */
+  static final int KIND_HASHED_COUNTS = 5;
+
+  private static final byte[] MAGIC = "JILTMODL".getBytes(StandardCharsets.US_ASCII);
+  private static final int PAGE_SIZE = 4096;
+  private static final int PRELUDE_LENGTH = MAGIC.length + 2 * Integer.BYTES;
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final int FLAG_UPCASE = 1;
+
+  private final int mKind;
+  private final int mOrder;
+  private final int mAlphabetBits;
+  private final boolean mUpcase;
+  private final long mTotalTraining;
+  private final String mAlphabet;
+  private final String mDate;
+  private final String mBuildCommand;
+  private final float mScale;
+  private final ByteBuffer mTable;
+
+  ModelFile(final int kind, final int order, final int alphabetBits, final boolean upcase, final long totalTraining, final String alphabet, final String date, final String buildCommand, final ByteBuffer table) {
+    this(kind, order, alphabetBits, upcase, totalTraining, alphabet, date, buildCommand, 0, table);
+  }
+
+  ModelFile(final int kind, final int order, final int alphabetBits, final boolean upcase, final long totalTraining, final String alphabet, final String date, final String buildCommand, final float scale, final ByteBuffer table) {
+    mKind = kind;
+    mOrder = order;
+    mAlphabetBits = alphabetBits;
+    mUpcase = upcase;
+    mTotalTraining = totalTraining;
+    mAlphabet = alphabet;
+    mDate = date;
+    mBuildCommand = buildCommand;
+    mScale = scale;
+    mTable = table == null ? null : table.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  int getKind() {
+    return mKind;
+  }
+
+  int getOrder() {
+    return mOrder;
+  }
+
+  int getAlphabetBits() {
+    return mAlphabetBits;
+  }
+
+  boolean isUpcase() {
+    return mUpcase;
+  }
+
+  long getTotalTraining() {
+    return mTotalTraining;
+  }
+
+  String getAlphabet() {
+    return mAlphabet;
+  }
+
+  String getDate() {
+    return mDate;
+  }
+
+  String getBuildCommand() {
+    return mBuildCommand;
+  }
+
+  IntBuffer getCounts() {
+    return mTable.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+  }
+
+  CharBuffer getChars() {
+    return mTable.duplicate().order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+  }
+
+  FloatBuffer getCosts() {
+    return mTable.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+  }
+
+  ByteBuffer getTable() {
+    return mTable.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  float getScale() {
+    return mScale;
+  }
+
+  private static int entryBytes(final int kind) {
+    switch (kind) {
+      case KIND_SHARD:
+        return Long.BYTES;
+      case KIND_COSTS_8:
+        return Byte.BYTES;
+      case KIND_COSTS_16:
+      case KIND_HASHED_COUNTS:
+        return Short.BYTES;
+      default:
+        return Integer.BYTES;
+    }
+  }
+
+  /**
+   * Test if the given stream starts with a model file.  The stream
+   * must support mark.
+   * @param in input stream
+   * @return true if the stream is positioned at the start of a model file
+   * @throws IOException if an I/O error occurs
+   */
+  static boolean isModelFile(final InputStream in) throws IOException {
+    final byte[] magic = new byte[MAGIC.length];
+    in.mark(magic.length);
+    final int len = in.readNBytes(magic, 0, magic.length);
+    in.reset();
+    return len == magic.length && Arrays.equals(MAGIC, magic);
+  }
+
+  private static int tableOffset(final int headerLength) {
+    return (headerLength + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+  }
+
+  private static int stringLength(final String s) {
+    return Integer.BYTES + (s == null ? 0 : Character.BYTES * s.length());
+  }
+
+  private static void putString(final ByteBuffer buf, final String s) {
+    if (s == null) {
+      buf.putInt(-1);
+    } else {
+      buf.putInt(s.length());
+      for (int k = 0; k < s.length(); ++k) {
+        buf.putChar(s.charAt(k));
+      }
+    }
+  }
+
+  private static String getString(final ByteBuffer buf) {
+    final int len = buf.getInt();
+    if (len < 0) {
+      return null;
+    }
+    final char[] c = new char[len];
+    for (int k = 0; k < len; ++k) {
+      c[k] = buf.getChar();
+    }
+    return new String(c);
+  }
+
+  private ByteBuffer header(final long entries) {
+    final int headerLength = PRELUDE_LENGTH + 5 * Integer.BYTES + 2 * Long.BYTES + stringLength(mAlphabet) + stringLength(mDate) + stringLength(mBuildCommand);
+    final int offset = tableOffset(headerLength);
+    final ByteBuffer header = ByteBuffer.allocate(offset).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(offset);
+    header.putInt(mKind);
+    header.putInt(mOrder);
+    header.putInt(mAlphabetBits);
+    header.putInt(mUpcase ? FLAG_UPCASE : 0);
+    header.putFloat(mScale); // formerly reserved, 0 except for quantized tables
+    header.putLong(mTotalTraining);
+    header.putLong(entries);
+    putString(header, mAlphabet);
+    putString(header, mDate);
+    putString(header, mBuildCommand);
+    return header;
+  }
+
+  // Parse a complete header, returning the header and the number of table entries
+  private static ModelFile parseHeader(final ByteBuffer header, final long[] entries) throws IOException {
+    header.position(PRELUDE_LENGTH);
+    final int kind = header.getInt();
+    final int order = header.getInt();
+    final int alphabetBits = header.getInt();
+    final int flags = header.getInt();
+    final float scale = header.getFloat();
+    final long totalTraining = header.getLong();
+    entries[0] = header.getLong();
+    final String alphabet = getString(header);
+    final String date = getString(header);
+    final String buildCommand = getString(header);
+    if (kind < KIND_COUNTS || kind > KIND_HASHED_COUNTS) {
+      throw new IOException("Unknown table kind: " + kind);
+    }
+    return new ModelFile(kind, order, alphabetBits, (flags & FLAG_UPCASE) != 0, totalTraining, alphabet, date, buildCommand, scale, null);
+  }
+
+  // Read and check the fixed prelude, returning the offset of the table
+  private static int checkPrelude(final ByteBuffer prelude) throws IOException {
+    final byte[] magic = new byte[MAGIC.length];
+    prelude.get(magic);
+    if (!Arrays.equals(MAGIC, magic)) {
+      throw new IOException("Not a model file");
+    }
+    final int version = prelude.getInt();
+    if (version > VERSION) {
+      throw new IOException("Model file version " + version + " is newer than supported version " + VERSION);
+    }
+    final int offset = prelude.getInt();
+    if (offset < PRELUDE_LENGTH) {
+      throw new IOException("Corrupt model file header");
+    }
+    return offset;
+  }
+
+  private static void readFully(final ReadableByteChannel channel, final ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) < 0) {
+        throw new IOException("Premature end of model file");
+      }
+    }
+  }
+
+  private ModelFile withTable(final ByteBuffer table) {
+    return new ModelFile(mKind, mOrder, mAlphabetBits, mUpcase, mTotalTraining, mAlphabet, mDate, mBuildCommand, mScale, table);
+  }
+
+  /**
+   * Return the header of a compiled model of the given order with the same
+   * alphabet and provenance as this model.
+   * @param order order of the compiled model
+   * @return header
+   */
+  ModelFile costsHeader(final int order) {
+    return new ModelFile(KIND_COSTS, order, mAlphabetBits, mUpcase, mTotalTraining, mAlphabet, mDate, mBuildCommand, null);
+  }
+
+  private static ModelFile readHeader(final ReadableByteChannel channel, final long[] entries) throws IOException {
+    final ByteBuffer prelude = ByteBuffer.allocate(PRELUDE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, prelude);
+    prelude.flip();
+    final int offset = checkPrelude(prelude);
+    final ByteBuffer header = ByteBuffer.allocate(offset).order(ByteOrder.LITTLE_ENDIAN);
+    prelude.rewind();
+    header.put(prelude);
+    readFully(channel, header);
+    return parseHeader(header, entries);
+  }
+
+  /**
+   * Read a model file from a stream.  The table is copied into off-heap memory.
+   * @param in input stream positioned at the start of the model
+   * @return model file
+   * @throws IOException if an I/O error occurs
+   */
+  static ModelFile read(final InputStream in) throws IOException {
+    final ReadableByteChannel channel = Channels.newChannel(in);
+    final long[] entries = new long[1];
+    final ModelFile file = readHeader(channel, entries);
+    final ByteBuffer table = ByteBuffer.allocateDirect(Math.toIntExact(entryBytes(file.getKind()) * entries[0]));
+    readFully(channel, table);
+    table.flip();
+    return file.withTable(table);
+  }
+
+  /**
+   * Read only the header of a model file from a stream, leaving the stream
+   * positioned at the start of the table.
+   * @param in input stream positioned at the start of the model
+   * @param entries set to the number of entries in the table
+   * @return the header
+   * @throws IOException if an I/O error occurs
+   */
+  static ModelFile readHeader(final InputStream in, final long[] entries) throws IOException {
+    return readHeader(Channels.newChannel(in), entries);
+  }
+
+  /**
+   * Read a table of unscaled counts from a shard, adding them to the given
+   * totals.  The table is read a piece at a time, so no memory beyond the
+   * totals is needed.
+   * @param in input stream positioned at the start of the table
+   * @param counts running totals, must be the same size as the table
+   * @throws IOException if an I/O error occurs
+   */
+  static void addCounts(final InputStream in, final long[] counts) throws IOException {
+    final ReadableByteChannel channel = Channels.newChannel(in);
+    final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (int k = 0; k < counts.length; k += CHUNK_SIZE) {
+      final int n = Math.min(CHUNK_SIZE, counts.length - k);
+      chunk.clear().limit(n * Long.BYTES);
+      readFully(channel, chunk);
+      chunk.flip();
+      for (int j = k; j < k + n; ++j) {
+        counts[j] += chunk.getLong();
+      }
+    }
+  }
+
+  /**
+   * Memory map an uncompressed model file.  The table is used in place.
+   * @param filename file name
+   * @return model file
+   * @throws IOException if an I/O error occurs
+   */
+  static ModelFile map(final String filename) throws IOException {
+    try (final FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+      final ByteBuffer prelude = ByteBuffer.allocate(PRELUDE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, prelude);
+      prelude.flip();
+      final int offset = checkPrelude(prelude);
+      final ByteBuffer header = ByteBuffer.allocate(offset).order(ByteOrder.LITTLE_ENDIAN);
+      channel.position(0);
+      readFully(channel, header);
+      final long[] entries = new long[1];
+      final ModelFile file = parseHeader(header, entries);
+      final long length = entryBytes(file.getKind()) * entries[0];
+      if (channel.size() < offset + length) {
+        throw new IOException("Premature end of model file");
+      }
+      // The mapping remains valid after the channel is closed
+      return file.withTable(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+  }
+
+  /**
+   * Open a model file, memory mapping it if it is not compressed.
+   * @param filename file name
+   * @return model file, or null if the file is not in this format
+   * @throws IOException if an I/O error occurs
+   */
+  static ModelFile open(final String filename) throws IOException {
+    try (final InputStream in = new BufferedInputStream(new FileInputStream(filename))) {
+      if (!isModelFile(in)) {
+        return null;
+      }
+    }
+    return map(filename);
+  }
+
+  private void write(final OutputStream out, final IntBuffer counts, final FloatBuffer costs) throws IOException {
+    final long entries = counts != null ? counts.limit() : costs.limit();
+    out.write(header(entries).array());
+    final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (int k = 0; k < entries; k += CHUNK_SIZE) {
+      final int n = (int) Math.min(CHUNK_SIZE, entries - k);
+      chunk.clear();
+      if (counts != null) {
+        for (int j = k; j < k + n; ++j) {
+          chunk.putInt(counts.get(j));
+        }
+      } else {
+        for (int j = k; j < k + n; ++j) {
+          chunk.putFloat(costs.get(j));
+        }
+      }
+      out.write(chunk.array(), 0, chunk.position());
+    }
+  }
+
+  private static OutputStream output(final String filename, final boolean compress) throws IOException {
+    final OutputStream os = new FileOutputStream(filename);
+    return compress ? new GZIPOutputStream(os, CHUNK_SIZE) : new BufferedOutputStream(os, CHUNK_SIZE);
+  }
+
+  /**
+   * Write this header together with a table of counts.
+   * @param filename output file
+   * @param compress should the output be gzip compressed
+   * @param counts table of counts
+   * @throws IOException if an I/O error occurs
+   */
+  void writeCounts(final String filename, final boolean compress, final IntBuffer counts) throws IOException {
+    try (final OutputStream out = output(filename, compress)) {
+      write(out, counts, null);
+    }
+  }
+
+  /**
+   * Write this header together with a table of code lengths.
+   * @param filename output file
+   * @param compress should the output be gzip compressed
+   * @param costs table of code lengths
+   * @throws IOException if an I/O error occurs
+   */
+  void writeCosts(final String filename, final boolean compress, final FloatBuffer costs) throws IOException {
+    try (final OutputStream out = output(filename, compress)) {
+      write(out, null, costs);
+    }
+  }
+
+  /**
+   * Write this header together with a table whose entries are already in
+   * little-endian form, such as a table of quantized code lengths.
+   * @param filename output file
+   * @param compress should the output be gzip compressed
+   * @param table table entries
+   * @throws IOException if an I/O error occurs
+   */
+  void writeTable(final String filename, final boolean compress, final ByteBuffer table) throws IOException {
+    final long entries = table.limit() / entryBytes(mKind);
+    try (final OutputStream out = output(filename, compress)) {
+      out.write(header(entries).array());
+      final byte[] chunk = new byte[CHUNK_SIZE];
+      final ByteBuffer t = table.duplicate();
+      t.clear();
+      while (t.hasRemaining()) {
+        final int n = Math.min(chunk.length, t.remaining());
+        t.get(chunk, 0, n);
+        out.write(chunk, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Write this header together with a table of 16-bit entries.
+   * @param filename output file
+   * @param compress should the output be gzip compressed
+   * @param table table entries
+   * @throws IOException if an I/O error occurs
+   */
+  void writeChars(final String filename, final boolean compress, final CharBuffer table) throws IOException {
+    final int entries = table.limit();
+    try (final OutputStream out = output(filename, compress)) {
+      out.write(header(entries).array());
+      final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * Character.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (int k = 0; k < entries; k += CHUNK_SIZE) {
+        final int n = Math.min(CHUNK_SIZE, entries - k);
+        chunk.clear();
+        for (int j = k; j < k + n; ++j) {
+          chunk.putChar(table.get(j));
+        }
+        out.write(chunk.array(), 0, chunk.position());
+      }
+    }
+  }
+
+  /**
+   * Write this header together with a table of unscaled counts, forming
+   * a shard which can later be merged with other shards.
+   * @param filename output file
+   * @param compress should the output be gzip compressed
+   * @param counts table of counts
+   * @throws IOException if an I/O error occurs
+   */
+  void writeShard(final String filename, final boolean compress, final long[] counts) throws IOException {
+    try (final OutputStream out = output(filename, compress)) {
+      out.write(header(counts.length).array());
+      final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (int k = 0; k < counts.length; k += CHUNK_SIZE) {
+        final int n = Math.min(CHUNK_SIZE, counts.length - k);
+        chunk.clear();
+        for (int j = k; j < k + n; ++j) {
+          chunk.putLong(counts[j]);
+        }
+        out.write(chunk.array(), 0, chunk.position());
+      }
+    }
+  }
+
+  /**
+   * Prepare a possibly compressed stream for reading, the returned stream
+   * supports mark.
+   * @param in underlying stream
+   * @return stream of uncompressed content
+   * @throws IOException if an I/O error occurs
+   */
+  static InputStream uncompressed(final InputStream in) throws IOException {
+    final BufferedInputStream bis = new BufferedInputStream(in, CHUNK_SIZE);
+    bis.mark(2);
+    final int b0 = bis.read();
+    final int b1 = bis.read();
+    bis.reset();
+    if (b0 == (GZIPInputStream.GZIP_MAGIC & 0xFF) && b1 == (GZIPInputStream.GZIP_MAGIC >>> 8)) {
+      return new BufferedInputStream(new GZIPInputStream(bis, CHUNK_SIZE), CHUNK_SIZE);
+    }
+    return bis;
+  }
+}
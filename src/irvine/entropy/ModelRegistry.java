@@ -0,0 +1,224 @@
+package irvine.entropy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of models.  A model is named either by one of the
+ * built-in names below or by the path of a model file.  Each model is
+ * loaded the first time it is requested and the same instance is then
+ * shared by every subsequent request, from any thread.  Concurrent requests
+ * for a model which is not yet loaded wait for a single load.
+ *
+ * By default loaded models are retained for the life of the process.  If
+ * soft references are selected, a model no longer in use elsewhere may be
+ * discarded when memory is short, and is transparently loaded again if it
+ * is requested later.  Soft references can also be selected by setting
+ * the system property <code>jilt.soft.models</code> to <code>true</code>.
+ *
+ * The kind of a model file is determined from its content, so any file
+ * saved by the character, word, n-gram, or sparse context models can be
+ * given.
+ *
+ * @author Sean A. Irvine
+ */
+public final class ModelRegistry {
+
+  private ModelRegistry() { }
+
+  /** Name of the default English character model. */
+  public static final String DEFAULT = "default";
+  /** Name of the English character model for 5x5 Playfair. */
+  public static final String PLAYFAIR_5 = "playfair5";
+  /** Name of the English character model for 6x6 Playfair. */
+  public static final String PLAYFAIR_6 = "playfair6";
+  /** Name of the English character model for 7x4 Playfair. */
+  public static final String PLAYFAIR_7X4 = "playfair7x4";
+  /** Name of the default English word model. */
+  public static final String UNIWORD_ENGLISH = "uniword-english";
+
+  private static final String RESOURCES = "irvine/resources/";
+  private static final int MAGIC_LENGTH = 8;
+  private static final byte[] WORD_MAGIC = "JILTWORD".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] UNIWORD_MAGIC = "JILTUNIW".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SERIALIZED_MAGIC = {(byte) 0xAC, (byte) 0xED};
+
+  /** Loads a model. */
+  private interface Loader {
+    Entropy load() throws IOException;
+  }
+
+  private static final Map<String, Loader> BUILT_IN = new HashMap<>();
+  static {
+    BUILT_IN.put(DEFAULT, FourGramAlphabetModel::loadModel);
+    BUILT_IN.put(PLAYFAIR_5, () -> FourGramAlphabetModel.loadModelResource(RESOURCES + "playfair5.model"));
+    BUILT_IN.put(PLAYFAIR_6, () -> FourGramAlphabetModel.loadModelResource(RESOURCES + "playfair6.model"));
+    BUILT_IN.put(PLAYFAIR_7X4, () -> FourGramAlphabetModel.loadModelResource(RESOURCES + "playfair7x4.model"));
+    BUILT_IN.put(UNIWORD_ENGLISH, UniwordModel::defaultEnglishModel);
+  }
+
+  /** A registered model, loaded at most once at a time. */
+  private static final class Entry {
+    private final Loader mLoader;
+    private Reference<Entropy> mReference = null;
+    private Entropy mStrong = null;
+
+    private Entry(final Loader loader) {
+      mLoader = loader;
+    }
+
+    private synchronized Entropy get() throws IOException {
+      Entropy model = mStrong != null ? mStrong : mReference == null ? null : mReference.get();
+      if (model == null) {
+        model = mLoader.load();
+        retain(model);
+      }
+      return model;
+    }
+
+    private synchronized Entropy peek() {
+      return mStrong != null ? mStrong : mReference == null ? null : mReference.get();
+    }
+
+    private synchronized void retain(final Entropy model) {
+      if (sSoft) {
+        mStrong = null;
+        mReference = new SoftReference<>(model);
+      } else {
+        mStrong = model;
+        mReference = null;
+      }
+    }
+  }
+
+  private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+  private static volatile boolean sSoft = Boolean.getBoolean("jilt.soft.models");
+
+  /**
+   * Select whether models are held by soft references, so that they can be
+   * discarded when memory is short and they are not otherwise in use.
+   * Applies to models already loaded as well as models loaded later.
+   * @param soft true to hold models by soft references
+   */
+  public static void setSoftReferences(final boolean soft) {
+    sSoft = soft;
+    for (final Entry entry : ENTRIES.values()) {
+      final Entropy model = entry.peek();
+      if (model != null) {
+        entry.retain(model);
+      }
+    }
+  }
+
+  /**
+   * Test if models are held by soft references.
+   * @return true if models may be discarded when memory is short
+   */
+  public static boolean isSoftReferences() {
+    return sSoft;
+  }
+
+  private static boolean startsWith(final byte[] magic, final byte[] prefix) {
+    return Arrays.equals(magic, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+  // Load a model file of any kind, determining the kind from its content
+  private static Entropy loadFile(final String path) throws IOException {
+    final byte[] magic;
+    try (final InputStream in = ModelFile.uncompressed(new FileInputStream(path))) {
+      magic = Arrays.copyOf(in.readNBytes(MAGIC_LENGTH), MAGIC_LENGTH);
+    }
+    if (startsWith(magic, WORD_MAGIC)) {
+      return WordGramModel.loadModel(path);
+    }
+    if (startsWith(magic, UNIWORD_MAGIC)) {
+      return new UniwordModel(path);
+    }
+    if (startsWith(magic, NGramModel.MAGIC)) {
+      return NGramModel.loadModel(path);
+    }
+    if (startsWith(magic, SERIALIZED_MAGIC)) {
+      // Models saved by Java serialization, such as n-gram and sparse context models
+      try (final ObjectInputStream ois = new ObjectInputStream(ModelFile.uncompressed(new FileInputStream(path)))) {
+        return (Entropy) ois.readObject();
+      } catch (final ClassNotFoundException | ClassCastException e) {
+        throw new IOException("Incompatible model file: " + path, e);
+      }
+    }
+    return FourGramAlphabetModel.loadModel(path);
+  }
+
+  /**
+   * Test if the given name is the name of a built-in model.
+   * @param name name to test
+   * @return true if the name is a built-in model name
+   */
+  public static boolean isBuiltIn(final String name) {
+    return BUILT_IN.containsKey(name);
+  }
+
+  // Built-in names and canonical file paths identify models
+  private static String key(final String name) throws IOException {
+    if (BUILT_IN.containsKey(name)) {
+      return name;
+    }
+    final File file = new File(name);
+    if (!file.isFile()) {
+      throw new IOException("Unknown model: " + name);
+    }
+    return file.getCanonicalPath();
+  }
+
+  /**
+   * Return the model with the given name, loading it if necessary.
+   * @param name built-in model name or path of a model file
+   * @return the model
+   * @exception IOException if the model is unknown or cannot be loaded.
+   */
+  public static Entropy get(final String name) throws IOException {
+    final String key = key(name);
+    final Loader loader = BUILT_IN.containsKey(key) ? BUILT_IN.get(key) : () -> loadFile(key);
+    return ENTRIES.computeIfAbsent(key, k -> new Entry(loader)).get();
+  }
+
+  /**
+   * Return the default English character model.
+   * @return the model
+   * @exception IOException if the model cannot be loaded.
+   */
+  public static Entropy getDefault() throws IOException {
+    return get(DEFAULT);
+  }
+
+  /**
+   * Test if the named model is currently loaded.
+   * @param name built-in model name or path of a model file
+   * @return true if the model is loaded
+   */
+  public static boolean isLoaded(final String name) {
+    try {
+      final Entry entry = ENTRIES.get(key(name));
+      return entry != null && entry.peek() != null;
+    } catch (final IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Forget all the loaded models.  Models still in use elsewhere are not
+   * affected, but subsequent requests load fresh instances.
+   */
+  public static void clear() {
+    ENTRIES.clear();
+  }
+}
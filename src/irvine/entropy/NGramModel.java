@@ -1,33 +1,54 @@
 package irvine.entropy;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.zip.GZIPInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.PriorityQueue;
 import java.util.zip.GZIPOutputStream;
 
 import irvine.jilt.CommonFlags;
 import irvine.util.CliFlags;
 import irvine.util.IOUtils;
 import irvine.util.LongDynamicLongArray;
+import irvine.util.LongLongArray;
+import irvine.util.OffHeapLongDynamicLongArray;
 import irvine.util.StringUtils;
 
 /**
  * Reduced alphabet character gram model.
  * @author Sean A. Irvine
  */
-public class NGramModel implements Entropy, Serializable {
+public class NGramModel implements Entropy, Profiled, Serializable {
 
   private static final String ORDER_FLAG = "order";
+  private static final String MERGE_FLAG = "merge";
+  private static final String COMPACT_FLAG = "compact";
+  private static final String OFF_HEAP_FLAG = "off-heap";
+  private static final String MAPPED_FLAG = "mapped";
   private static final int ROOT = 2;
   private static final int SPACE = 27;
   private static final int DIGIT = 28;
   private static final int ALPHABET_SIZE = 28;
   private static final long serialVersionUID = 1L;
+  /** Start of a saved model. */
+  static final byte[] MAGIC = "JILTNGRM".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 1;
+  private static final int FORM_TREE = 0;
+  private static final int FORM_COMPACT = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 4 * Integer.BYTES + 4 * Long.BYTES;
+  private static final int BUFFER_SIZE = 1 << 16;
 
   /*
    * Alphabet encoding: 0 unused (not stored)
@@ -36,6 +57,96 @@ public class NGramModel implements Entropy, Serializable {
    *                    28 digit
    */
 
+  /**
+   * Scoring position in a text.  This records the node of the longest
+   * context present in the model, from which all shorter contexts are
+   * reachable by following suffix pointers.  When there are no suffix
+   * pointers, the symbols of the context are also kept, most recent last,
+   * so that shorter contexts can be found from the root.
+   */
+  private static final class State {
+    private long mNode = ROOT;
+    private int mDepth = 0;
+    private boolean mLastWasSpace = true;
+    private int[] mHistory = new int[0];
+
+    private void reset() {
+      mNode = ROOT;
+      mDepth = 0;
+      mLastWasSpace = true;
+    }
+
+    private void set(final State state) {
+      mNode = state.mNode;
+      mDepth = state.mDepth;
+      mLastWasSpace = state.mLastWasSpace;
+      mHistory = state.mHistory.clone();
+    }
+
+    // Append a symbol to a history of the given length
+    private void push(final int symbol, final int length) {
+      if (mHistory.length != length) {
+        mHistory = new int[length];
+      }
+      if (length > 0) {
+        System.arraycopy(mHistory, 1, mHistory, 0, length - 1);
+        mHistory[length - 1] = symbol;
+      }
+    }
+  }
+
+  /** Per-thread working space used during scoring. */
+  private static final class Scratch {
+    private final boolean[] mExclusions = new boolean[ALPHABET_SIZE];
+    private final State mState = new State();
+  }
+
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  /**
+   * Read-only form of the tree in which each node stores only the symbols
+   * that actually occur.  A node has a bitmap of the symbols present, and
+   * the entries for those symbols are stored consecutively in increasing
+   * symbol order starting at the node's first entry.  Nodes are numbered in
+   * breadth-first order from <code>ROOT</code>, so the entries of the deepest
+   * nodes, which never have children, come last and need no child slot.
+   */
+  private static final class CompactTree implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final int[] mBitmaps;
+    private final int[] mFirst;
+    private final long[] mCounts;
+    private final int[] mChildren;
+
+    private CompactTree(final int nodes, final int entries, final int internalEntries) {
+      mBitmaps = new int[nodes];
+      mFirst = new int[nodes];
+      mCounts = new long[entries];
+      mChildren = new int[internalEntries];
+    }
+
+    // Index of the entry for a symbol, or -1 if the symbol is not present
+    private int entry(final int node, final int symbol) {
+      final int bitmap = mBitmaps[node];
+      final int bit = 1 << (symbol - 1);
+      return (bitmap & bit) == 0 ? -1 : mFirst[node] + Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private long count(final int node, final int symbol) {
+      final int e = entry(node, symbol);
+      return e < 0 ? 0 : mCounts[e];
+    }
+
+    private int child(final int node, final int symbol) {
+      final int e = entry(node, symbol);
+      return e < 0 || e >= mChildren.length ? 0 : mChildren[e];
+    }
+
+    private long bytes() {
+      return Integer.BYTES * (2L * mBitmaps.length + mChildren.length) + Long.BYTES * (long) mCounts.length;
+    }
+  }
+
   private final int mOrder;
 
   /**
@@ -45,7 +156,11 @@ public class NGramModel implements Entropy, Serializable {
    * <code>ALPHABET_SIZE</code> entries are pointers for the children).
    * Node 0 is unused. Root is at 2.
    */
-  private final LongDynamicLongArray mModel = new LongDynamicLongArray();
+  private LongLongArray mModel;
+  private CompactTree mCompact = null; // replaces mModel once compacted
+  // Suffix (vine) pointer of each node, i.e. the node for the context without
+  // its oldest symbol, built when first needed for scoring a tree on the heap
+  private transient volatile long[] mVines = null;
   private final int[] mContext;
   private long mNextFree = 2 * ALPHABET_SIZE + 2;
   private long mOrder0Total = 0;
@@ -56,52 +171,450 @@ public class NGramModel implements Entropy, Serializable {
    * @exception IllegalArgumentException if <code>order</code> is negative.
    */
   public NGramModel(final int order) {
+    this(order, new LongDynamicLongArray());
+  }
+
+  /**
+   * Construct a new word gram model with the tree held in the given store.
+   * For example, an <code>OffHeapLongDynamicLongArray</code> allows the
+   * tree to be larger than the heap.  When a model with a file backed store
+   * is saved, only the name of the file is recorded, so the model can be
+   * loaded again without reading the tree.  Scoring a tree held on the heap
+   * uses suffix pointers, one long per node, built by a walk of the whole
+   * tree on first use.  These are not built for any other store, so that
+   * the heap needed does not grow with the model; instead each escape to a
+   * shorter context walks down from the root, which makes scoring slower.
+   * @param order order of model
+   * @param store empty array to hold the tree
+   * @exception IllegalArgumentException if <code>order</code> is negative
+   * or the store is not empty.
+   */
+  public NGramModel(final int order, final LongLongArray store) {
     if (order < 0) {
       throw new IllegalArgumentException();
     }
+    if (store.length() != 0) {
+      throw new IllegalArgumentException("Store is not empty");
+    }
     mOrder = order;
     mContext = new int[mOrder];
+    mModel = store;
   }
 
   /**
-   * Serialize the current model.
+   * Save the current model.  The file consists of a header giving the
+   * order, the total count, and the size of the tree, followed by the tree
+   * itself as a sequence of independently compressed blocks, so that the
+   * blocks can be compressed and decompressed in parallel.  Only the part
+   * of the tree in use is written.  A model whose tree is held in a memory
+   * mapped file is instead serialized, recording only the name of the file.
    * @param filename output filename
    * @throws IOException if an I/O error occurs
    */
   void saveModel(final String filename) throws IOException {
-    try (final ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
-      oos.writeObject(this);
+    if (mModel instanceof OffHeapLongDynamicLongArray && ((OffHeapLongDynamicLongArray) mModel).isFileBacked()) {
+      try (final ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
+        oos.writeObject(this);
+      }
+      return;
+    }
+    try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), BUFFER_SIZE)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(mOrder);
+      header.putInt(mCompact == null ? FORM_TREE : FORM_COMPACT);
+      header.putInt(0); // reserved
+      header.putLong(mOrder0Total);
+      final CompressedBlocks blocks = new CompressedBlocks();
+      if (mCompact == null) {
+        header.putLong(mNextFree);
+        header.putLong(0);
+        header.putLong(0);
+        out.write(header.array());
+        blocks.write(out, mModel::get, mNextFree, Long.BYTES);
+      } else {
+        final CompactTree tree = mCompact;
+        header.putLong(tree.mBitmaps.length);
+        header.putLong(tree.mCounts.length);
+        header.putLong(tree.mChildren.length);
+        out.write(header.array());
+        blocks.write(out, k -> tree.mBitmaps[(int) k], tree.mBitmaps.length, Integer.BYTES);
+        blocks.write(out, k -> tree.mFirst[(int) k], tree.mFirst.length, Integer.BYTES);
+        blocks.write(out, k -> tree.mCounts[(int) k], tree.mCounts.length, Long.BYTES);
+        blocks.write(out, k -> tree.mChildren[(int) k], tree.mChildren.length, Integer.BYTES);
+      }
     }
   }
 
-  private static NGramModel loadModel(final InputStream stream) throws IOException {
-    try (final ObjectInputStream ois = new ObjectInputStream(stream)) {
-      return (NGramModel) ois.readObject();
-    } catch (final ClassNotFoundException e) {
-      throw new RuntimeException("Incompatible model file", e);
+  private static int checkSize(final long size) throws IOException {
+    if (size < 0 || size > Integer.MAX_VALUE) {
+      throw new IOException("Corrupt n-gram model");
     }
+    return (int) size;
+  }
+
+  private static NGramModel read(final InputStream in) throws IOException {
+    final byte[] h = new byte[HEADER_SIZE];
+    new DataInputStream(in).readFully(h);
+    final ByteBuffer header = ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN);
+    header.position(MAGIC.length);
+    final int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported n-gram model version " + version);
+    }
+    final int order = header.getInt();
+    final int form = header.getInt();
+    header.getInt(); // reserved
+    final long total = header.getLong();
+    final long a = header.getLong();
+    final long b = header.getLong();
+    final long c = header.getLong();
+    if (order < 0 || (form != FORM_TREE && form != FORM_COMPACT)) {
+      throw new IOException("Corrupt n-gram model");
+    }
+    final NGramModel model = new NGramModel(order);
+    model.mOrder0Total = total;
+    final CompressedBlocks blocks = new CompressedBlocks();
+    if (form == FORM_TREE) {
+      if (a < ROOT + 2 * ALPHABET_SIZE) {
+        throw new IOException("Corrupt n-gram model");
+      }
+      // Allocate the whole tree first, so that blocks can be stored concurrently
+      final LongLongArray store = model.mModel;
+      store.set(a - 1, 0);
+      blocks.read(in, store::set, a, Long.BYTES);
+      model.mNextFree = a;
+    } else {
+      final CompactTree tree = new CompactTree(checkSize(a), checkSize(b), checkSize(c));
+      blocks.read(in, (k, v) -> tree.mBitmaps[(int) k] = (int) v, a, Integer.BYTES);
+      blocks.read(in, (k, v) -> tree.mFirst[(int) k] = (int) v, a, Integer.BYTES);
+      blocks.read(in, (k, v) -> tree.mCounts[(int) k] = v, b, Long.BYTES);
+      blocks.read(in, (k, v) -> tree.mChildren[(int) k] = (int) v, c, Integer.BYTES);
+      model.mCompact = tree;
+      model.mModel = null;
+    }
+    return model;
   }
 
   /**
-   * Load a model.
+   * Load a model.  Models serialized by earlier versions can also be loaded.
    * @param filename file name of the model
    * @return the model
    * @exception IOException if an I/O error occurs
    */
   public static NGramModel loadModel(final String filename) throws IOException {
-    try (final InputStream is = new GZIPInputStream(IOUtils.getStream(filename))) {
-      return loadModel(is);
+    try (final InputStream in = ModelFile.uncompressed(IOUtils.getStream(filename))) {
+      in.mark(MAGIC.length);
+      final byte[] magic = in.readNBytes(MAGIC.length);
+      in.reset();
+      if (Arrays.equals(MAGIC, magic)) {
+        return read(in);
+      }
+      try (final ObjectInputStream ois = new ObjectInputStream(in)) {
+        return (NGramModel) ois.readObject();
+      } catch (final ClassNotFoundException e) {
+        throw new RuntimeException("Incompatible model file", e);
+      }
     }
   }
 
   private long childPtr(final long current, final int symbol) {
+    if (mCompact != null) {
+      return mCompact.child((int) current, symbol);
+    }
     return mModel.get(current + 2L * symbol - 1);
   }
 
   private long count(final long current, final int symbol) {
+    if (mCompact != null) {
+      return mCompact.count((int) current, symbol);
+    }
     return mModel.get(current + 2L * symbol - 2);
   }
 
+  private void checkWritable() {
+    if (mCompact != null) {
+      throw new UnsupportedOperationException("Cannot add to a compacted model");
+    }
+    mVines = null;
+  }
+
+  private int nodeIndex(final long position) {
+    return mCompact != null ? (int) position : (int) ((position - ROOT) / (2 * ALPHABET_SIZE));
+  }
+
+  private void linkVines(final long[] vines, final long position, final long vine) {
+    vines[nodeIndex(position)] = vine;
+    for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+      final long child = childPtr(position, s);
+      if (child != 0) {
+        // Every suffix of a context in the tree is also in the tree
+        final long childVine = position == ROOT ? ROOT : childPtr(vine, s);
+        linkVines(vines, child, childVine == 0 ? ROOT : childVine);
+      }
+    }
+  }
+
+  // Suffix pointers take a long per node on the heap and a walk of the whole
+  // tree to build, so for a tree held outside the heap they are not built
+  // and suffixes are found from the root instead
+  private long[] vines() {
+    return mCompact == null && !(mModel instanceof LongDynamicLongArray) ? null : linkedVines();
+  }
+
+  private long[] linkedVines() {
+    long[] vines = mVines;
+    if (vines == null) {
+      synchronized (this) {
+        vines = mVines;
+        if (vines == null) {
+          final long nodes = mCompact != null ? mCompact.mBitmaps.length : (mNextFree - ROOT) / (2 * ALPHABET_SIZE);
+          vines = new long[Math.toIntExact(nodes)];
+          linkVines(vines, ROOT, 0);
+          mVines = vines;
+        }
+      }
+    }
+    return vines;
+  }
+
+  private boolean isPresent(final long position, final int symbol) {
+    return count(position, symbol) != 0 || childPtr(position, symbol) != 0;
+  }
+
+  // Count nodes, entries, and entries of nodes which can have children
+  private void census(final long position, final int depth, final long[] census) {
+    ++census[0];
+    for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+      if (isPresent(position, s)) {
+        ++census[1];
+        if (depth < mOrder - 1) {
+          ++census[2];
+        }
+        final long child = childPtr(position, s);
+        if (child != 0) {
+          census(child, depth + 1, census);
+        }
+      }
+    }
+  }
+
+  /**
+   * Convert the model into a compact read-only form.  Only symbols which
+   * occur in a context are stored, typically reducing memory use by an
+   * order of magnitude or more for higher order models.  Entropies are
+   * unchanged, but no further content can be added to the model.
+   * @exception IllegalStateException if the model is too large to compact.
+   */
+  public void compact() {
+    if (mCompact == null) {
+      rebuild();
+    }
+  }
+
+  // Build a compact tree holding the nodes reachable from the root
+  private void rebuild() {
+    final long[] census = new long[3];
+    census(ROOT, 0, census);
+    if (census[0] + ROOT > Integer.MAX_VALUE || census[1] > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Model is too large to compact");
+    }
+    final int nodes = (int) census[0] + ROOT;
+    final CompactTree tree = new CompactTree(nodes, (int) census[1], (int) census[2]);
+    // Breadth-first traversal, positions[id] is the location of node id in the original tree
+    final long[] positions = new long[nodes];
+    positions[ROOT] = ROOT;
+    int next = ROOT + 1;
+    int entry = 0;
+    for (int id = ROOT; id < nodes; ++id) {
+      final long position = positions[id];
+      int bitmap = 0;
+      tree.mFirst[id] = entry;
+      for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+        if (isPresent(position, s)) {
+          bitmap |= 1 << (s - 1);
+          tree.mCounts[entry] = count(position, s);
+          final long child = childPtr(position, s);
+          if (child != 0) {
+            positions[next] = child;
+            tree.mChildren[entry] = next++;
+          }
+          ++entry;
+        }
+      }
+      tree.mBitmaps[id] = bitmap;
+    }
+    mCompact = tree;
+    mModel = null;
+    mVines = null;
+  }
+
+  /**
+   * Return the approximate number of bytes used to store the model.
+   * @return size in bytes
+   */
+  long bytes() {
+    return mCompact != null ? mCompact.bytes() : Long.BYTES * mNextFree;
+  }
+
+  /**
+   * Return the number of context nodes in the model.
+   * @return number of nodes
+   */
+  long nodes() {
+    final long[] census = new long[3];
+    census(ROOT, 0, census);
+    return census[0];
+  }
+
+  /** A context node which could be removed, with the cost of removing it. */
+  private static final class Candidate implements Comparable<Candidate> {
+    private final int mIndex;
+    private final double mCost;
+
+    private Candidate(final int index, final double cost) {
+      mIndex = index;
+      mCost = cost;
+    }
+
+    @Override
+    public int compareTo(final Candidate other) {
+      return Double.compare(mCost, other.mCost);
+    }
+  }
+
+  // Inverse of nodeIndex()
+  private long position(final int index) {
+    return mCompact != null ? index : ROOT + 2L * ALPHABET_SIZE * index;
+  }
+
+  private void unlink(final long position, final int symbol) {
+    if (mCompact != null) {
+      mCompact.mChildren[mCompact.entry((int) position, symbol)] = 0;
+    } else {
+      mModel.set(position + 2L * symbol - 1, 0);
+    }
+  }
+
+  // Record the parent, depth, number of children, and number of entries of each node
+  private void structure(final long position, final int depth, final int[] parent, final int[] symbol, final int[] depths, final int[] children, final int[] entries) {
+    final int index = nodeIndex(position);
+    depths[index] = depth;
+    for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+      if (isPresent(position, s)) {
+        ++entries[index];
+        final long child = childPtr(position, s);
+        if (child != 0) {
+          ++children[index];
+          parent[nodeIndex(child)] = index;
+          symbol[nodeIndex(child)] = s;
+          structure(child, depth + 1, parent, symbol, depths, children, entries);
+        }
+      }
+    }
+  }
+
+  // Increase in the entropy of the training data, per symbol, if the node were
+  // removed.  A node with neither children nor longer contexts for which it is
+  // the suffix is only ever the longest context available, and after removal
+  // its predictions are made by its suffix instead.
+  private double removalCost(final long[] vines, final int index, final boolean[] exclusions) {
+    final long position = position(index);
+    long total = 0;
+    for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+      total += count(position, s);
+    }
+    double delta = 0;
+    for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+      final long c = count(position, s);
+      if (c != 0) {
+        Arrays.fill(exclusions, false);
+        final double suffixCost = entropy(vines, null, vines[index], 0, s, exclusions);
+        delta += c * (suffixCost - Math.log(total + 1) + Math.log(c));
+      }
+    }
+    return delta / Math.max(1, mOrder0Total);
+  }
+
+  /**
+   * Prune context nodes from the model.  Nodes are removed in increasing
+   * order of the increase in the entropy of the training data caused by
+   * their removal, in the manner of Stolcke's entropy-based pruning, while
+   * the increase is below the threshold or the model exceeds either size
+   * limit.  Only nodes which are the longest context for all their uses
+   * are candidates, so higher orders are pruned first, and a node becomes
+   * a candidate once all its extensions have been removed.  Afterwards the
+   * model is compact.
+   * @param threshold largest increase in entropy, in nats per training symbol, permitted for the removal of a node
+   * @param maxNodes largest number of nodes to retain
+   * @param maxBytes largest size of the compact model to retain
+   * @return number of nodes removed
+   */
+  public long prune(final double threshold, final long maxNodes, final long maxBytes) {
+    final long[] vines = linkedVines();
+    final int[] parent = new int[vines.length];
+    final int[] symbol = new int[vines.length];
+    final int[] depths = new int[vines.length];
+    final int[] children = new int[vines.length];
+    final int[] entries = new int[vines.length];
+    final int[] extensions = new int[vines.length];
+    final int root = nodeIndex(ROOT);
+    structure(ROOT, 0, parent, symbol, depths, children, entries);
+    long nodes = 0;
+    long entryCount = 0;
+    long internalEntries = 0;
+    for (int k = 0; k < vines.length; ++k) {
+      if (vines[k] != 0) {
+        ++extensions[nodeIndex(vines[k])];
+      }
+    }
+    for (int k = 0; k < vines.length; ++k) {
+      if (k == root || vines[k] != 0) {
+        ++nodes;
+        entryCount += entries[k];
+        if (depths[k] < mOrder - 1) {
+          internalEntries += entries[k];
+        }
+      }
+    }
+    // Each removal may make its prefix and its suffix removable
+    final boolean[] exclusions = new boolean[ALPHABET_SIZE];
+    final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+    for (int k = 0; k < vines.length; ++k) {
+      if (k != root && vines[k] != 0 && children[k] == 0 && extensions[k] == 0) {
+        queue.add(new Candidate(k, removalCost(vines, k, exclusions)));
+      }
+    }
+    long removed = 0;
+    while (!queue.isEmpty()) {
+      final long bytes = Integer.BYTES * (2 * (nodes + ROOT) + internalEntries) + Long.BYTES * entryCount;
+      if (queue.peek().mCost >= threshold && nodes <= maxNodes && bytes <= maxBytes) {
+        break;
+      }
+      final int index = queue.poll().mIndex;
+      unlink(position(parent[index]), symbol[index]);
+      ++removed;
+      --nodes;
+      entryCount -= entries[index];
+      if (depths[index] < mOrder - 1) {
+        internalEntries -= entries[index];
+      }
+      final int p = parent[index];
+      final int v = nodeIndex(vines[index]);
+      --children[p];
+      --extensions[v];
+      if (p != root && children[p] == 0 && extensions[p] == 0) {
+        queue.add(new Candidate(p, removalCost(vines, p, exclusions)));
+      }
+      if (v != root && v != p && children[v] == 0 && extensions[v] == 0) {
+        queue.add(new Candidate(v, removalCost(vines, v, exclusions)));
+      }
+    }
+    rebuild();
+    return removed;
+  }
+
   private void addAtOrder(final int order) {
     final int offset = mOrder - 1 - order;
     if (mContext[offset] != 0) {
@@ -159,6 +672,7 @@ public class NGramModel implements Entropy, Serializable {
    * @exception IOException if an I/O error occurs
    */
   public void add(final InputStream in) throws IOException {
+    checkWritable();
     long s = 0;
     try (BufferedInputStream is = new BufferedInputStream(in)) {
       int c;
@@ -176,68 +690,244 @@ public class NGramModel implements Entropy, Serializable {
     }
   }
 
-  private long findContext(final int[] context, final int start) {
-    long position = ROOT;
-    for (int k = start; k < context.length - 1; ++k) {
-      final long next = childPtr(position, context[k]);
-      if (next == 0) {
-        return 0;
+  // Add the counts in the subtree of another model to the corresponding subtree of this model
+  private void add(final long position, final NGramModel other, final long otherPosition) {
+    for (int s = 1; s <= ALPHABET_SIZE; ++s) {
+      final long c = other.count(otherPosition, s);
+      if (c != 0) {
+        final long nPos = position + 2L * s - 2;
+        mModel.set(nPos, mModel.get(nPos) + c);
+      }
+      final long otherChild = other.childPtr(otherPosition, s);
+      if (otherChild != 0) {
+        long child = childPtr(position, s);
+        if (child == 0) {
+          mModel.set(position + 2L * s - 1, mNextFree);
+          child = mNextFree;
+          mNextFree += 2 * ALPHABET_SIZE;
+        }
+        add(child, other, otherChild);
       }
-      position = next;
     }
-    return position;
   }
 
-  private double entropy(final int[] context, final int start, final boolean[] exclusions) {
-    if (start >= context.length || context[context.length - 1] == 0) {
+  /**
+   * Add all the counts of another model into this model.  Counts are never
+   * scaled, so the result is the same as if all the input of the other
+   * model had been added to this model.  This allows models to be built
+   * independently on different parts of a corpus and then merged.
+   * @param other model to add
+   * @exception IllegalArgumentException if the models have different orders.
+   */
+  public void add(final NGramModel other) {
+    checkWritable();
+    if (other.mOrder != mOrder) {
+      throw new IllegalArgumentException("Cannot merge order " + other.mOrder + " model into order " + mOrder + " model");
+    }
+    add(ROOT, other, ROOT);
+    mOrder0Total += other.mOrder0Total;
+  }
+
+  // Suffix of a context node of the given depth, using its suffix pointer if
+  // there are pointers, otherwise walking down from the root with the most
+  // recent symbols of the history
+  private long suffix(final long[] vines, final int[] history, final long node, final int depth) {
+    if (vines != null) {
+      return vines[nodeIndex(node)];
+    }
+    if (depth == 0) {
+      return 0;
+    }
+    long position = ROOT;
+    for (int k = history.length - depth + 1; k < history.length && position != 0; ++k) {
+      position = childPtr(position, history[k]);
+    }
+    // Every suffix of a context in the tree is also in the tree
+    return position == 0 ? ROOT : position;
+  }
+
+  // Cost of symbol in the given context node, escaping to shorter contexts
+  // via suffix pointers until the symbol is found.
+  private double entropy(final long[] vines, final int[] history, final long node, final int depth, final int symbol, final boolean[] exclusions) {
+    if (node == 0) {
       // Zeroth order prediction
       return Math.log(mOrder0Total + 1);
     }
-    int p = context.length - 1;
-    while (p > start && context[p] != 0) {
-      --p;
-    }
-    for (int k = p; k < context.length; ++k) {
-      final long parent = findContext(context, k);
-      if (parent != 0) {
-        final long cc = count(parent, context[context.length - 1]);
-        long t = 0;
-        for (int j = 1; j <= ALPHABET_SIZE; ++j) {
-          if (!exclusions[j - 1]) {
-            t += count(parent, j);
-          }
-        }
-        if (cc != 0) {
-          return Math.log(t + 1) - Math.log(cc);
-        } else {
-          for (int j = 0; j < ALPHABET_SIZE; ++j) {
-            exclusions[j] |= count(parent, j + 1) != 0;
-          }
-          return Math.log(t + 1) + entropy(context, start + 1, exclusions);
+    final long cc = count(node, symbol);
+    long t = 0;
+    for (int j = 1; j <= ALPHABET_SIZE; ++j) {
+      if (!exclusions[j - 1]) {
+        t += count(node, j);
+      }
+    }
+    if (cc != 0) {
+      return Math.log(t + 1) - Math.log(cc);
+    }
+    for (int j = 0; j < ALPHABET_SIZE; ++j) {
+      exclusions[j] |= count(node, j + 1) != 0;
+    }
+    return Math.log(t + 1) + entropy(vines, history, suffix(vines, history, node, depth), depth - 1, symbol, exclusions);
+  }
+
+  // Cost of the symbol in the given state, then advance the state past the symbol
+  private double entropy(final long[] vines, final State state, final int symbol, final boolean[] exclusions) {
+    state.mLastWasSpace = symbol == SPACE;
+    if (symbol <= 0) {
+      // Not in the alphabet, cannot be predicted and breaks the context
+      state.mNode = ROOT;
+      state.mDepth = 0;
+      return Math.log(mOrder0Total + 1);
+    }
+    Arrays.fill(exclusions, false);
+    final int[] history = state.mHistory;
+    final double e = entropy(vines, history, state.mNode, state.mDepth, symbol, exclusions);
+    // The new context is the longest context extended by the symbol that is
+    // in the model, contexts are at most mOrder - 1 symbols.
+    long node = state.mNode;
+    int depth = state.mDepth;
+    if (depth == mOrder - 1) {
+      node = suffix(vines, history, node, depth);
+      --depth;
+    }
+    state.mNode = ROOT;
+    state.mDepth = 0;
+    while (node != 0) {
+      final long child = childPtr(node, symbol);
+      if (child != 0) {
+        state.mNode = child;
+        state.mDepth = depth + 1;
+        break;
+      }
+      node = suffix(vines, history, node, depth);
+      --depth;
+    }
+    if (vines == null) {
+      state.push(symbol, Math.max(0, mOrder - 1));
+    }
+    return e;
+  }
+
+  @Override
+  public int profileLength() {
+    return mOrder + 1;
+  }
+
+  @Override
+  public void profile(final CharSequence text, final long[] hits, final long[] escapes) {
+    final long[] vines = vines();
+    final Scratch scratch = SCRATCH.get();
+    final State state = scratch.mState;
+    state.reset();
+    for (int k = 0; k < text.length(); ++k) {
+      final int w = clean(text.charAt(k));
+      if (w != SPACE || !state.mLastWasSpace) {
+        // Follow the escapes of entropy(vines, history, node, depth, symbol, exclusions)
+        long node = w <= 0 ? 0 : state.mNode;
+        int depth = state.mDepth;
+        while (node != 0 && count(node, w) == 0) {
+          ++escapes[depth + 1];
+          node = suffix(vines, state.mHistory, node, depth);
+          --depth;
         }
+        ++hits[node == 0 ? 0 : depth + 1];
+        entropy(vines, state, w, scratch.mExclusions);
       }
     }
-    return Math.log(ALPHABET_SIZE + 1);
   }
 
   @Override
   public double entropy(final String text) {
-    final int[] context = new int[mOrder];
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return entropy(buf, off, len, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    final long[] vines = vines();
+    final Scratch scratch = SCRATCH.get();
+    final State state = scratch.mState;
+    state.reset();
     double e = 0;
-    boolean lastWasSpace = true;
     for (int k = 0; k < text.length(); ++k) {
-      // After cleaning length can be zero, word will then be penalized
-      // as an unknown word, but this is probably the right thing to do.
       final int w = clean(text.charAt(k));
-      if (w != SPACE || !lastWasSpace) {
-        shiftAndInsert(context, w);
-        e += entropy(context, 0, new boolean[ALPHABET_SIZE]);
-        lastWasSpace = w == SPACE;
+      if (w != SPACE || !state.mLastWasSpace) {
+        e += entropy(vines, state, w, scratch.mExclusions);
+        if (e > cutoff) {
+          return Double.POSITIVE_INFINITY;
+        }
+      }
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    final long[] vines = vines();
+    final Scratch scratch = SCRATCH.get();
+    final State state = scratch.mState;
+    state.reset();
+    double e = 0;
+    for (int k = off; k < off + len; ++k) {
+      final int w = clean(buf[k]);
+      if (w != SPACE || !state.mLastWasSpace) {
+        e += entropy(vines, state, w, scratch.mExclusions);
+        if (e > cutoff) {
+          return Double.POSITIVE_INFINITY;
+        }
       }
     }
     return e;
   }
 
+  /** Incremental scoring maintaining the current context node. */
+  private final class ModelCursor implements Cursor {
+
+    private final State mState = new State();
+    private double mEntropy;
+
+    private ModelCursor(final State state, final double entropy) {
+      if (state != null) {
+        mState.set(state);
+      }
+      mEntropy = entropy;
+    }
+
+    @Override
+    public double append(final char c) {
+      final int w = clean(c);
+      if (w == SPACE && mState.mLastWasSpace) {
+        return 0;
+      }
+      final double e = NGramModel.this.entropy(vines(), mState, w, SCRATCH.get().mExclusions);
+      mEntropy += e;
+      return e;
+    }
+
+    @Override
+    public double entropy() {
+      return mEntropy;
+    }
+
+    @Override
+    public Cursor copy() {
+      return new ModelCursor(mState, mEntropy);
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new ModelCursor(null, 0);
+  }
+
   /**
    * Entropy via a word gram model.  Build a model using the supplied files,
    * then score each line of text on standard input.
@@ -249,24 +939,55 @@ public class NGramModel implements Entropy, Serializable {
     flags.registerRequired('o', CommonFlags.OUTPUT_FLAG, String.class, "FILE", "where to write the model");
     flags.registerOptional('i', CommonFlags.INPUT_FLAG, String.class, "FILE", "existing model to add content to");
     flags.registerOptional('O', ORDER_FLAG, Integer.class, "INT", "order of model to build", 4);
+    flags.registerOptional('c', COMPACT_FLAG, "save the model in compact read-only form");
+    flags.registerOptional(OFF_HEAP_FLAG, "hold the model tree outside the Java heap");
+    flags.registerOptional(MAPPED_FLAG, String.class, "FILE", "hold the model tree in this memory mapped file, the saved model refers to this file");
+    flags.registerOptional('m', MERGE_FLAG, String.class, "FILE", "model to merge, rather than reading standard input").setMaxCount(Integer.MAX_VALUE);
     flags.setValidator(f -> {
       if (flags.isSet(CommonFlags.INPUT_FLAG) && flags.isSet(ORDER_FLAG)) {
         flags.setParseMessage("Do not specify both existing model and order.");
         return false;
       }
+      if (flags.isSet(CommonFlags.INPUT_FLAG) && (flags.isSet(OFF_HEAP_FLAG) || flags.isSet(MAPPED_FLAG))) {
+        flags.setParseMessage("The model store can only be chosen for a new model.");
+        return false;
+      }
       return true;
     });
     flags.setFlags(args);
-    final NGramModel model;
+    NGramModel model = null;
     if (flags.isSet(CommonFlags.INPUT_FLAG)) {
       model = loadModel((String) flags.getValue(CommonFlags.INPUT_FLAG));
-    } else {
+    } else if (flags.isSet(ORDER_FLAG) || flags.isSet(OFF_HEAP_FLAG) || flags.isSet(MAPPED_FLAG) || !flags.isSet(MERGE_FLAG)) {
       final int order = (Integer) flags.getValue(ORDER_FLAG);
-      model = new NGramModel(order);
+      if (flags.isSet(MAPPED_FLAG)) {
+        model = new NGramModel(order, new OffHeapLongDynamicLongArray(new File((String) flags.getValue(MAPPED_FLAG))));
+      } else if (flags.isSet(OFF_HEAP_FLAG)) {
+        model = new NGramModel(order, new OffHeapLongDynamicLongArray());
+      } else {
+        model = new NGramModel(order);
+      }
+    }
+    if (flags.isSet(MERGE_FLAG)) {
+      for (final Object shard : flags.getValues(MERGE_FLAG)) {
+        StringUtils.message("Merging " + shard);
+        final NGramModel other = loadModel((String) shard);
+        if (model == null) {
+          model = other;
+        } else {
+          model.add(other);
+        }
+      }
+    } else {
+      StringUtils.message("Adding input to order " + model.mOrder + " model");
+      try (final InputStream fis = new BufferedInputStream(System.in)) {
+        model.add(fis);
+      }
     }
-    StringUtils.message("Adding input to order " + model.mOrder + " model");
-    try (final InputStream fis = new BufferedInputStream(System.in)) {
-      model.add(fis);
+    if (flags.isSet(COMPACT_FLAG)) {
+      final long before = model.bytes();
+      model.compact();
+      StringUtils.message("Compacted model from " + before + " to " + model.bytes() + " bytes");
     }
     final String output = (String) flags.getValue(CommonFlags.OUTPUT_FLAG);
     StringUtils.message("Saving model to " + output);
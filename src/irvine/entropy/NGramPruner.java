@@ -0,0 +1,95 @@
+package irvine.entropy;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import irvine.jilt.CommonFlags;
+import irvine.util.CliFlags;
+import irvine.util.IOUtils;
+import irvine.util.StringUtils;
+
+/**
+ * Prunes an n-gram model to a smaller model.  The contexts which least
+ * affect the entropy of the training data are removed, either while their
+ * effect is below a threshold, or until the model fits within a budget of
+ * nodes or bytes.  The sizes of the model before and after pruning are
+ * reported, together with the entropy of a validation file under each.
+ * @author Sean A. Irvine
+ */
+public final class NGramPruner {
+
+  private NGramPruner() { }
+
+  private static final String THRESHOLD_FLAG = "threshold";
+  private static final String MAX_NODES_FLAG = "max-nodes";
+  private static final String MAX_BYTES_FLAG = "max-bytes";
+  private static final String VALIDATION_FLAG = "validation";
+
+  /**
+   * Return the entropy per character of a file under a model.
+   * @param model the model
+   * @param file file to score
+   * @return entropy in bits per character
+   * @throws IOException if an I/O error occurs
+   */
+  static double bitsPerCharacter(final Entropy model, final String file) throws IOException {
+    final Entropy.Cursor cursor = model.cursor();
+    long characters = 0;
+    try (final InputStream in = new BufferedInputStream(IOUtils.getStream(file))) {
+      int c;
+      while ((c = in.read()) != -1) {
+        cursor.append((char) c);
+        ++characters;
+      }
+    }
+    return characters == 0 ? 0 : cursor.entropy() / characters / Math.log(2);
+  }
+
+  private static String describe(final NGramModel model) {
+    return model.nodes() + " nodes, " + model.bytes() + " bytes compact";
+  }
+
+  /**
+   * Prune an n-gram model.
+   * @param args see help
+   * @exception IOException if an I/O error occurs
+   */
+  public static void main(final String[] args) throws IOException {
+    final CliFlags flags = new CliFlags("NGramPruner", "Prune contexts from an n-gram model");
+    flags.registerRequired('i', CommonFlags.INPUT_FLAG, String.class, "FILE", "model to prune");
+    flags.registerRequired('o', CommonFlags.OUTPUT_FLAG, String.class, "FILE", "where to write the pruned model");
+    flags.registerOptional('t', THRESHOLD_FLAG, Double.class, "NUMBER", "remove contexts increasing the entropy of the training data by less than this many nats per symbol", 0.0);
+    flags.registerOptional('n', MAX_NODES_FLAG, Long.class, "INT", "maximum number of nodes to retain");
+    flags.registerOptional('b', MAX_BYTES_FLAG, Long.class, "INT", "maximum size of the pruned model in bytes");
+    flags.registerOptional('v', VALIDATION_FLAG, String.class, "FILE", "text on which to report the entropy before and after pruning");
+    flags.setValidator(f -> {
+      if ((Double) f.getValue(THRESHOLD_FLAG) < 0) {
+        f.setParseMessage("--" + THRESHOLD_FLAG + " cannot be negative.");
+        return false;
+      }
+      if ((f.isSet(MAX_NODES_FLAG) && (Long) f.getValue(MAX_NODES_FLAG) < 1) || (f.isSet(MAX_BYTES_FLAG) && (Long) f.getValue(MAX_BYTES_FLAG) < 1)) {
+        f.setParseMessage("Size limits must be positive.");
+        return false;
+      }
+      return true;
+    });
+    flags.setFlags(args);
+
+    final NGramModel model = NGramModel.loadModel((String) flags.getValue(CommonFlags.INPUT_FLAG));
+    final String validation = (String) flags.getValue(VALIDATION_FLAG);
+    final double before = validation == null ? 0 : bitsPerCharacter(model, validation);
+    StringUtils.message("Before: " + describe(model));
+    final long removed = model.prune((Double) flags.getValue(THRESHOLD_FLAG),
+      flags.isSet(MAX_NODES_FLAG) ? (Long) flags.getValue(MAX_NODES_FLAG) : Long.MAX_VALUE,
+      flags.isSet(MAX_BYTES_FLAG) ? (Long) flags.getValue(MAX_BYTES_FLAG) : Long.MAX_VALUE);
+    StringUtils.message("After: " + describe(model) + ", " + removed + " nodes removed");
+    if (validation != null) {
+      final double after = bitsPerCharacter(model, validation);
+      StringUtils.message(String.format("Validation entropy: %.4f bits per character before, %.4f after, %+.4f change", before, after, after - before));
+    }
+    final String output = (String) flags.getValue(CommonFlags.OUTPUT_FLAG);
+    StringUtils.message("Saving model to " + output);
+    model.saveModel(output);
+  }
+}
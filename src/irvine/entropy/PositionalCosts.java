@@ -0,0 +1,181 @@
+package irvine.entropy;
+
+import java.util.Arrays;
+
+/**
+ * The cost of each character of a text under a model, allowing the entropy
+ * of the text to be recomputed cheaply after a few of its characters have
+ * been changed.  Local searches, such as those exchanging the plaintext of
+ * two cipher symbols, typically change a small number of positions in a
+ * long text.  Since a change to a character can only affect the costs of
+ * that character and of the following <code>getOrder() - 1</code>
+ * characters, only these windows need to be rescored, and the cost of a
+ * move is proportional to the number of positions changed rather than to
+ * the length of the text.  For models with no bound on their order the
+ * whole text is rescored.
+ *
+ * The text is shared with the caller, who changes characters in place,
+ * calls <code>rescore()</code> with the changed positions, and then either
+ * calls <code>commit()</code> to accept the changes or restores the
+ * changed characters.  The total is maintained by adding differences in
+ * cost, so it can drift from the entropy of the text by a little rounding
+ * error over a long search; <code>recompute()</code> starts afresh.
+ * @author Sean A. Irvine
+ */
+public final class PositionalCosts {
+
+  private final Entropy mModel;
+  private final char[] mText;
+  private final int mLength;
+  private final int mOrder;
+  private final double[] mCosts;
+  private double mEntropy;
+  // Changes found by the most recent rescoring, awaiting commit
+  private int[] mPending = new int[0];
+  private double[] mPendingCosts = new double[0];
+  private int mPendingCount = 0;
+  private double mPendingEntropy;
+  private int[] mSorted = new int[0];
+  private double[] mWindow = new double[0];
+
+  /**
+   * Compute the costs of the first <code>length</code> characters of a text.
+   * @param model entropy model
+   * @param text text, which is retained rather than copied
+   * @param length length of the text
+   */
+  public PositionalCosts(final Entropy model, final char[] text, final int length) {
+    mModel = model;
+    mText = text;
+    mLength = length;
+    mOrder = model.getOrder();
+    mCosts = new double[length];
+    recompute();
+  }
+
+  /**
+   * Compute the costs of the characters of a text.
+   * @param model entropy model
+   * @param text text, which is retained rather than copied
+   */
+  public PositionalCosts(final Entropy model, final char[] text) {
+    this(model, text, text.length);
+  }
+
+  /**
+   * Return the text being scored.  This is the same array given at
+   * construction, so changes to it are seen by this object.
+   * @return the text
+   */
+  public char[] getText() {
+    return mText;
+  }
+
+  /**
+   * Return the length of the text.
+   * @return length
+   */
+  public int length() {
+    return mLength;
+  }
+
+  /**
+   * Return the cost of the character at the given position, as of the last
+   * commit.
+   * @param position position in the text
+   * @return cost of the character
+   */
+  public double cost(final int position) {
+    return mCosts[position];
+  }
+
+  /**
+   * Return the entropy of the text, as of the last commit.
+   * @return entropy
+   */
+  public double entropy() {
+    return mEntropy;
+  }
+
+  /** Recompute the cost of every character of the text, discarding any uncommitted rescoring. */
+  public void recompute() {
+    mModel.costs(mText, 0, mLength, mCosts);
+    double e = 0;
+    for (int k = 0; k < mLength; ++k) {
+      e += mCosts[k];
+    }
+    mEntropy = e;
+    mPendingEntropy = e;
+    mPendingCount = 0;
+  }
+
+  private void pend(final int position, final double cost) {
+    if (mPendingCount == mPending.length) {
+      final int size = Math.max(16, 2 * mPending.length);
+      mPending = Arrays.copyOf(mPending, size);
+      mPendingCosts = Arrays.copyOf(mPendingCosts, size);
+    }
+    mPending[mPendingCount] = position;
+    mPendingCosts[mPendingCount++] = cost;
+  }
+
+  // End of the window affected by a change at the given position
+  private int end(final int position) {
+    return mOrder <= 0 ? mLength : Math.min(mLength, position + mOrder);
+  }
+
+  /**
+   * Return the entropy of the text after changes to the characters at the
+   * given positions.  The changes must already have been made to the text.
+   * Positions may be given in any order and may be repeated.  Only the
+   * costs of the characters in the windows affected by the changes are
+   * recomputed.  The result is remembered until the next call, so that it
+   * can be committed.
+   * @param changed positions of changed characters
+   * @param count number of positions in <code>changed</code>
+   * @return entropy of the changed text
+   */
+  public double rescore(final int[] changed, final int count) {
+    if (mSorted.length < count) {
+      mSorted = new int[Math.max(count, 2 * mSorted.length)];
+    }
+    System.arraycopy(changed, 0, mSorted, 0, count);
+    Arrays.sort(mSorted, 0, count);
+    mPendingCount = 0;
+    double delta = 0;
+    int k = 0;
+    while (k < count) {
+      // Gather changes whose windows overlap or abut into a single run
+      final int start = mSorted[k];
+      int end = end(start);
+      while (++k < count && mSorted[k] <= end) {
+        end = Math.max(end, end(mSorted[k]));
+      }
+      // Include enough preceding text to give the run its full context
+      final int from = mOrder <= 0 ? 0 : Math.max(0, start - mOrder + 1);
+      if (mWindow.length < end - from) {
+        mWindow = new double[Math.max(end - from, 2 * mWindow.length)];
+      }
+      mModel.costs(mText, from, end - from, mWindow);
+      for (int p = start; p < end; ++p) {
+        final double cost = mWindow[p - from];
+        delta += cost - mCosts[p];
+        pend(p, cost);
+      }
+    }
+    mPendingEntropy = mEntropy + delta;
+    return mPendingEntropy;
+  }
+
+  /**
+   * Accept the changes given in the most recent call to <code>rescore()</code>.
+   * The text must not have been changed since that call.
+   */
+  public void commit() {
+    for (int k = 0; k < mPendingCount; ++k) {
+      mCosts[mPending[k]] = mPendingCosts[k];
+    }
+    mEntropy = mPendingEntropy;
+    mPendingCount = 0;
+  }
+}
@@ -0,0 +1,27 @@
+package irvine.entropy;
+
+/**
+ * A context model able to report, for each symbol of a text, the order of
+ * the context which made the prediction and the contexts escaped from on
+ * the way.  Counts are indexed by order plus one, so index 0 counts the
+ * symbols predicted by the fallback below order 0, and index 1 counts
+ * those predicted by the order 0 context.
+ * @author Sean A. Irvine
+ */
+interface Profiled {
+
+  /**
+   * Return the number of entries in the arrays of counts.
+   * @return one more than the largest context order
+   */
+  int profileLength();
+
+  /**
+   * Add the prediction and escape counts for the symbols of a text, as it
+   * would be scored by <code>entropy()</code>, to the given arrays.
+   * @param text text to profile
+   * @param hits incremented at the order of the context making each prediction
+   * @param escapes incremented at the order of each context escaped from
+   */
+  void profile(CharSequence text, long[] hits, long[] escapes);
+}
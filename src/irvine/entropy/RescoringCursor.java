@@ -0,0 +1,51 @@
+package irvine.entropy;
+
+/**
+ * A cursor for models which have no incremental scoring, each append
+ * recomputes the entropy of the entire text.
+ * @author Sean A. Irvine
+ */
+class RescoringCursor implements Entropy.Cursor {
+
+  private final Entropy mModel;
+  private final StringBuilder mText;
+  private double mEntropy;
+
+  RescoringCursor(final Entropy model) {
+    this(model, new StringBuilder(), 0);
+  }
+
+  private RescoringCursor(final Entropy model, final StringBuilder text, final double entropy) {
+    mModel = model;
+    mText = text;
+    mEntropy = entropy;
+  }
+
+  private double rescore() {
+    final double old = mEntropy;
+    mEntropy = mModel.entropy(mText.toString());
+    return mEntropy - old;
+  }
+
+  @Override
+  public double append(final char c) {
+    mText.append(c);
+    return rescore();
+  }
+
+  @Override
+  public double append(final CharSequence s) {
+    mText.append(s);
+    return rescore();
+  }
+
+  @Override
+  public double entropy() {
+    return mEntropy;
+  }
+
+  @Override
+  public Entropy.Cursor copy() {
+    return new RescoringCursor(mModel, new StringBuilder(mText), mEntropy);
+  }
+}
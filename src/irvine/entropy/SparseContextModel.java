@@ -0,0 +1,560 @@
+package irvine.entropy;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import irvine.util.CliFlags;
+import irvine.util.Date;
+import irvine.util.IOUtils;
+import irvine.util.IntegerUtils;
+
+/**
+ * Character model of arbitrary order, up to 8, using PPMC with exclusions,
+ * for alphabets of any size.  Scoring is the same as for
+ * <code>HashedContextModel</code>, but each context holds counts only for
+ * the symbols actually seen in it, and contexts are found in a hash table
+ * keyed by the context itself.  The memory used is therefore proportional
+ * to the number of distinct contexts and continuations seen in training
+ * rather than to a power of the alphabet size, which makes practical
+ * models for large alphabets, such as the 8x8 Playfair alphabet, every
+ * byte value, or accented and non-Latin text.  Alphabets may contain any
+ * characters.
+ *
+ * A context is a sequence of up to <code>order - 1</code> symbol codes,
+ * packed into a long, so larger alphabets limit the order: up to 8 for
+ * alphabets of up to 511 symbols, but only 4 for the largest alphabets.
+ *
+ * @author Sean A. Irvine
+ */
+public final class SparseContextModel implements Entropy, Serializable {
+
+  private static final long serialVersionUID = 4406398115270447183L;
+  private static final int MAX_ORDER = 8;
+  private static final int MAX_COUNT = Integer.MAX_VALUE;
+  private static final int INITIAL_CAPACITY = 1 << 10;
+  private static final int BUFFER_SIZE = 65536;
+  private static final String BUILD_FLAG = "build";
+  private static final String MODEL_FLAG = "model";
+  private static final String ALPHABET_FLAG = "alphabet";
+  private static final String BYTES_FLAG = "bytes";
+  private static final String ENCODING_FLAG = "encoding";
+  private static final String UPCASE_FLAG = "upcase";
+  private static final String VERSION_FLAG = "version";
+  private static final String ORDER_FLAG = "order";
+
+  /** The symbols seen in a single context, with their counts. */
+  private static final class Context implements Serializable {
+    private static final long serialVersionUID = -2317006925512066047L;
+    private char[] mSymbols = new char[2];
+    private int[] mCounts = new int[2];
+    private int mSize = 0;
+    private long mTotal = 0;
+
+    private void increment(final int w) {
+      for (int k = 0; k < mSize; ++k) {
+        if (mSymbols[k] == w) {
+          if (mCounts[k] == MAX_COUNT) {
+            // Halve the counts, rounding up so no count becomes zero
+            mTotal = 0;
+            for (int j = 0; j < mSize; ++j) {
+              mCounts[j] = (mCounts[j] >>> 1) + (mCounts[j] & 1);
+              mTotal += mCounts[j];
+            }
+          }
+          ++mCounts[k];
+          ++mTotal;
+          return;
+        }
+      }
+      if (mSize == mSymbols.length) {
+        mSymbols = Arrays.copyOf(mSymbols, 2 * mSize);
+        mCounts = Arrays.copyOf(mCounts, 2 * mSize);
+      }
+      mSymbols[mSize] = (char) w;
+      mCounts[mSize++] = 1;
+      ++mTotal;
+    }
+  }
+
+  /** Exclusions, marked by stamping symbols rather than clearing an array for each symbol scored. */
+  private static final class Exclusions {
+    private int[] mMarks = new int[0];
+    private int mStamp = 0;
+
+    private int[] marks(final int size) {
+      if (mMarks.length < size) {
+        mMarks = new int[size];
+        mStamp = 0;
+      }
+      if (++mStamp == 0) {
+        Arrays.fill(mMarks, 0);
+        mStamp = 1;
+      }
+      return mMarks;
+    }
+  }
+
+  private static final ThreadLocal<Exclusions> EXCLUSIONS = ThreadLocal.withInitial(Exclusions::new);
+
+  private final String mDate;
+  private final String mAlphabet;
+  private final int[] mCharToCode;
+  private final int mOrder;
+  private final int mAlphabetBits;
+  private final long mHistoryMask;    // mask for order - 1 symbols
+  private final long[] mLengthMask;   // mask for each length of context
+  private final long[] mSentinel;     // distinguishes contexts of different lengths
+  // Open addressing table of contexts, a key of 0 marks an empty slot
+  private long[] mKeys = new long[INITIAL_CAPACITY];
+  private Context[] mContexts = new Context[INITIAL_CAPACITY];
+  private int mSize = 0;
+  private boolean mUpcase = false;
+  private String mBuildCommand = null;
+  private long mTotalTraining = 0;
+
+  /**
+   * Construct a new empty model.
+   * @param alphabet characters of the alphabet
+   * @param order model order, the number of characters in a context including the predicted character
+   * @exception IllegalArgumentException if the order or alphabet is unsuitable.
+   */
+  public SparseContextModel(final String alphabet, final int order) {
+    if (order < 1 || order > MAX_ORDER) {
+      throw new IllegalArgumentException("Order must be between 1 and " + MAX_ORDER);
+    }
+    if (alphabet.isEmpty() || alphabet.length() > Character.MAX_VALUE) {
+      throw new IllegalArgumentException("Bad alphabet size: " + alphabet.length());
+    }
+    mAlphabetBits = IntegerUtils.lg(alphabet.length());
+    if (order > maxOrder(alphabet.length())) {
+      throw new IllegalArgumentException("Order " + order + " too large for alphabet of " + alphabet.length() + " symbols");
+    }
+    mDate = Date.now();
+    mAlphabet = alphabet;
+    mCharToCode = buildCharToCodeMapping(alphabet);
+    mOrder = order;
+    mHistoryMask = (1L << (mAlphabetBits * (order - 1))) - 1;
+    mLengthMask = new long[order];
+    mSentinel = new long[order];
+    for (int len = 0; len < order; ++len) {
+      mSentinel[len] = 1L << (mAlphabetBits * len);
+      mLengthMask[len] = mSentinel[len] - 1;
+    }
+  }
+
+  // A context of order - 1 symbols must fit below its sentinel bit, which
+  // may be the sign bit of the long
+  static int maxOrder(final int alphabetSize) {
+    return Math.min(MAX_ORDER, (Long.SIZE - 1) / IntegerUtils.lg(alphabetSize) + 1);
+  }
+
+  // Like the mapping for the four-gram model, but for any characters
+  private static int[] buildCharToCodeMapping(final String alphabet) {
+    int max = 0;
+    for (int k = 0; k < alphabet.length(); ++k) {
+      max = Math.max(max, alphabet.charAt(k));
+    }
+    final int[] charToCode = new int[max + 1];
+    for (int k = 0; k < alphabet.length(); ++k) {
+      final char c = alphabet.charAt(k);
+      if (charToCode[c] != 0) {
+        throw new IllegalArgumentException("Repeated characters in alphabet: " + c);
+      }
+      charToCode[c] = k + 1; // code 0 is reserved
+    }
+    return charToCode;
+  }
+
+  /**
+   * Serialize the current model.
+   * @param filename output filename
+   * @throws IOException if an I/O error occurs
+   */
+  void saveModel(final String filename) throws IOException {
+    try (final ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
+      oos.writeObject(this);
+    }
+  }
+
+  /**
+   * Load a model.
+   * @param filename file name of the model
+   * @return the model
+   * @exception IOException if an I/O error occurs
+   */
+  public static SparseContextModel loadModel(final String filename) throws IOException {
+    try (final ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(IOUtils.getStream(filename)))) {
+      return (SparseContextModel) ois.readObject();
+    } catch (final ClassNotFoundException e) {
+      throw new RuntimeException("Incompatible model file", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Sparse order-" + mOrder + " model of " + mAlphabet.length() + " symbols built on " + mDate + " training size " + mTotalTraining + " contexts " + mSize + "\n" + mBuildCommand;
+  }
+
+  public boolean isUpcase() {
+    return mUpcase;
+  }
+
+  public void setUpcase(final boolean upcase) {
+    mUpcase = upcase;
+  }
+
+  public String getBuildCommand() {
+    return mBuildCommand;
+  }
+
+  public void setBuildCommand(final String buildCommand) {
+    mBuildCommand = buildCommand;
+  }
+
+  /**
+   * Get the alphabet used by this model.
+   * @return the alphabet
+   */
+  public String getAlphabet() {
+    return mAlphabet;
+  }
+
+  @Override
+  public int getOrder() {
+    return mOrder;
+  }
+
+  /**
+   * Return the number of contexts seen in training.
+   * @return number of contexts
+   */
+  public int contexts() {
+    return mSize;
+  }
+
+  private int charToCode(final int s) {
+    final int c = mUpcase ? Character.toUpperCase(s) : s;
+    return c < mCharToCode.length ? mCharToCode[c] : 0;
+  }
+
+  private static int mix(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 29;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private long key(final long history, final int length) {
+    return (history & mLengthMask[length]) | mSentinel[length];
+  }
+
+  private Context find(final long key) {
+    final int mask = mKeys.length - 1;
+    int i = mix(key) & mask;
+    long k;
+    while ((k = mKeys[i]) != 0) {
+      if (k == key) {
+        return mContexts[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  private void grow() {
+    final long[] keys = mKeys;
+    final Context[] contexts = mContexts;
+    mKeys = new long[2 * keys.length];
+    mContexts = new Context[2 * keys.length];
+    final int mask = mKeys.length - 1;
+    for (int j = 0; j < keys.length; ++j) {
+      if (keys[j] != 0) {
+        int i = mix(keys[j]) & mask;
+        while (mKeys[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        mKeys[i] = keys[j];
+        mContexts[i] = contexts[j];
+      }
+    }
+  }
+
+  private Context claim(final long key) {
+    final int mask = mKeys.length - 1;
+    int i = mix(key) & mask;
+    long k;
+    while ((k = mKeys[i]) != 0) {
+      if (k == key) {
+        return mContexts[i];
+      }
+      i = (i + 1) & mask;
+    }
+    if (2 * (mSize + 1) > mKeys.length) {
+      // Keep the table at most half full
+      grow();
+      return claim(key);
+    }
+    final Context context = new Context();
+    mKeys[i] = key;
+    mContexts[i] = context;
+    ++mSize;
+    return context;
+  }
+
+  /**
+   * Add the characters read from the given reader to this model.
+   * Characters not in the alphabet are ignored.
+   * @param reader source of training text
+   * @throws IOException if an I/O error occurs
+   */
+  void add(final Reader reader) throws IOException {
+    try (final Reader r = reader) {
+      final char[] buf = new char[BUFFER_SIZE];
+      int len;
+      long history = 0;
+      int length = 0;
+      while ((len = r.read(buf)) != -1) {
+        for (int j = 0; j < len; ++j) {
+          final int w = charToCode(buf[j]);
+          if (w != 0) { // ignore symbols outside the alphabet
+            ++mTotalTraining;
+            for (int k = 0; k <= length; ++k) {
+              claim(key(history, k)).increment(w);
+            }
+            history = ((history << mAlphabetBits) | w) & mHistoryMask;
+            if (length < mOrder - 1) {
+              ++length;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Add UTF-8 text read from the given stream to this model.
+   * @param in source of training text
+   * @throws IOException if an I/O error occurs
+   */
+  void add(final InputStream in) throws IOException {
+    add(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  // Cost of symbol w following the given number of symbols of history,
+  // escaping from the longest context present down to shorter contexts
+  private double entropy(final long history, final int length, final int w, final Exclusions exclusions) {
+    double e = 0;
+    if (w != 0) {
+      final int[] marks = exclusions.marks(mAlphabet.length() + 1);
+      final int stamp = exclusions.mStamp;
+      for (int k = length; k >= 0; --k) {
+        final Context context = find(key(history, k));
+        if (context != null) {
+          long parentCount = 0;
+          int count = 0;
+          final char[] symbols = context.mSymbols;
+          final int[] counts = context.mCounts;
+          for (int j = 0; j < context.mSize; ++j) {
+            final int s = symbols[j];
+            if (marks[s] != stamp) {
+              parentCount += counts[j];
+              marks[s] = stamp;
+              if (s == w) {
+                count = counts[j];
+              }
+            }
+          }
+          if (count != 0) {
+            return e + Math.log(parentCount + 1) - Math.log(count);
+          }
+          e += Math.log(parentCount + 1);
+        }
+      }
+    }
+    // Symbol never seen, or not in the alphabet
+    final Context root = find(key(0, 0));
+    return e + Math.log((root == null ? 0 : root.mTotal) + 1);
+  }
+
+  @Override
+  public double entropy(final String text) {
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return entropy(buf, off, len, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    final Exclusions exclusions = EXCLUSIONS.get();
+    long history = 0;
+    int length = 0;
+    double e = 0;
+    for (int k = 0; k < text.length(); ++k) {
+      final int w = charToCode(text.charAt(k));
+      e += entropy(history, length, w, exclusions);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+      // A symbol outside the alphabet breaks the context
+      history = ((history << mAlphabetBits) | w) & mHistoryMask;
+      length = w == 0 ? 0 : Math.min(length + 1, mOrder - 1);
+    }
+    return e;
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    final Exclusions exclusions = EXCLUSIONS.get();
+    long history = 0;
+    int length = 0;
+    double e = 0;
+    for (int k = off; k < off + len; ++k) {
+      final int w = charToCode(buf[k]);
+      e += entropy(history, length, w, exclusions);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+      history = ((history << mAlphabetBits) | w) & mHistoryMask;
+      length = w == 0 ? 0 : Math.min(length + 1, mOrder - 1);
+    }
+    return e;
+  }
+
+  /** Incremental scoring directly on the model context. */
+  private final class ModelCursor implements Cursor {
+
+    private long mHistory;
+    private int mLength;
+    private double mEntropy;
+
+    private ModelCursor(final long history, final int length, final double entropy) {
+      mHistory = history;
+      mLength = length;
+      mEntropy = entropy;
+    }
+
+    @Override
+    public double append(final char c) {
+      final int w = charToCode(c);
+      final double e = SparseContextModel.this.entropy(mHistory, mLength, w, EXCLUSIONS.get());
+      mHistory = ((mHistory << mAlphabetBits) | w) & mHistoryMask;
+      mLength = w == 0 ? 0 : Math.min(mLength + 1, mOrder - 1);
+      mEntropy += e;
+      return e;
+    }
+
+    @Override
+    public double entropy() {
+      return mEntropy;
+    }
+
+    @Override
+    public Cursor copy() {
+      return new ModelCursor(mHistory, mLength, mEntropy);
+    }
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new ModelCursor(0, 0, 0);
+  }
+
+  // Every byte value, for byte-level models
+  private static String bytes() {
+    final StringBuilder sb = new StringBuilder();
+    for (char c = 0; c < 256; ++c) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Build or query a sparse context model.
+   * @param args source files
+   * @exception IOException if an I/O error occurs
+   */
+  public static void main(final String[] args) throws IOException {
+    final CliFlags flags = new CliFlags("Sparse context entropy models for large alphabets");
+    flags.registerRequired('m', MODEL_FLAG, String.class, "model", "name of model to load or build");
+    flags.registerOptional('b', BUILD_FLAG, "build model and save in specified file name");
+    flags.registerOptional('O', ORDER_FLAG, Integer.class, "int", "order of model to build", 5);
+    flags.registerOptional('u', UPCASE_FLAG, "convert lowercase letters to uppercase");
+    flags.registerOptional('V', VERSION_FLAG, "display model information");
+    flags.registerOptional('a', ALPHABET_FLAG, String.class, "string", "alphabet of characters to build", "ABCDEFGHIJKLMNOPQRSTUVWXYZ ");
+    flags.registerOptional(BYTES_FLAG, "build a model of every byte value, reading input as ISO-8859-1");
+    flags.registerOptional('e', ENCODING_FLAG, String.class, "string", "character encoding of input files", "UTF-8");
+    flags.registerRequired(String.class, "file", "input files to build, or - for standard input")
+      .setMinCount(0)
+      .setMaxCount(Integer.MAX_VALUE);
+    flags.setValidator(f -> {
+      final int order = (Integer) f.getValue(ORDER_FLAG);
+      if (order < 1 || order > MAX_ORDER) {
+        f.setParseMessage("--" + ORDER_FLAG + " must be between 1 and " + MAX_ORDER + ".");
+        return false;
+      }
+      final int size = (f.isSet(BYTES_FLAG) ? bytes() : (String) f.getValue(ALPHABET_FLAG)).length();
+      if (size == 0) {
+        f.setParseMessage("--" + ALPHABET_FLAG + " must not be empty.");
+        return false;
+      }
+      if (f.isSet(BUILD_FLAG) && order > maxOrder(size)) {
+        f.setParseMessage("--" + ORDER_FLAG + " must be at most " + maxOrder(size) + " for an alphabet of " + size + " symbols.");
+        return false;
+      }
+      if (!Charset.isSupported((String) f.getValue(ENCODING_FLAG))) {
+        f.setParseMessage("Unsupported encoding: " + f.getValue(ENCODING_FLAG));
+        return false;
+      }
+      return true;
+    });
+    flags.setFlags(args);
+
+    final String modelName = (String) flags.getValue(MODEL_FLAG);
+    final Charset charset = flags.isSet(BYTES_FLAG) ? StandardCharsets.ISO_8859_1 : Charset.forName((String) flags.getValue(ENCODING_FLAG));
+    if (flags.isSet(BUILD_FLAG)) {
+      final String alphabet = flags.isSet(BYTES_FLAG) ? bytes() : (String) flags.getValue(ALPHABET_FLAG);
+      final SparseContextModel model = new SparseContextModel(alphabet, (Integer) flags.getValue(ORDER_FLAG));
+      model.setUpcase(flags.isSet(UPCASE_FLAG));
+      model.setBuildCommand(Arrays.toString(args));
+      for (final Object inputFile : flags.getAnonymousValues(0)) {
+        System.out.println("Adding: " + inputFile);
+        model.add(new InputStreamReader("-".equals(inputFile) ? System.in : IOUtils.getStream((String) inputFile), charset));
+      }
+      model.saveModel(modelName);
+      if (flags.isSet(VERSION_FLAG)) {
+        System.out.println(model);
+      }
+      System.out.println("Model saved.");
+    } else {
+      final SparseContextModel model = loadModel(modelName);
+      if (flags.isSet(VERSION_FLAG)) {
+        System.out.println(model.toString());
+      }
+      try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in, charset))) {
+        String line;
+        while ((line = r.readLine()) != null) {
+          System.out.println(model.entropy(line) + " " + line);
+        }
+      }
+    }
+  }
+}
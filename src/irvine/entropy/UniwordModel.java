@@ -1,18 +1,26 @@
 package irvine.entropy;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import irvine.util.DynamicLongArray;
 import irvine.util.IrvineHashFunction;
@@ -21,63 +29,214 @@ import irvine.util.StringUtils;
 
 /**
  * Reduced alphabet single word model.
+ *
+ * Words are known only by their hash, and a log-scaled count is kept for
+ * each hash in an open addressing table.  Text is split, cleaned, and
+ * hashed in a single pass without creating strings.  Saved models are
+ * stored little-endian so that the table can be memory mapped when a model
+ * is loaded from a file.  Models in the original gzip compressed format of
+ * sorted hashes can still be read.
  * @author Sean A. Irvine
  */
 public class UniwordModel implements Entropy {
 
+  private static final String DEFAULT_MODEL = "irvine/resources/uniword_english.model";
+
   /**
    * Return the default model for English language problems.
    * @return English model
    */
   public static UniwordModel defaultEnglishModel() {
     try {
-      return new UniwordModel(UniwordModel.class.getClassLoader().getResourceAsStream("irvine/resources/uniword_english.model"));
+      final InputStream is = UniwordModel.class.getClassLoader().getResourceAsStream(DEFAULT_MODEL);
+      if (is == null) {
+        throw new IOException("Missing model resource " + DEFAULT_MODEL);
+      }
+      return new UniwordModel(is);
     } catch (final IOException e) {
       throw new RuntimeException("Problem accessing unigram word model", e);
     }
   }
 
-  private final long[] mHashes;
-  private final byte[] mCounts;
+  private static final byte[] MAGIC = "JILTUNIW".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 4 * Integer.BYTES + 2 * Double.BYTES;
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final char SEPARATOR = 1;
+  private static final char DROPPED = '\uFFFF';
+
+  /** The lookup table and scaling of a model. */
+  private static final class Table {
+    private final LongBuffer mHashes;
+    private final ByteBuffer mCounts;
+    private final int mZeroCount;
+    private final double mLogTotalCount;
+    private final double mScalingFactor;
+
+    private Table(final LongBuffer hashes, final ByteBuffer counts, final int zeroCount, final double logTotalCount, final double scalingFactor) {
+      mHashes = hashes;
+      mCounts = counts;
+      mZeroCount = zeroCount;
+      mLogTotalCount = logTotalCount;
+      mScalingFactor = scalingFactor;
+    }
+  }
+
+  /** Open addressing table of word hashes, size is a power of 2, 0 for an empty slot. */
+  private final LongBuffer mHashes;
+  /** Log-scaled count for each slot of the table. */
+  private final ByteBuffer mCounts;
+  /** Log-scaled count of a word with hash 0, which cannot be in the table, or -1. */
+  private final int mZeroCount;
+  private final int mMask;
   private final double mLogTotalCount;
   private final double mScalingFactor;
-  private final IrvineHashFunction mHasher = new IrvineHashFunction();
 
-  UniwordModel(final InputStream is) throws IOException {
-    try (final DataInputStream dis = new DataInputStream(new GZIPInputStream(is))) {
-      final int len = dis.readInt();
-      mHashes = new long[len];
-      for (int k = 0; k < mHashes.length; ++k) {
-        mHashes[k] = dis.readLong();
+  private UniwordModel(final Table table) {
+    mHashes = table.mHashes;
+    mCounts = table.mCounts;
+    mZeroCount = table.mZeroCount;
+    mMask = mHashes.limit() - 1;
+    mLogTotalCount = table.mLogTotalCount;
+    mScalingFactor = table.mScalingFactor;
+  }
+
+  // This is part of the file format, it must not be changed
+  private static int slot(final long hash, final int mask) {
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  // Build the table from hashes and corresponding log-scaled counts.
+  // Where hashes collide, the first count is retained.
+  private static Table table(final long[] hashes, final byte[] counts, final double logTotalCount, final double scalingFactor) {
+    final int capacity = Integer.highestOneBit(Math.max(1, 2 * hashes.length - 1)) << 1;
+    final int mask = capacity - 1;
+    final LongBuffer table = LongBuffer.allocate(capacity);
+    final ByteBuffer tableCounts = ByteBuffer.allocate(capacity);
+    int zeroCount = -1;
+    for (int k = 0; k < hashes.length; ++k) {
+      final long h = hashes[k];
+      if (h == 0) {
+        if (zeroCount < 0) {
+          zeroCount = counts[k] & 0xFF;
+        }
+      } else {
+        int i = slot(h, mask);
+        long t;
+        while ((t = table.get(i)) != 0 && t != h) {
+          i = (i + 1) & mask;
+        }
+        if (t == 0) {
+          table.put(i, h);
+          tableCounts.put(i, counts[k]);
+        }
       }
-      mCounts = new byte[len];
-      for (int k = 0; k < mCounts.length; ++k) {
-        mCounts[k] = dis.readByte();
+    }
+    return new Table(table, tableCounts, zeroCount, logTotalCount, scalingFactor);
+  }
+
+  private static void readFully(final ReadableByteChannel channel, final ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) < 0) {
+        throw new EOFException("Truncated word model");
       }
-      mLogTotalCount = dis.readDouble();
-      mScalingFactor = dis.readDouble();
     }
+    buf.flip();
   }
 
-  private static final String[] EMPTY = new String[0];
+  // Parse the header, giving the scaling and table capacity but not the table itself
+  private static Table parseHeader(final ByteBuffer header, final int[] capacity) throws IOException {
+    header.position(MAGIC.length);
+    final int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported word model version " + version);
+    }
+    capacity[0] = header.getInt();
+    if (Integer.bitCount(capacity[0]) != 1) {
+      throw new IOException("Corrupt word model");
+    }
+    final int zeroCount = header.getInt();
+    header.getInt(); // reserved
+    return new Table(null, null, zeroCount, header.getDouble(), header.getDouble());
+  }
 
-  static String[] split(final String line) {
-    if (line.length() > 3 && line.charAt(0) == '\\' && line.charAt(2) == '{' && line.charAt(1) != 'E' && line.charAt(1) != 'J') {
-      // Skip non-English dictionary lines
-      return EMPTY;
+  // Read the original gzip compressed format of sorted hashes and counts
+  private static Table readLegacy(final InputStream is) throws IOException {
+    try (final ReadableByteChannel channel = Channels.newChannel(new GZIPInputStream(is))) {
+      final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+      readFully(channel, length);
+      final int len = length.getInt();
+      final ByteBuffer data = ByteBuffer.allocate(len * (Long.BYTES + 1) + 2 * Double.BYTES);
+      readFully(channel, data);
+      final long[] hashes = new long[len];
+      data.asLongBuffer().get(hashes);
+      data.position(len * Long.BYTES);
+      final byte[] counts = new byte[len];
+      data.get(counts);
+      return table(hashes, counts, data.getDouble(), data.getDouble());
+    }
+  }
+
+  private static Table read(final InputStream in) throws IOException {
+    try (final InputStream is = new BufferedInputStream(in)) {
+      is.mark(MAGIC.length);
+      final byte[] magic = new byte[MAGIC.length];
+      if (is.readNBytes(magic, 0, magic.length) != magic.length || !Arrays.equals(MAGIC, magic)) {
+        is.reset();
+        return readLegacy(is);
+      }
+      final ReadableByteChannel channel = Channels.newChannel(is);
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).put(magic);
+      readFully(channel, header);
+      final int[] capacity = new int[1];
+      final Table t = parseHeader(header, capacity);
+      final ByteBuffer hashes = ByteBuffer.allocate(capacity[0] * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, hashes);
+      final ByteBuffer counts = ByteBuffer.allocate(capacity[0]);
+      readFully(channel, counts);
+      return new Table(hashes.asLongBuffer(), counts, t.mZeroCount, t.mLogTotalCount, t.mScalingFactor);
     }
-    if (line.contains("\\PSQ")) {
-      // Protein sequences in dictionary
-      return EMPTY;
+  }
+
+  // Memory map a model in the current format, otherwise read it
+  private static Table open(final String modelName) throws IOException {
+    try (final FileChannel channel = FileChannel.open(Paths.get(modelName), StandardOpenOption.READ)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      final byte[] magic = new byte[MAGIC.length];
+      if (channel.size() >= HEADER_SIZE) {
+        readFully(channel, header);
+        header.get(magic);
+      }
+      if (!Arrays.equals(MAGIC, magic)) {
+        return read(new FileInputStream(modelName));
+      }
+      final int[] capacity = new int[1];
+      final Table t = parseHeader(header, capacity);
+      final long tableBytes = (long) capacity[0] * Long.BYTES;
+      if (channel.size() < HEADER_SIZE + tableBytes + capacity[0]) {
+        throw new IOException("Truncated word model " + modelName);
+      }
+      // The mappings remain valid after the channel is closed
+      final LongBuffer hashes = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, tableBytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+      final ByteBuffer counts = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + tableBytes, capacity[0]);
+      return new Table(hashes, counts, t.mZeroCount, t.mLogTotalCount, t.mScalingFactor);
     }
-    return line.split("[ \n\t\r\f\u000B/~=(){}\\[\\]]+");
+  }
+
+  UniwordModel(final InputStream is) throws IOException {
+    this(read(is));
   }
 
   UniwordModel(final File in) throws IOException {
+    this(build(in));
+  }
+
+  private static Table build(final File in) throws IOException {
     final IrvineHashFunction hf = new IrvineHashFunction();
     final DynamicLongArray hashes = new DynamicLongArray();
     final DynamicLongArray counts = new DynamicLongArray();
     long maxCount = 0;
+    final double logTotalCount;
     try (final BufferedReader r = new BufferedReader(new FileReader(in))) {
       long t = 0;
       int p = 0;
@@ -96,79 +255,170 @@ public class UniwordModel implements Entropy {
           ++p;
         }
       }
-      mLogTotalCount = Math.log(t + 1);
+      logTotalCount = Math.log(t + 1);
     }
-    mHashes = hashes.toArray();
+    final long[] sortedHashes = hashes.toArray();
     final long[] lCounts = counts.toArray();
-    assert mHashes.length == lCounts.length;
-    Sort.sort(mHashes, lCounts);
+    assert sortedHashes.length == lCounts.length;
+    Sort.sort(sortedHashes, lCounts);
     int collisions = 0;
-    for (int k = 0; k < mHashes.length - 1; ++k) {
-      if (mHashes[k] == mHashes[k + 1]) {
+    for (int k = 0; k < sortedHashes.length - 1; ++k) {
+      if (sortedHashes[k] == sortedHashes[k + 1]) {
         ++collisions;
       }
     }
     System.out.println("There were " + collisions + " collisions (ideally 0)");
-    mCounts = new byte[lCounts.length];
-    mScalingFactor = Math.log(maxCount) / 255.0;
-    assert -1 == (byte) (Math.log(maxCount) / mScalingFactor + 0.5);
-    System.out.println("maxcount=" + maxCount + " logScalingFactor=" + mScalingFactor);
-    for (int k = 0; k < mCounts.length; ++k) {
-      mCounts[k] = (byte) (Math.log(lCounts[k]) / mScalingFactor + 0.5);
+    final byte[] scaledCounts = new byte[lCounts.length];
+    final double scalingFactor = Math.log(maxCount) / 255.0;
+    assert -1 == (byte) (Math.log(maxCount) / scalingFactor + 0.5);
+    System.out.println("maxcount=" + maxCount + " logScalingFactor=" + scalingFactor);
+    for (int k = 0; k < scaledCounts.length; ++k) {
+      scaledCounts[k] = (byte) (Math.log(lCounts[k]) / scalingFactor + 0.5);
     }
+    return table(sortedHashes, scaledCounts, logTotalCount, scalingFactor);
   }
 
   /**
-   * Load a model from the specified file name.
+   * Load a model from the specified file name.  A model in the current
+   * format is memory mapped.
    * @param modelName file name of model
    * @exception IOException if an I/O error occurs
    */
   public UniwordModel(final String modelName) throws IOException {
-    this(new FileInputStream(modelName));
+    this(open(modelName));
+  }
+
+  // Dictionary lines which are not English are ignored entirely
+  private static boolean isIgnored(final CharSequence line) {
+    if (line.length() > 3 && line.charAt(0) == '\\' && line.charAt(2) == '{' && line.charAt(1) != 'E' && line.charAt(1) != 'J') {
+      // Skip non-English dictionary lines
+      return true;
+    }
+    for (int k = 0; k + 3 < line.length(); ++k) {
+      if (line.charAt(k) == '\\' && line.charAt(k + 1) == 'P' && line.charAt(k + 2) == 'S' && line.charAt(k + 3) == 'Q') {
+        // Protein sequences in dictionary
+        return true;
+      }
+    }
+    return false;
   }
 
-  private double penalty(final String w) {
-    for (int k = 0; k < w.length(); ++k) {
-      if (!Character.isLetter(w.charAt(k))) {
-        return 1.5;
+  // Log-scaled count of the word with the given hash, or -1 if it is unknown
+  private int count(final long hash) {
+    if (hash == 0) {
+      return mZeroCount;
+    }
+    int i = slot(hash, mMask);
+    long h;
+    while ((h = mHashes.get(i)) != 0) {
+      if (h == hash) {
+        return mCounts.get(i) & 0xFF;
       }
+      i = (i + 1) & mMask;
     }
-    return 1;
+    return -1;
+  }
+
+  private double entropy(final long hash, final boolean digit) {
+    final int count = count(hash);
+    if (count >= 0) {
+      return mLogTotalCount - count * mScalingFactor;
+    }
+    // Unknown word, penalize those with non-letters to a greater extent
+    return digit ? mLogTotalCount * 1.5 : mLogTotalCount;
   }
 
   @Override
   public double entropy(final String text) {
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len) {
+    return entropy(CharBuffer.wrap(buf, off, len), Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final char[] buf, final int off, final int len, final double cutoff) {
+    return entropy(CharBuffer.wrap(buf, off, len), cutoff);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    if (isIgnored(text)) {
+      return 0;
+    }
+    // Each word is cleaned, as per StringUtils.clean, and hashed as it is read
     double e = 0;
-    for (final String s : split(text)) {
-      if (!s.isEmpty()) {
-        final String clean = StringUtils.clean(s);
-        if (!clean.isEmpty()) {
-          final int p = Arrays.binarySearch(mHashes, mHasher.hash(clean));
-          if (p >= 0) {
-            e += mLogTotalCount - (mCounts[p] & 0xFF) * mScalingFactor;
-          } else {
-            // Unknown word, penalize those with non-letters to a greater extent
-            e += mLogTotalCount * penalty(clean);
+    long hash = 0;
+    int length = 0;
+    boolean inWord = false;
+    boolean unclean = false;
+    boolean digit = false;
+    for (int k = 0; k <= text.length(); ++k) {
+      final char c = k < text.length() ? StringUtils.cleanChar(text.charAt(k)) : SEPARATOR;
+      if (c == SEPARATOR) {
+        if (inWord) {
+          e += unclean || length == 0 ? mLogTotalCount : entropy(hash, digit);
+          if (e > cutoff) {
+            return Double.POSITIVE_INFINITY;
           }
-        } else {
-          e += mLogTotalCount;
+          hash = 0;
+          length = 0;
+          inWord = false;
+          unclean = false;
+          digit = false;
+        }
+      } else {
+        inWord = true;
+        if (c == 0) {
+          unclean = true;
+        } else if (c != DROPPED) {
+          hash = IrvineHashFunction.update(hash, length++, c);
+          digit |= c <= '9';
         }
       }
     }
     return e;
   }
 
+  private static void write(final FileChannel channel, final ByteBuffer chunk) throws IOException {
+    chunk.flip();
+    while (chunk.hasRemaining()) {
+      channel.write(chunk);
+    }
+    chunk.clear();
+  }
+
   private void saveModel(final String filename) throws IOException {
-    try (final DataOutputStream dos = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
-      dos.writeInt(mHashes.length);
-      for (final long h : mHashes) {
-        dos.writeLong(h);
+    final int capacity = mHashes.limit();
+    try (final FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      chunk.put(MAGIC);
+      chunk.putInt(VERSION);
+      chunk.putInt(capacity);
+      chunk.putInt(mZeroCount);
+      chunk.putInt(0); // reserved
+      chunk.putDouble(mLogTotalCount);
+      chunk.putDouble(mScalingFactor);
+      for (int k = 0; k < capacity; ++k) {
+        if (chunk.remaining() < Long.BYTES) {
+          write(channel, chunk);
+        }
+        chunk.putLong(mHashes.get(k));
       }
-      for (final byte c : mCounts) {
-        dos.writeByte(c & 0xFF);
+      for (int k = 0; k < capacity; ++k) {
+        if (!chunk.hasRemaining()) {
+          write(channel, chunk);
+        }
+        chunk.put(mCounts.get(k));
       }
-      dos.writeDouble(mLogTotalCount);
-      dos.writeDouble(mScalingFactor);
+      write(channel, chunk);
     }
   }
 
@@ -184,14 +434,7 @@ public class UniwordModel implements Entropy {
       model.saveModel(modelName);
       System.out.println("Model saved.");
     } else {
-      final UniwordModel model;
-      if (args == null || args.length == 0) {
-        model = defaultEnglishModel();
-      } else {
-        try (final FileInputStream is = new FileInputStream(args[0])) {
-          model = new UniwordModel(is);
-        }
-      }
+      final UniwordModel model = args == null || args.length == 0 ? defaultEnglishModel() : new UniwordModel(args[0]);
       try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
         String line;
         while ((line = r.readLine()) != null) {
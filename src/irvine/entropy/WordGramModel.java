@@ -1,199 +1,533 @@
 package irvine.entropy;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import irvine.jilt.CommonFlags;
+import irvine.util.CliFlags;
+import irvine.util.StringUtils;
 
 /**
  * Compute entropy via word grams.
+ *
+ * Words are interned into integer identifiers by a lexicon.  Each node of
+ * the model is a word following a context node (the root being the empty
+ * context), and the child of a node for a given word is found by probing
+ * an open addressing table keyed by the pair of identifiers.  Counts are
+ * held per node.  A model can be saved to a file whose sections can be
+ * memory mapped and used in place, so loading a model is almost free.
+ *
  * @author Sean A. Irvine
  */
 public class WordGramModel implements Entropy {
 
   private static final int LONGEST_SENSIBLE_WORD = 30;
+  private static final int ROOT = 0;
+  private static final int INITIAL_CAPACITY = 1 << 12;
+  private static final byte[] MAGIC = "JILTWORD".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 8 * Integer.BYTES;
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final String ORDER_FLAG = "order";
 
-  private final int mOrder;
-  private final Node mRoot = new Node();
-  private final String[] mContext;
+  /** Splits text into cleaned words without creating strings. */
+  private static final class Words {
+    private final char[] mWord = new char[LONGEST_SENSIBLE_WORD];
+    private CharSequence mText;
+    private int mPosition;
+    private int mLength;
+
+    private void reset(final CharSequence text) {
+      mText = text;
+      mPosition = 0;
+    }
+
+    // As per the \s character class of regular expressions
+    private static boolean isSpace(final char c) {
+      return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    // Move to the next word, leaving its cleaned form in mWord.  Cleaning
+    // strips all but letters and digits, but a word that is too long or
+    // that has more than one stripped character is cleaned to nothing.
+    private boolean next() {
+      final int n = mText.length();
+      while (mPosition < n && isSpace(mText.charAt(mPosition))) {
+        ++mPosition;
+      }
+      if (mPosition == n) {
+        return false;
+      }
+      final int start = mPosition;
+      int bad = 0;
+      mLength = 0;
+      char c;
+      while (mPosition < n && !isSpace(c = mText.charAt(mPosition))) {
+        final char u = Character.toUpperCase(c);
+        if ((u >= 'A' && u <= 'Z') || (u >= '0' && u <= '9')) {
+          if (mLength < LONGEST_SENSIBLE_WORD) {
+            mWord[mLength++] = u;
+          }
+        } else {
+          ++bad;
+        }
+        ++mPosition;
+      }
+      if (bad >= 2 || mPosition - start > LONGEST_SENSIBLE_WORD) {
+        mLength = 0;
+      }
+      return true;
+    }
+  }
 
-  private static class Node {
-    long mCount = 0;
-    HashMap<String, Node> mChildren = null;
+  /** Per-thread working space used during scoring. */
+  private static final class Scratch {
+    private final Words mWords = new Words();
+    private final int[] mContext;
+
+    private Scratch(final int order) {
+      mContext = new int[order];
+    }
   }
 
+  private final int mOrder;
+  private final boolean mWritable;
+  private final Lexicon mLexicon;
+  private int mNodes;
+  /** Count of each node, the root count is the number of training words. */
+  private LongBuffer mCounts;
+  /** Open addressing table of (context node, word) pairs, size is a power of 2. */
+  private LongBuffer mKeys;
+  /** Node corresponding to each key. */
+  private IntBuffer mChildren;
+  /** Node for each length of context during training, -1 if not yet available. */
+  private final int[] mContext;
+  private final Words mWords = new Words();
+  private final ThreadLocal<Scratch> mScratch;
+
+  private WordGramModel(final int order, final boolean writable, final Lexicon lexicon, final int nodes, final LongBuffer counts, final LongBuffer keys, final IntBuffer children) {
+    mOrder = order;
+    mWritable = writable;
+    mLexicon = lexicon;
+    mNodes = nodes;
+    mCounts = counts;
+    mKeys = keys;
+    mChildren = children;
+    mContext = new int[order];
+    reset(mContext);
+    mScratch = ThreadLocal.withInitial(() -> new Scratch(mOrder));
+  }
 
   /**
    * Construct a new word gram model.
    *
    * @param order order of model
-   * @exception IllegalArgumentException if <code>order</code> is negative.
+   * @exception IllegalArgumentException if <code>order</code> is not positive.
    */
   public WordGramModel(final int order) {
-    if (order < 0) {
+    this(checkOrder(order), true, new Lexicon(), 1, LongBuffer.wrap(new long[INITIAL_CAPACITY]), LongBuffer.wrap(new long[INITIAL_CAPACITY]), IntBuffer.wrap(new int[INITIAL_CAPACITY]));
+  }
+
+  private static int checkOrder(final int order) {
+    if (order < 1) {
       throw new IllegalArgumentException();
     }
-    mOrder = order;
-    mContext = new String[mOrder];
+    return order;
   }
 
-  private void add(final int order) {
-    final int offset = mOrder - 1 - order;
-    if (mContext[offset] != null) {
-      Node position = mRoot;
-      // Initial scan down is guaranteed to find nodes
-      for (int j = offset; j < mOrder - 1; ++j) {
-        position = position.mChildren.get(mContext[j]);
-      }
-      if (position.mChildren == null) {
-        position.mChildren = new HashMap<>();
-      }
-      final String s = mContext[mOrder - 1];
-      Node n = position.mChildren.get(s);
-      if (n == null) {
-        n = new Node();
-        n.mCount = 1;
-        position.mChildren.put(s, n);
-      } else {
-        n.mCount++;
+  private static void reset(final int[] context) {
+    Arrays.fill(context, -1);
+    context[0] = ROOT;
+  }
+
+  // This hash is part of the file format, it must not be changed
+  private static int hash(final long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static long key(final int node, final int word) {
+    return ((long) node << 32) | word;
+  }
+
+  private int child(final int node, final int word) {
+    if (word <= 0) {
+      return -1; // unknown word
+    }
+    final long key = key(node, word);
+    final int mask = mKeys.limit() - 1;
+    int i = hash(key) & mask;
+    long k;
+    while ((k = mKeys.get(i)) != 0) {
+      if (k == key) {
+        return mChildren.get(i);
       }
+      i = (i + 1) & mask;
     }
+    return -1;
   }
 
-  private void shiftAndInsert(final String[] a, final String s) {
-    System.arraycopy(a, 1, a, 0, a.length - 1);
-    a[a.length - 1] = s;
+  private int addChild(final int node, final int word) {
+    final long key = key(node, word);
+    final int mask = mKeys.limit() - 1;
+    int i = hash(key) & mask;
+    long k;
+    while ((k = mKeys.get(i)) != 0) {
+      if (k == key) {
+        return mChildren.get(i);
+      }
+      i = (i + 1) & mask;
+    }
+    final int child = mNodes++;
+    mKeys.put(i, key);
+    mChildren.put(i, child);
+    if (mNodes > mCounts.limit()) {
+      mCounts = LongBuffer.wrap(Arrays.copyOf(mCounts.array(), 2 * mCounts.limit()));
+    }
+    if (2L * mNodes > mKeys.limit()) {
+      rehash();
+    }
+    return child;
   }
 
-  private void add(final String word) {
-    shiftAndInsert(mContext, word);
-    mRoot.mCount++; // increase zeroth order count
-    for (int k = 0; k < mOrder; ++k) {
-      add(k);
+  private void rehash() {
+    final int capacity = 2 * mKeys.limit();
+    final int mask = capacity - 1;
+    final long[] keys = new long[capacity];
+    final int[] children = new int[capacity];
+    for (int j = 0; j < mKeys.limit(); ++j) {
+      final long key = mKeys.get(j);
+      if (key != 0) {
+        int i = hash(key) & mask;
+        while (keys[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        children[i] = mChildren.get(j);
+      }
     }
+    mKeys = LongBuffer.wrap(keys);
+    mChildren = IntBuffer.wrap(children);
   }
 
-  private String clean(final String s) {
-    if (s.length() > LONGEST_SENSIBLE_WORD) {
-      return "";
-    }
-    // Strip to 27 letter English
-    final StringBuilder sb = new StringBuilder();
-    int bad = 0;
-    for (int k = 0; k < s.length(); ++k) {
-      final char c = Character.toUpperCase(s.charAt(k));
-      if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
-        sb.append(c);
-      } else if (++bad == 2) {
-        return "";
+  private void increment(final int node) {
+    mCounts.put(node, mCounts.get(node) + 1);
+  }
+
+  private void add(final int word) {
+    increment(ROOT); // increase zeroth order count
+    // Longest context first, so each new node can become the next context
+    for (int j = mOrder - 1; j >= 0; --j) {
+      if (mContext[j] >= 0) {
+        final int node = addChild(mContext[j], word);
+        increment(node);
+        if (j + 1 < mOrder) {
+          mContext[j + 1] = node;
+        }
       }
     }
-    return sb.toString();
   }
 
   void add(final InputStream in) throws IOException {
+    if (!mWritable) {
+      throw new UnsupportedOperationException("Cannot add to a loaded model");
+    }
     try (final BufferedReader r = new BufferedReader(new InputStreamReader(in))) {
       String line;
       while ((line = r.readLine()) != null) {
-        for (final String word : line.split("\\s+")) {
-          final String cw = clean(word);
-          if (!cw.isEmpty()) {
-            add(cw);
-            //            System.out.println("Adding: ." + word + "." + " context: " + Arrays.toString(mContext));
-            //            dump("_ROOT_", mRoot, "");
+        mWords.reset(line);
+        while (mWords.next()) {
+          if (mWords.mLength > 0) {
+            add(mLexicon.add(mWords.mWord, 0, mWords.mLength));
           }
         }
       }
     }
   }
 
-//  private void dump(final String w, final Node n, final String indent) {
-//    if (n == null) {
-//      return;
-//    }
-//    System.out.println(indent + w + " (" + n.mCount + ")");
-//    if (n.mChildren != null) {
-//      final String id2 = indent + "  ";
-//      for (final Map.Entry<String, Node> e : n.mChildren.entrySet()) {
-//        dump(e.getKey(), e.getValue(), id2);
-//      }
-//    }
-//  }
-
-  private Node findContext(final String[] context, final int start) {
-    Node position = mRoot;
-    for (int k = start; k < context.length - 1; ++k) {
-      final Node next = position.mChildren.get(context[k]);
-      if (next == null) {
-        return null;
-      }
-      position = next;
+  // Code length of a word given the context nodes.  Escapes from the
+  // longest available context through to the zeroth order prediction.
+  private double entropy(final int[] context, final int longest, final int word, final int start) {
+    if (start >= mOrder) {
+      // Zeroth order prediction
+      return Math.log(mCounts.get(ROOT) + 1);
+    }
+    final int parent = context[Math.min(mOrder - 1 - start, longest)];
+    final long parentCount = mCounts.get(parent);
+    final int child = child(parent, word);
+    if (child >= 0) {
+      return Math.log(parentCount + 1) - Math.log(mCounts.get(child));
+    } else {
+      return Math.log(parentCount + 1) + entropy(context, longest, word, start + 1);
     }
-    return position;
   }
 
-  private double entropy(final String[] context, final int start) {
-    if (start >= context.length) {
-      // Zeroth order prediction
-      //System.out.println("Not found: " + context[context.length - 1]);
-      return Math.log(mRoot.mCount + 1);
-    }
-    int p = start;
-    while (context[p] == null) {
-      ++p;
-    }
-    for (int k = p; k < context.length; ++k) {
-      final Node parent = findContext(context, k);
-      if (parent != null) {
-        final Node child = parent.mChildren.get(context[context.length - 1]);
-        if (child != null) {
-          return Math.log(parent.mCount + 1) - Math.log(child.mCount);
-        } else {
-          return Math.log(parent.mCount + 1) + entropy(context, start + 1);
-        }
+  // Shift the word into the context, returning the longest available context
+  private int advance(final int[] context, final int word) {
+    int longest = 0;
+    for (int j = mOrder - 1; j > 0; --j) {
+      context[j] = context[j - 1] >= 0 ? child(context[j - 1], word) : -1;
+      if (context[j] >= 0 && longest == 0) {
+        longest = j;
       }
     }
-    return Double.NaN; // zero freq?
+    return longest;
   }
 
   @Override
   public double entropy(final String text) {
-    final String[] context = new String[mOrder];
+    return entropy((CharSequence) text);
+  }
+
+  @Override
+  public double entropy(final CharSequence text) {
+    return entropy(text, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double entropy(final CharSequence text, final double cutoff) {
+    final Scratch scratch = mScratch.get();
+    final Words words = scratch.mWords;
+    final int[] context = scratch.mContext;
+    reset(context);
+    words.reset(text);
+    int longest = 0;
     double e = 0;
-    for (final String word : text.split("\\s+")) {
-      if (!word.isEmpty()) {
-        // After cleaning length can be zero, word will then be penalized
-        // as an unknown word, but this is probably the right thing to do.
-        final String w = clean(word);
-        shiftAndInsert(context, w);
-        e += entropy(context, 0);
+    while (words.next()) {
+      // After cleaning length can be zero, word will then be penalized
+      // as an unknown word, but this is probably the right thing to do.
+      final int word = words.mLength == 0 ? 0 : mLexicon.id(words.mWord, 0, words.mLength);
+      e += entropy(context, longest, word, 0);
+      if (e > cutoff) {
+        return Double.POSITIVE_INFINITY;
       }
+      longest = advance(context, word);
     }
+    words.reset(null);
     return e;
   }
 
   /**
-   * Entropy via a word gram model.
+   * Return the number of bytes used by the tables of this model.
+   * @return size in bytes
+   */
+  long bytes() {
+    return (long) Long.BYTES * (mCounts.limit() + mKeys.limit()) + (long) Integer.BYTES * mChildren.limit() + mLexicon.bytes();
+  }
+
+  @Override
+  public String toString() {
+    return "Order " + mOrder + " word model with " + mLexicon.size() + " words and " + (mNodes - 1) + " n-grams from training size " + mCounts.get(ROOT);
+  }
+
+  private static long align(final long position) {
+    return (position + Long.BYTES - 1) & -Long.BYTES;
+  }
+
+  private static void write(final FileChannel channel, final ByteBuffer chunk) throws IOException {
+    chunk.flip();
+    while (chunk.hasRemaining()) {
+      channel.write(chunk);
+    }
+    chunk.clear();
+  }
+
+  private static void pad(final FileChannel channel, final ByteBuffer chunk) throws IOException {
+    final long position = channel.position() + chunk.position();
+    for (long k = position; k < align(position); ++k) {
+      chunk.put((byte) 0);
+    }
+    write(channel, chunk);
+  }
+
+  private static void writeLongs(final FileChannel channel, final ByteBuffer chunk, final LongBuffer values, final int length) throws IOException {
+    for (int k = 0; k < length; ++k) {
+      if (chunk.remaining() < Long.BYTES) {
+        write(channel, chunk);
+      }
+      chunk.putLong(values.get(k));
+    }
+    pad(channel, chunk);
+  }
+
+  private static void writeInts(final FileChannel channel, final ByteBuffer chunk, final IntBuffer values) throws IOException {
+    for (int k = 0; k < values.limit(); ++k) {
+      if (chunk.remaining() < Integer.BYTES) {
+        write(channel, chunk);
+      }
+      chunk.putInt(values.get(k));
+    }
+    pad(channel, chunk);
+  }
+
+  private static void writeBytes(final FileChannel channel, final ByteBuffer chunk, final ByteBuffer values) throws IOException {
+    for (int k = 0; k < values.limit(); ++k) {
+      if (!chunk.hasRemaining()) {
+        write(channel, chunk);
+      }
+      chunk.put(values.get(k));
+    }
+    pad(channel, chunk);
+  }
+
+  /**
+   * Save this model.  The file consists of a header followed by the node
+   * counts, the node table, and the lexicon, each section being 8-byte
+   * aligned and stored little-endian so that it can be mapped in place.
+   * @param filename output filename
+   * @throws IOException if an I/O error occurs
+   */
+  public void saveModel(final String filename) throws IOException {
+    final IntBuffer lexiconTable = mLexicon.table();
+    final IntBuffer ends = mLexicon.ends();
+    final ByteBuffer chars = mLexicon.chars();
+    try (final FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      chunk.put(MAGIC);
+      chunk.putInt(VERSION);
+      chunk.putInt(mOrder);
+      chunk.putInt(mNodes);
+      chunk.putInt(mKeys.limit());
+      chunk.putInt(mLexicon.size());
+      chunk.putInt(lexiconTable.limit());
+      chunk.putInt(chars.limit());
+      chunk.putInt(0); // reserved
+      pad(channel, chunk);
+      writeLongs(channel, chunk, mCounts, mNodes);
+      writeLongs(channel, chunk, mKeys, mKeys.limit());
+      writeInts(channel, chunk, mChildren);
+      writeInts(channel, chunk, lexiconTable);
+      writeInts(channel, chunk, ends);
+      writeBytes(channel, chunk, chars);
+    }
+  }
+
+  private static ByteBuffer map(final FileChannel channel, final long position, final long length) throws IOException {
+    if (position + length > channel.size()) {
+      throw new IOException("Truncated word model");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static boolean isPowerOfTwo(final int n) {
+    return Integer.bitCount(n) == 1;
+  }
+
+  /**
+   * Load a model previously saved with <code>saveModel</code>.  The file is
+   * memory mapped and the resulting model is read-only.
+   * @param filename file name of the model
+   * @return the model
+   * @exception IOException if an I/O error occurs or the file is not a word model.
+   */
+  public static WordGramModel loadModel(final String filename) throws IOException {
+    try (final FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining()) {
+        if (channel.read(header) < 0) {
+          throw new IOException(filename + " is not a word model");
+        }
+      }
+      header.flip();
+      final byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(MAGIC, magic)) {
+        throw new IOException(filename + " is not a word model");
+      }
+      final int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported word model version " + version);
+      }
+      final int order = header.getInt();
+      final int nodes = header.getInt();
+      final int capacity = header.getInt();
+      final int words = header.getInt();
+      final int lexiconCapacity = header.getInt();
+      final int chars = header.getInt();
+      if (order < 1 || nodes < 1 || chars < 0 || words < 0 || !isPowerOfTwo(capacity) || !isPowerOfTwo(lexiconCapacity)) {
+        throw new IOException("Corrupt word model " + filename);
+      }
+      // The mappings remain valid after the channel is closed
+      long position = align(HEADER_SIZE);
+      final LongBuffer counts = map(channel, position, (long) Long.BYTES * nodes).asLongBuffer();
+      position = align(position + (long) Long.BYTES * nodes);
+      final LongBuffer keys = map(channel, position, (long) Long.BYTES * capacity).asLongBuffer();
+      position = align(position + (long) Long.BYTES * capacity);
+      final IntBuffer children = map(channel, position, (long) Integer.BYTES * capacity).asIntBuffer();
+      position = align(position + (long) Integer.BYTES * capacity);
+      final IntBuffer lexiconTable = map(channel, position, (long) Integer.BYTES * lexiconCapacity).asIntBuffer();
+      position = align(position + (long) Integer.BYTES * lexiconCapacity);
+      final IntBuffer ends = map(channel, position, (long) Integer.BYTES * (words + 1)).asIntBuffer();
+      position = align(position + (long) Integer.BYTES * (words + 1));
+      final ByteBuffer characters = map(channel, position, chars);
+      return new WordGramModel(order, false, new Lexicon(words, lexiconTable, ends, characters), nodes, counts, keys, children);
+    }
+  }
+
+  /**
+   * Build or query a word gram model.  Training text is read from the
+   * given files, or if no files are given, the model is queried with
+   * standard input.
    *
-   * @param args source files
+   * @param args see usage
    * @exception IOException if an I/O error occurs
    */
   public static void main(final String[] args) throws IOException {
-    // TODO usage
-    final WordGramModel model = new WordGramModel(2);
-    for (final String f : args) {
-      System.err.println("Adding: " + f);
-      try (final FileInputStream fis = new FileInputStream(f)) {
-        model.add(fis);
+    final CliFlags flags = new CliFlags("Build or query a word gram model");
+    flags.registerOptional('o', CommonFlags.OUTPUT_FLAG, String.class, "FILE", "where to write the model");
+    flags.registerOptional('m', CommonFlags.MODEL_FLAG, String.class, "FILE", "existing model to query");
+    flags.registerOptional('O', ORDER_FLAG, Integer.class, "INT", "order of model to build", 2);
+    final CliFlags.Flag<String> files = flags.registerRequired(String.class, "FILE", "training files");
+    files.setMinCount(0);
+    files.setMaxCount(Integer.MAX_VALUE);
+    flags.setValidator(f -> {
+      if (flags.isSet(CommonFlags.MODEL_FLAG) == !flags.getAnonymousValues(0).isEmpty()) {
+        flags.setParseMessage("Specify either an existing model or training files.");
+        return false;
       }
+      if (flags.isSet(CommonFlags.MODEL_FLAG) && flags.isSet(CommonFlags.OUTPUT_FLAG)) {
+        flags.setParseMessage("An existing model cannot be written.");
+        return false;
+      }
+      return CommonFlags.checkPositive(f, ORDER_FLAG);
+    });
+    flags.setFlags(args);
+    final WordGramModel model;
+    if (flags.isSet(CommonFlags.MODEL_FLAG)) {
+      model = loadModel((String) flags.getValue(CommonFlags.MODEL_FLAG));
+    } else {
+      model = new WordGramModel((Integer) flags.getValue(ORDER_FLAG));
+      for (final Object f : flags.getAnonymousValues(0)) {
+        StringUtils.message(System.err, "Adding: " + f);
+        try (final InputStream is = new BufferedInputStream(new FileInputStream((String) f))) {
+          model.add(is);
+        }
+      }
+      StringUtils.message(System.err, model.toString());
     }
-    //model.dump("ROOT", model.mRoot, "");
-    try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
-      String line;
-      while ((line = r.readLine()) != null) {
-        System.out.println(model.entropy(line) + " " + line);
+    if (flags.isSet(CommonFlags.OUTPUT_FLAG)) {
+      final String output = (String) flags.getValue(CommonFlags.OUTPUT_FLAG);
+      StringUtils.message(System.err, "Saving model to " + output);
+      model.saveModel(output);
+    } else {
+      try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
+        String line;
+        while ((line = r.readLine()) != null) {
+          System.out.println(model.entropy(line) + " " + line);
+        }
       }
     }
   }
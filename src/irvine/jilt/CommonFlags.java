@@ -6,10 +6,16 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 
+import javax.management.JMException;
+
+import irvine.entropy.CachingEntropy;
+import irvine.entropy.CascadedEntropy;
 import irvine.entropy.Entropy;
-import irvine.entropy.FourGramAlphabetModel;
+import irvine.entropy.InstrumentedEntropy;
+import irvine.entropy.ModelRegistry;
 import irvine.util.CliFlags;
 import irvine.util.IOUtils;
+import irvine.util.StringUtils;
 
 /**
  * Flags shared by multiple modules.
@@ -130,6 +136,14 @@ public final class CommonFlags {
 
   /** Model file name. */
   public static final String MODEL_FLAG = "model";
+  /** Number of scores to cache. */
+  public static final String MODEL_CACHE_FLAG = "model-cache";
+  /** Trust the hash of cached texts. */
+  public static final String MODEL_CACHE_TRUST_FLAG = "model-cache-trust";
+  /** Collect statistics on model use. */
+  public static final String MODEL_STATS_FLAG = "model-stats";
+  /** Screen texts with a bigram model before scoring them with the model. */
+  public static final String MODEL_CASCADE_FLAG = "model-cascade";
 
   /**
    * Register the model flag.
@@ -137,7 +151,11 @@ public final class CommonFlags {
    * @return the flag
    */
   public static CliFlags.Flag<String> registerModelFlag(final CliFlags flags) {
-    return flags.registerOptional('m', MODEL_FLAG, String.class, "FILE", "path to entropy model file");
+    flags.registerOptional(MODEL_CACHE_FLAG, Integer.class, "INT", "remember the scores of up to this many texts");
+    flags.registerOptional(MODEL_CACHE_TRUST_FLAG, "identify remembered texts only by a 64-bit hash");
+    flags.registerOptional(MODEL_STATS_FLAG, "collect statistics on model use, available through JMX and reported on exit");
+    flags.registerOptional(MODEL_CASCADE_FLAG, Double.class, "NUMBER", "reject texts whose bigram entropy exceeds the acceptance threshold by more than this many nats per character before scoring them with the model");
+    return flags.registerOptional('m', MODEL_FLAG, String.class, "MODEL", "entropy model file or built-in model name");
   }
 
   /**
@@ -146,9 +164,20 @@ public final class CommonFlags {
    * @return status
    */
   public static boolean validateModel(final CliFlags flags) {
+    if (flags.isSet(MODEL_CACHE_TRUST_FLAG) && !flags.isSet(MODEL_CACHE_FLAG)) {
+      flags.setParseMessage("--" + MODEL_CACHE_TRUST_FLAG + " requires --" + MODEL_CACHE_FLAG + ".");
+      return false;
+    }
+    if (!checkPositive(flags, MODEL_CACHE_FLAG)) {
+      return false;
+    }
+    if (flags.isSet(MODEL_CASCADE_FLAG) && !((Double) flags.getValue(MODEL_CASCADE_FLAG) >= 0)) {
+      flags.setParseMessage("--" + MODEL_CASCADE_FLAG + " cannot be negative.");
+      return false;
+    }
     if (flags.isSet(MODEL_FLAG)) {
       final String model = (String) flags.getValue(MODEL_FLAG);
-      if (!"-".equals(model) && !new File(model).canRead()) {
+      if (!"-".equals(model) && !ModelRegistry.isBuiltIn(model) && !new File(model).canRead()) {
         flags.setParseMessage("Specified model file \"" + model + "\" is not readable.");
         return false;
       }
@@ -157,22 +186,75 @@ public final class CommonFlags {
   }
 
   /**
-   * Get the model.
+   * Get the model.  Models are obtained from the model registry, so are
+   * loaded only once however many times they are requested, but they are
+   * decorated afresh by <code>decorateModel</code> on every call.
    * @param flags source of flags
    * @return entropy model
    */
   public static Entropy getEntropyModel(final CliFlags flags) {
     try {
       if (flags.isSet(MODEL_FLAG)) {
-        return FourGramAlphabetModel.loadModel((String) flags.getValue(MODEL_FLAG));
+        return decorateModel(flags, ModelRegistry.get((String) flags.getValue(MODEL_FLAG)));
       } else {
-        return FourGramAlphabetModel.loadModel();
+        return decorateModel(flags, ModelRegistry.getDefault());
       }
     } catch (final IOException e) {
       throw new RuntimeException("Could to load entropy model.", e);
     }
   }
 
+  // Instrument a model if requested, registering it for JMX
+  private static Entropy instrumentModel(final CliFlags flags, final Entropy model) {
+    if (!flags.isSet(MODEL_STATS_FLAG)) {
+      return model;
+    }
+    final InstrumentedEntropy instrumented = new InstrumentedEntropy(model);
+    try {
+      instrumented.register(model.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(instrumented)));
+    } catch (final JMException e) {
+      StringUtils.message(System.err, "Could not register model statistics: " + e.getMessage());
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> StringUtils.message(System.err, instrumented.toString())));
+    return instrumented;
+  }
+
+  // Screen texts with a bigram model derived from the model if requested
+  private static Entropy cascadeModel(final CliFlags flags, final Entropy model) {
+    if (!flags.isSet(MODEL_CASCADE_FLAG)) {
+      return instrumentModel(flags, model);
+    }
+    try {
+      final CascadedEntropy cascade = new CascadedEntropy(CascadedEntropy.bigrams(model), instrumentModel(flags, model), (Double) flags.getValue(MODEL_CASCADE_FLAG));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> StringUtils.message(System.err, cascade.toString())));
+      return cascade;
+    } catch (final IllegalArgumentException e) {
+      StringUtils.message(System.err, "Ignoring --" + MODEL_CASCADE_FLAG + ": " + e.getMessage());
+      return instrumentModel(flags, model);
+    }
+  }
+
+  /**
+   * Wrap a model in a score cache, a cheap screening model, and
+   * instrumentation as requested by the model cache, cascade, and statistics
+   * flags.  Instrumentation is applied beneath the others, so only scores
+   * actually computed by the model are counted.  The statistics are
+   * reported when the program exits.  Every call creates new wrappers,
+   * registering a JMX bean and shutdown hooks for them, so this should be
+   * called once per process and the result shared.
+   * @param flags source of flags
+   * @param model entropy model
+   * @return the model, or a caching, cascaded, or instrumented version of the model
+   */
+  public static Entropy decorateModel(final CliFlags flags, final Entropy model) {
+    if (!flags.isSet(MODEL_CACHE_FLAG)) {
+      return cascadeModel(flags, model);
+    }
+    final CachingEntropy cache = new CachingEntropy(cascadeModel(flags, model), (Integer) flags.getValue(MODEL_CACHE_FLAG), flags.isSet(MODEL_CACHE_TRUST_FLAG));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> StringUtils.message(System.err, cache.toString())));
+    return cache;
+  }
+
   /**
    * Check that the specified flag (if set) is positive.
    * @param flags flags object
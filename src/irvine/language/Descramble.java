@@ -1,6 +1,7 @@
 package irvine.language;
 
 import irvine.entropy.Entropy;
+import irvine.entropy.PositionalCosts;
 import irvine.jilt.Command;
 import irvine.jilt.CommonFlags;
 import irvine.util.CliFlags;
@@ -25,20 +26,24 @@ public final class Descramble extends Command {
     double best = Double.POSITIVE_INFINITY;
     String bestString = text;
     boolean improved;
+    final int[] changed = new int[3];
     do {
       improved = false;
       final char[] c = bestString.toCharArray();
+      // Each move changes two or three positions, only their neighbourhoods are rescored
+      final PositionalCosts costs = new PositionalCosts(mModel, c);
       for (int k = 1; k < c.length; ++k) {
         final char ck = c[k];
+        changed[0] = k;
         for (int j = 0; j < k; ++j) {
           if (ck != c[j]) {
             c[k] = c[j];
             c[j] = ck;
-            final String t = new String(c);
-            final double e = mModel.entropy(t);
+            changed[1] = j;
+            final double e = costs.rescore(changed, 2);
             if (e < best) {
               best = e;
-              bestString = t;
+              bestString = new String(c);
               improved = true;
             }
             c[j] = c[k];
@@ -49,29 +54,30 @@ public final class Descramble extends Command {
       if (!improved) {
         for (int k = 2; k < c.length; ++k) {
           final char ck = c[k];
+          changed[0] = k;
           for (int j = 1; j < k; ++j) {
             final char cj = c[j];
+            changed[1] = j;
             if (ck != cj) {
               for (int i = 0; i < j; ++i) {
                 if (c[i] != ck && c[i] != cj) {
+                  changed[2] = i;
                   c[k] = cj;
                   c[j] = c[i];
                   c[i] = ck;
-                  final String t = new String(c);
-                  final double e = mModel.entropy(t);
+                  final double e = costs.rescore(changed, 3);
                   if (e < best) {
                     best = e;
-                    bestString = t;
+                    bestString = new String(c);
                     improved = true;
                   }
                   c[k] = c[j];
                   c[j] = ck;
                   c[i] = cj;
-                  final String t2 = new String(c);
-                  final double e2 = mModel.entropy(t);
+                  final double e2 = costs.rescore(changed, 3);
                   if (e2 < best) {
                     best = e2;
-                    bestString = t2;
+                    bestString = new String(c);
                     improved = true;
                   }
                   c[i] = c[k];
@@ -3,6 +3,12 @@ package irvine.language;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import irvine.jilt.Command;
 import irvine.jilt.CommonFlags;
@@ -18,12 +24,155 @@ public final class Entropy extends Command {
 
   private static final String RESULTS_FLAG = "results";
   private static final String BEST_FLAG = "best";
+  private static final String THREADS_FLAG = "threads";
+
+  private static final int BATCH_SIZE = 4096;
+  private static final String LS = System.lineSeparator();
+  // Formats are not thread-safe, so each scoring thread has its own; these
+  // are constructed afresh since even cloning a format in use is unsafe
+  private static final ThreadLocal<NumberFormat> FORMAT = ThreadLocal.withInitial(() -> {
+    final NumberFormat format = NumberFormat.getNumberInstance();
+    format.setMinimumFractionDigits(3);
+    format.setMaximumFractionDigits(3);
+    format.setGroupingUsed(false);
+    return format;
+  });
 
   /** Construct the module. */
   public Entropy() {
     super("Compute the entropy of each line");
   }
 
+  /**
+   * Score lines one at a time.
+   * @param model entropy model
+   * @param reader source of lines
+   * @param out destination for output
+   * @param isBestMode true to print only lines better than all preceding lines
+   * @param results collector of the best lines, or null to print every line
+   * @throws IOException if an I/O error occurs
+   */
+  static void sequential(final irvine.entropy.Entropy model, final BufferedReader reader, final PrintStream out, final boolean isBestMode, final LimitedLengthPriorityQueue<String> results) throws IOException {
+    double bestScore = Double.POSITIVE_INFINITY;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      final double e = model.entropy(line);
+      if (isBestMode) {
+        if (e < bestScore) {
+          bestScore = e;
+          out.println(DoubleUtils.NF3.format(e) + " " + line);
+        }
+      } else if (results != null) {
+        results.add(e, line);
+      } else {
+        out.println(DoubleUtils.NF3.format(e) + " " + line);
+      }
+    }
+  }
+
+  /** A batch of lines, scored by a single thread. */
+  private static final class Batch {
+    private final String[] mLines = new String[BATCH_SIZE];
+    private final double[] mScores = new double[BATCH_SIZE];
+    private int mSize = 0;
+    private String mText = null;
+
+    private Batch score(final irvine.entropy.Entropy model, final boolean isBestMode, final boolean isCollecting) {
+      double best = Double.POSITIVE_INFINITY;
+      int kept = 0;
+      final StringBuilder sb = isCollecting ? null : new StringBuilder();
+      final NumberFormat format = FORMAT.get();
+      for (int k = 0; k < mSize; ++k) {
+        final double e = model.entropy(mLines[k]);
+        if (isBestMode) {
+          // Only lines better than every earlier line of the batch can be better
+          // than every earlier line of the input
+          if (e < best) {
+            best = e;
+            mLines[kept] = mLines[k];
+            mScores[kept++] = e;
+          }
+        } else if (isCollecting) {
+          mScores[k] = e;
+        } else {
+          sb.append(format.format(e)).append(' ').append(mLines[k]).append(LS);
+        }
+      }
+      if (isBestMode) {
+        mSize = kept;
+      } else if (!isCollecting) {
+        mText = sb.toString();
+      }
+      return this;
+    }
+  }
+
+  /**
+   * Score lines using several threads.  Lines are read in batches which are
+   * scored concurrently, then output or collected in the order of the input,
+   * so that the output is the same as for <code>sequential()</code>.
+   * @param model entropy model, which must be thread-safe
+   * @param reader source of lines
+   * @param out destination for output
+   * @param isBestMode true to print only lines better than all preceding lines
+   * @param results collector of the best lines, or null to print every line
+   * @param threads number of scoring threads
+   * @throws IOException if an I/O error occurs
+   */
+  static void parallel(final irvine.entropy.Entropy model, final BufferedReader reader, final PrintStream out, final boolean isBestMode, final LimitedLengthPriorityQueue<String> results, final int threads) throws IOException {
+    final boolean isCollecting = results != null;
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+    final double[] bestScore = {Double.POSITIVE_INFINITY};
+    try {
+      boolean eof = false;
+      while (!eof || !pending.isEmpty()) {
+        if (!eof) {
+          final Batch batch = new Batch();
+          String line;
+          while (batch.mSize < BATCH_SIZE && (line = reader.readLine()) != null) {
+            batch.mLines[batch.mSize++] = line;
+          }
+          eof = batch.mSize < BATCH_SIZE;
+          if (batch.mSize > 0) {
+            pending.add(pool.submit(() -> batch.score(model, isBestMode, isCollecting)));
+          }
+        }
+        // Keep enough batches in flight to occupy every thread
+        while (!pending.isEmpty() && (eof || pending.size() > 2 * threads)) {
+          collect(pending.remove().get(), out, isBestMode, results, bestScore);
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while scoring", e);
+    } catch (final ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // Output or collect a scored batch, called for each batch in input order
+  private static void collect(final Batch batch, final PrintStream out, final boolean isBestMode, final LimitedLengthPriorityQueue<String> results, final double[] bestScore) {
+    if (isBestMode) {
+      for (int k = 0; k < batch.mSize; ++k) {
+        final double e = batch.mScores[k];
+        if (e < bestScore[0]) {
+          bestScore[0] = e;
+          out.println(DoubleUtils.NF3.format(e) + " " + batch.mLines[k]);
+        }
+      }
+    } else if (results != null) {
+      // Ties make the collector sensitive to order, so add in input order
+      for (int k = 0; k < batch.mSize; ++k) {
+        results.add(batch.mScores[k], batch.mLines[k]);
+      }
+    } else {
+      out.print(batch.mText);
+    }
+  }
+
   /**
    * Entropy.
    * @param args see help
@@ -36,6 +185,7 @@ public final class Entropy extends Command {
     CommonFlags.registerModelFlag(flags);
     flags.registerOptional('r', RESULTS_FLAG, Integer.class, "INT", "retain this many solutions");
     flags.registerOptional('B', BEST_FLAG, "print only incrementally better results");
+    flags.registerOptional('t', THREADS_FLAG, Integer.class, "INT", "score lines using this many threads", 1);
     final CliFlags.Flag<String> textFlag = flags.registerRequired(String.class, "TEXT", "text to compute entropy of");
     textFlag.setMinCount(0);
     flags.setValidator(f -> {
@@ -46,29 +196,21 @@ public final class Entropy extends Command {
       return CommonFlags.validateInput(f)
         && CommonFlags.validateOutput(f)
         && CommonFlags.validateModel(f)
-        && CommonFlags.checkPositive(f, RESULTS_FLAG);
+        && CommonFlags.checkPositive(f, RESULTS_FLAG)
+        && CommonFlags.checkPositive(f, THREADS_FLAG);
     });
     flags.setFlags(args);
 
     final boolean isBestMode = flags.isSet(BEST_FLAG);
-    double bestScore = Double.POSITIVE_INFINITY;
     final LimitedLengthPriorityQueue<String> results = flags.isSet(RESULTS_FLAG) ? new LimitedLengthPriorityQueue<>((Integer) flags.getValue(RESULTS_FLAG), false) : null;
     final irvine.entropy.Entropy model = CommonFlags.getEntropyModel(flags);
+    final int threads = (Integer) flags.getValue(THREADS_FLAG);
     try (final PrintStream out = CommonFlags.getOutput(flags)) {
       try (final BufferedReader reader = CommonFlags.getInput(flags)) {
-        String line;
-        while ((line = reader.readLine()) != null) {
-          final double e = model.entropy(line);
-          if (isBestMode) {
-            if (e < bestScore) {
-              bestScore = e;
-              out.println(DoubleUtils.NF3.format(e) + " " + line);
-            }
-          } else if (results != null) {
-            results.add(e, line);
-          } else {
-            out.println(DoubleUtils.NF3.format(e) + " " + line);
-          }
+        if (threads > 1) {
+          parallel(model, reader, out, isBestMode, results, threads);
+        } else {
+          sequential(model, reader, out, isBestMode, results);
         }
       }
       if (results != null) {
@@ -7,7 +7,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import irvine.entropy.Entropy;
-import irvine.entropy.FourGramAlphabetModel;
+import irvine.entropy.ModelRegistry;
 import irvine.jilt.Command;
 import irvine.jilt.CommonFlags;
 import irvine.jilt.Dictionary;
@@ -144,20 +144,22 @@ public final class Morse extends Command {
   private LimitedLengthPriorityQueue<String> mPossibleDecodings = null;
   private Entropy mModel = null;
 
-  private void smartMorseDecode(final String line, final String decode, final int pos) {
+  private void smartMorseDecode(final String line, final String decode, final Entropy.Cursor cursor, final int pos) {
     if (pos >= line.length()) {
-      mPossibleDecodings.add(mModel.entropy(decode), decode);
+      mPossibleDecodings.add(cursor.entropy(), decode);
       return;
     }
     if (mPossibleDecodings.size() == mPossibleDecodings.maxSize() && decode.length() % 5 == 0) {
       // Don't want to do this too often ... hence mod 5
-      final double e = mModel.entropy(decode);
+      final double e = cursor.entropy();
       if (e > mPossibleDecodings.last().getScore()) {
         return;
       }
     }
     if (Character.isWhitespace(line.charAt(pos))) {
-      smartMorseDecode(line, decode + " ", pos + 1);
+      final Entropy.Cursor c = cursor.copy();
+      c.append(' ');
+      smartMorseDecode(line, decode + " ", c, pos + 1);
       //smartMorseDecode(model, line, decode, pos + 1);
     } else {
       // Heuristically longer codes are more likely to be the right answer,
@@ -165,7 +167,9 @@ public final class Morse extends Command {
       for (int end = Math.min(line.length(), pos + LONGEST); end > pos ; --end) {
         final String d = mMorseToLetter.get(line.substring(pos, end));
         if (d != null) {
-          smartMorseDecode(line, decode + d, end);
+          final Entropy.Cursor c = cursor.copy();
+          c.append(d);
+          smartMorseDecode(line, decode + d, c, end);
         }
       }
     }
@@ -214,7 +218,7 @@ public final class Morse extends Command {
     // In non-API uses, this will be set via the mainExec mathod.
     if (mModel == null) {
       try {
-        mModel = FourGramAlphabetModel.loadModel();
+        mModel = ModelRegistry.getDefault();
       } catch (final IOException e) {
         throw new RuntimeException(e);
       }
@@ -231,7 +235,7 @@ public final class Morse extends Command {
       }
       dictionaryMorseDecode(mDict, line, "", 0);
     } else {
-      smartMorseDecode(line, "", 0);
+      smartMorseDecode(line, "", mModel.cursor(), 0);
     }
     for (final LimitedLengthPriorityQueue.Node<String> node : mPossibleDecodings) {
       out.println(DoubleUtils.NF3.format(node.getScore()) + " " + node.getValue());
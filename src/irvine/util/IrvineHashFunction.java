@@ -34,6 +34,20 @@ public final class IrvineHashFunction implements HashFunction {
     }
   }
 
+  /**
+   * Extend a hash by one character.  Starting from 0 and updating with each
+   * character of a sequence in turn gives the same result as
+   * <code>hash(CharSequence)</code>, so a hash can be computed without
+   * first assembling the sequence.
+   * @param hash hash of the preceding characters
+   * @param position position of the character in the sequence
+   * @param c character
+   * @return updated hash
+   */
+  public static long update(final long hash, final int position, final char c) {
+    return Long.rotateLeft(hash, 1) ^ HASH_BLOCKS[(c + position) & 0xFF];
+  }
+
   @Override
   public long hash(final byte[] in) {
     long r = 0L;
@@ -1,6 +1,5 @@
 package irvine.util;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 
 /**
@@ -9,7 +8,9 @@ import java.util.ArrayList;
  *
  * @author Sean A. Irvine
  */
-public class LongDynamicLongArray implements Serializable {
+public class LongDynamicLongArray implements LongLongArray {
+
+  private static final long serialVersionUID = 1733420034774410098L;
 
   /**
    * Allocates chunks CHUNK_SIZE bytes at a time.  This means
@@ -35,6 +36,7 @@ public class LongDynamicLongArray implements Serializable {
    *
    * @return length of the array
    */
+  @Override
   public long length() {
     return mLength;
   }
@@ -46,6 +48,7 @@ public class LongDynamicLongArray implements Serializable {
    * @return value at specified index
    * @exception ArrayIndexOutOfBoundsException if the index is negative.
    */
+  @Override
   public long get(final long index) {
     if (index >= mLength) {
       return 0L;
@@ -79,6 +82,7 @@ public class LongDynamicLongArray implements Serializable {
    * is not long.
    * @exception ArrayIndexOutOfBoundsException if the index is negative.
    */
+  @Override
   public void set(final long index, final long value) {
     getChunk(index)[(int) index & CHUNK_MASK] = value;
   }
@@ -93,6 +97,7 @@ public class LongDynamicLongArray implements Serializable {
    * @param length position to truncate at
    * @exception ArrayIndexOutOfBoundsException if length is negative.
    */
+  @Override
   public void truncate(long length) {
     if (length < mLength) {
       if (length < 0) {
@@ -0,0 +1,49 @@
+package irvine.util;
+
+import java.io.Serializable;
+
+/**
+ * An array of longs indexed by longs, which grows as higher indices are
+ * set.  Entries which have never been set are zero.
+ *
+ * @author Sean A. Irvine
+ */
+public interface LongLongArray extends Serializable {
+
+  /**
+   * Return the length of the array.  This is one more than the
+   * highest location which has been assigned a value or zero
+   * in the case of an empty array.
+   *
+   * @return length of the array
+   */
+  long length();
+
+  /**
+   * Get the long at the specified array index.
+   *
+   * @param index array index
+   * @return value at specified index
+   * @exception ArrayIndexOutOfBoundsException if the index is negative.
+   */
+  long get(long index);
+
+  /**
+   * Set the entry at specified index to the given value.
+   *
+   * @param index array index
+   * @param value value to set at the index
+   * @exception ArrayIndexOutOfBoundsException if the index is negative.
+   */
+  void set(long index, long value);
+
+  /**
+   * Truncate the array to specified length.  Entries beyond
+   * this position are lost.  If the array is already the specified
+   * length or is shorter then no action is taken.
+   *
+   * @param length position to truncate at
+   * @exception ArrayIndexOutOfBoundsException if length is negative.
+   */
+  void truncate(long length);
+}
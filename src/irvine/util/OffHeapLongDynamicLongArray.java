@@ -0,0 +1,243 @@
+package irvine.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A long dynamic array of longs stored outside the Java heap.  Storage is
+ * either direct buffers or segments of a memory mapped file.  The array
+ * can therefore be larger than the heap, and in the case of a file, the
+ * contents persist and can be reopened without reading them.
+ *
+ * A file consists of a small header recording the length of the array,
+ * followed by the entries, stored as little-endian longs.  The file grows
+ * by appending segments as higher indices are set.
+ *
+ * When serialized, an array backed by a file records only the name of the
+ * file, while an array backed by direct buffers records its contents.
+ *
+ * @author Sean A. Irvine
+ */
+public class OffHeapLongDynamicLongArray implements LongLongArray {
+
+  private static final long serialVersionUID = 1L;
+  private static final int CHUNK_BITS = 20;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final byte[] MAGIC = "JILTLONG".getBytes(StandardCharsets.US_ASCII);
+  private static final int HEADER_SIZE = 4096;
+  private static final int LENGTH_OFFSET = MAGIC.length;
+
+  private final File mFile;
+  private transient ArrayList<LongBuffer> mChunks = new ArrayList<>();
+  private transient ArrayList<MappedByteBuffer> mMapped = new ArrayList<>();
+  private transient MappedByteBuffer mHeader = null;
+  private transient long mLength = 0;
+
+  /**
+   * Construct a new array stored in direct buffers.
+   */
+  public OffHeapLongDynamicLongArray() {
+    mFile = null;
+  }
+
+  /**
+   * Construct an array stored in the given file.  If the file already
+   * exists, then it is opened and the array has its previous contents.
+   * @param file backing file
+   * @exception IOException if an I/O error occurs or the file is not an array.
+   */
+  public OffHeapLongDynamicLongArray(final File file) throws IOException {
+    mFile = file.getAbsoluteFile();
+    open();
+  }
+
+  /**
+   * Test if this array is stored in a file.
+   * @return true if the array is backed by a file
+   */
+  public boolean isFileBacked() {
+    return mFile != null;
+  }
+
+  private FileChannel channel() throws IOException {
+    return FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private void open() throws IOException {
+    try (final FileChannel channel = channel()) {
+      final boolean exists = channel.size() > 0;
+      mHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      mHeader.order(ByteOrder.LITTLE_ENDIAN);
+      final byte[] magic = new byte[MAGIC.length];
+      if (exists) {
+        mHeader.duplicate().position(0).get(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+          throw new IOException(mFile + " is not an array file");
+        }
+        mLength = mHeader.getLong(LENGTH_OFFSET);
+        final long chunks = (mLength + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        for (long k = 0; k < chunks; ++k) {
+          map(channel);
+        }
+      } else {
+        mHeader.duplicate().position(0).put(MAGIC);
+        mHeader.putLong(LENGTH_OFFSET, 0);
+      }
+    }
+  }
+
+  // Map the next chunk of the file, extending the file if necessary
+  private void map(final FileChannel channel) throws IOException {
+    final long offset = HEADER_SIZE + (long) mChunks.size() * CHUNK_SIZE * Long.BYTES;
+    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) CHUNK_SIZE * Long.BYTES);
+    mMapped.add(buffer);
+    mChunks.add(buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+  }
+
+  private void setLength(final long length) {
+    mLength = length;
+    if (mHeader != null) {
+      mHeader.putLong(LENGTH_OFFSET, length);
+    }
+  }
+
+  private void grow(final long chunks) {
+    if (mFile == null) {
+      while (mChunks.size() < chunks) {
+        mChunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer());
+      }
+    } else {
+      try (final FileChannel channel = channel()) {
+        while (mChunks.size() < chunks) {
+          map(channel);
+        }
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Override
+  public long length() {
+    return mLength;
+  }
+
+  @Override
+  public long get(final long index) {
+    if (index >= mLength) {
+      return 0L;
+    }
+    return mChunks.get((int) (index >> CHUNK_BITS)).get((int) index & CHUNK_MASK);
+  }
+
+  /**
+   * Set the entry at specified index to the given value.
+   *
+   * @param index array index
+   * @param value value to set at the index
+   * @exception ArrayIndexOutOfBoundsException if the index is negative.
+   * @exception UncheckedIOException if the backing file cannot be extended.
+   */
+  @Override
+  public void set(final long index, final long value) {
+    if (index < 0) {
+      throw new ArrayIndexOutOfBoundsException("Negative index: " + index);
+    }
+    if (index >= mLength) {
+      grow((index >>> CHUNK_BITS) + 1);
+      setLength(index + 1);
+    }
+    mChunks.get((int) (index >>> CHUNK_BITS)).put((int) index & CHUNK_MASK, value);
+  }
+
+  private static void zero(final LongBuffer chunk, final int from) {
+    for (int k = from; k < CHUNK_SIZE; ++k) {
+      chunk.put(k, 0L);
+    }
+  }
+
+  /**
+   * Truncate the array to specified length.  Entries beyond this position
+   * are lost.  Direct buffers beyond the new length are released, but a
+   * backing file is not shortened.
+   *
+   * @param length position to truncate at
+   * @exception ArrayIndexOutOfBoundsException if length is negative.
+   */
+  @Override
+  public void truncate(final long length) {
+    if (length < mLength) {
+      if (length < 0) {
+        throw new ArrayIndexOutOfBoundsException("Cannot truncate to negative length.");
+      }
+      final int chunks = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+      for (int k = mChunks.size() - 1; k >= chunks; --k) {
+        // File content must be cleared in case the chunk is mapped again
+        if (mFile != null) {
+          zero(mChunks.get(k), 0);
+        }
+        mChunks.remove(k);
+        if (mFile != null) {
+          mMapped.remove(k);
+        }
+      }
+      if (chunks > 0) {
+        // Zero entries in rest of chunk, in case they become valid again
+        zero(mChunks.get(chunks - 1), (int) (((length - 1) & CHUNK_MASK) + 1));
+      }
+      setLength(length);
+    }
+  }
+
+  /**
+   * Ensure that any changes to a file backed array are written to storage.
+   */
+  public void force() {
+    if (mHeader != null) {
+      for (final MappedByteBuffer buffer : mMapped) {
+        buffer.force();
+      }
+      mHeader.force();
+    }
+  }
+
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    if (mFile == null) {
+      out.writeLong(mLength);
+      for (long k = 0; k < mLength; ++k) {
+        out.writeLong(get(k));
+      }
+    } else {
+      force();
+    }
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    mChunks = new ArrayList<>();
+    mMapped = new ArrayList<>();
+    if (mFile == null) {
+      final long length = in.readLong();
+      for (long k = 0; k < length; ++k) {
+        set(k, in.readLong());
+      }
+      setLength(length);
+    } else {
+      open();
+    }
+  }
+}
@@ -115,6 +115,19 @@ public final class StringUtils {
     APPEND_CHAR[']'] = (char) 1;
   }
 
+  /**
+   * Return what a character becomes when cleaning a word with
+   * <code>clean</code>.  This allows words to be cleaned a character at a
+   * time, without creating strings.
+   * @param c character
+   * @return the lower case letter or digit to keep, <code>'\uFFFF'</code> for
+   * a character that is dropped, 1 for a character separating words, or 0 for
+   * a character that makes the whole word unclean
+   */
+  public static char cleanChar(final char c) {
+    return APPEND_CHAR[c];
+  }
+
   /**
    * Clean up a word by making it lower case and discarding characters which
    * are not letters or digits.  If the word is sufficiently dirty then the
@@ -11,9 +11,18 @@ public class AllTests extends TestSuite {
 
   public static Test suite() {
     final TestSuite suite = new TestSuite();
+    suite.addTestSuite(CachingEntropyTest.class);
+    suite.addTestSuite(CascadedEntropyTest.class);
     suite.addTestSuite(FourGramAlphabetModelTest.class);
+    suite.addTestSuite(HashedContextModelTest.class);
+    suite.addTestSuite(InstrumentedEntropyTest.class);
+    suite.addTestSuite(ModelBuilderTest.class);
+    suite.addTestSuite(ModelRegistryTest.class);
     suite.addTestSuite(NGramModelTest.class);
+    suite.addTestSuite(NGramPrunerTest.class);
+    suite.addTestSuite(PositionalCostsTest.class);
     suite.addTestSuite(ReducedAlphabetTest.class);
+    suite.addTestSuite(SparseContextModelTest.class);
     suite.addTestSuite(UniwordModelTest.class);
     suite.addTestSuite(WordGramModelTest.class);
     return suite;
@@ -0,0 +1,105 @@
+package irvine.entropy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares scoring a batch of same-length candidates one at a time with
+ * scoring them together via <code>entropies</code>.  The batch resembles the
+ * work of a Playfair search: every decryption of a text under a key which
+ * differs from the true key by swapping a pair of letters.
+ * Usage: <code>BatchScoringBenchmark [model] [rounds]</code>.
+ * @author Sean A. Irvine
+ */
+public final class BatchScoringBenchmark {
+
+  private BatchScoringBenchmark() { }
+
+  private static final String TEXT = "IT WAS THE BEST OF TIMES IT WAS THE WORST OF TIMES IT WAS THE AGE OF WISDOM IT WAS THE AGE OF FOOLISHNESS "
+    + "IT WAS THE EPOCH OF BELIEF IT WAS THE EPOCH OF INCREDULITY IT WAS THE SEASON OF LIGHT IT WAS THE SEASON OF DARKNESS";
+  private static final String LETTERS = "ABCDEFGHIKLMNOPQRSTUVWXYZ";
+
+  // Every pair swap of the letters, one candidate after another
+  private static char[] candidates() {
+    final int pairs = LETTERS.length() * (LETTERS.length() - 1) / 2;
+    final char[] buf = new char[pairs * TEXT.length()];
+    int off = 0;
+    for (int a = 0; a < LETTERS.length(); ++a) {
+      for (int b = a + 1; b < LETTERS.length(); ++b) {
+        final char ca = LETTERS.charAt(a);
+        final char cb = LETTERS.charAt(b);
+        for (int k = 0; k < TEXT.length(); ++k) {
+          final char c = TEXT.charAt(k);
+          buf[off++] = c == ca ? cb : c == cb ? ca : c;
+        }
+      }
+    }
+    return buf;
+  }
+
+  private static double single(final Entropy model, final char[] buf, final int len, final int count, final double[] scores) {
+    final long start = System.nanoTime();
+    for (int k = 0, off = 0; k < count; ++k, off += len) {
+      scores[k] = model.entropy(buf, off, len);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static double batch(final Entropy model, final char[] buf, final int len, final int count, final double[] scores) {
+    final long start = System.nanoTime();
+    model.entropies(buf, len, count, scores);
+    return System.nanoTime() - start;
+  }
+
+  private static void run(final String name, final Entropy model, final int rounds) {
+    final char[] buf = candidates();
+    final int len = TEXT.length();
+    final int count = buf.length / len;
+    final double[] expected = new double[count];
+    final double[] scores = new double[count];
+    // Warm up, and check the two methods agree
+    for (int r = 0; r < Math.max(1, rounds / 10); ++r) {
+      single(model, buf, len, count, expected);
+      batch(model, buf, len, count, scores);
+    }
+    for (int k = 0; k < count; ++k) {
+      if (Math.abs(expected[k] - scores[k]) > 1E-9 * expected[k]) {
+        throw new IllegalStateException(name + " batch score differs for candidate " + k + ": " + expected[k] + " " + scores[k]);
+      }
+    }
+    double singleTime = 0;
+    double batchTime = 0;
+    for (int r = 0; r < rounds; ++r) {
+      singleTime += single(model, buf, len, count, expected);
+      batchTime += batch(model, buf, len, count, scores);
+    }
+    final double n = (double) rounds * count;
+    System.out.println(String.format("%-12s %d candidates of length %d: single %.0f ns, batch %.0f ns per candidate, speedup %.2f",
+      name, count, len, singleTime / n, batchTime / n, singleTime / batchTime));
+  }
+
+  /**
+   * Run the benchmark.
+   * @param args optional model file and number of rounds
+   * @throws IOException if the model cannot be loaded
+   */
+  public static void main(final String[] args) throws IOException {
+    final Entropy model = args.length > 0 ? FourGramAlphabetModel.loadModel(args[0]) : FourGramAlphabetModel.loadModel();
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    final List<String> names = new ArrayList<>();
+    final List<Entropy> models = new ArrayList<>();
+    names.add(model.getClass().getSimpleName());
+    models.add(model);
+    if (model instanceof FourGramAlphabetModel) {
+      final CompiledFourGramModel compiled = ((FourGramAlphabetModel) model).compile();
+      names.add("compiled");
+      models.add(compiled);
+      names.add("quantized-16");
+      models.add(compiled.quantize(16));
+    }
+    for (int k = 0; k < models.size(); ++k) {
+      run(names.get(k), models.get(k), rounds);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package irvine.entropy;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class CachingEntropyTest extends TestCase {
+
+  /** Scores text by its length, counting calls. */
+  private static final class LengthModel implements Entropy {
+    private int mCalls = 0;
+
+    @Override
+    public double entropy(final String text) {
+      ++mCalls;
+      return text.length();
+    }
+  }
+
+  public void testHitsAndMisses() {
+    final LengthModel model = new LengthModel();
+    final CachingEntropy cache = new CachingEntropy(model, 10);
+    assertEquals(3.0, cache.entropy("abc"));
+    assertEquals(3.0, cache.entropy(new StringBuilder("abc")));
+    assertEquals(3.0, cache.entropy("xabcx".toCharArray(), 1, 3));
+    assertEquals(4.0, cache.entropy("abcd"));
+    assertEquals(2, model.mCalls);
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(2, cache.size());
+    assertTrue(cache.toString().contains("hit rate 50.0%"));
+  }
+
+  public void testCutoff() {
+    final LengthModel model = new LengthModel();
+    final CachingEntropy cache = new CachingEntropy(model, 10);
+    // A result beyond the cutoff is not exact and must not be remembered
+    assertEquals(Double.POSITIVE_INFINITY, cache.entropy("abcde", 2));
+    assertEquals(5.0, cache.entropy("abcde", 10));
+    assertEquals(Double.POSITIVE_INFINITY, cache.entropy("abcde", 2));
+    assertEquals(5.0, cache.entropy("abcde"));
+    assertEquals(2, model.mCalls);
+  }
+
+  public void testEviction() {
+    final LengthModel model = new LengthModel();
+    final CachingEntropy cache = new CachingEntropy(model, 3);
+    cache.entropy("a");
+    cache.entropy("bb");
+    cache.entropy("ccc");
+    cache.entropy("a"); // referenced, so survives the next eviction
+    cache.entropy("dddd");
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getEvictions());
+    final int calls = model.mCalls;
+    cache.entropy("a");
+    assertEquals(calls, model.mCalls);
+    cache.entropy("bb");
+    assertEquals(calls + 1, model.mCalls);
+  }
+
+  public void testManyEntries() {
+    final LengthModel model = new LengthModel();
+    final CachingEntropy cache = new CachingEntropy(model, 100);
+    for (int k = 0; k < 10000; ++k) {
+      final String s = Integer.toString(k * 7919 % 1000);
+      assertEquals((double) s.length(), cache.entropy(s));
+      assertTrue(cache.size() <= 100);
+    }
+    // The most recent entries must all still be found
+    final int calls = model.mCalls;
+    for (int k = 9999; k > 9950; --k) {
+      cache.entropy(Integer.toString(k * 7919 % 1000));
+    }
+    assertEquals(calls, model.mCalls);
+    assertEquals(10000, cache.getHits() + cache.getMisses() - 49);
+  }
+
+  public void testTrustHash() {
+    final LengthModel model = new LengthModel();
+    final CachingEntropy cache = new CachingEntropy(model, 10, true);
+    assertEquals(3.0, cache.entropy("abc"));
+    assertEquals(3.0, cache.entropy("abc"));
+    assertEquals(1, model.mCalls);
+    assertFalse(CachingEntropy.hash("ab") == CachingEntropy.hash("ba"));
+  }
+
+  public void testBadCapacity() {
+    try {
+      new CachingEntropy(new LengthModel(), 0);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
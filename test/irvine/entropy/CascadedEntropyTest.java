@@ -0,0 +1,106 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class CascadedEntropyTest extends TestCase {
+
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ";
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog and then the dog jumped over the quick brown fox";
+  private static final String[] TEXTS = {"the lazy fox", "qxzjv kwpfyb", "then the dog", "zzzzzzzzzzzz"};
+
+  private static FourGramAlphabetModel model() throws IOException {
+    final FourGramAlphabetModel model = new FourGramAlphabetModel(ALPHABET);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    return model;
+  }
+
+  public void testBigrams() throws IOException {
+    final FourGramAlphabetModel model = model();
+    final CompiledFourGramModel bigrams = model.bigrams();
+    assertEquals(2, bigrams.getOrder());
+    assertEquals(ALPHABET, bigrams.getAlphabet());
+    // The second symbol of a text is predicted from a single symbol of context
+    for (final String text : new String[] {"t", "th", "he", "qz", " o", "e?"}) {
+      assertEquals(model.entropy(text), bigrams.entropy(text), 1E-5);
+    }
+    final String text = "the dog";
+    double sum = 0;
+    for (int k = 0; k < text.length(); ++k) {
+      sum += k == 0 ? model.entropy(text.substring(0, 1)) : model.entropy(text.substring(k - 1, k + 1)) - model.entropy(text.substring(k - 1, k));
+    }
+    assertEquals(sum, bigrams.entropy(text), 1E-5);
+    final CompiledFourGramModel compiled = model.compile();
+    assertEquals(bigrams.entropy(text), compiled.bigrams().entropy(text), 1E-5);
+    assertEquals(bigrams.entropy(text), compiled.quantize(16).bigrams().entropy(text), 1E-2);
+    assertEquals(bigrams.entropy(text), CascadedEntropy.bigrams(new CachingEntropy(new InstrumentedEntropy(compiled), 10)).entropy(text), 1E-5);
+    try {
+      CascadedEntropy.bigrams(new NGramModel(4));
+      fail();
+    } catch (final IllegalArgumentException e) {
+      assertEquals("Cannot derive a bigram model from NGramModel", e.getMessage());
+    }
+  }
+
+  public void testWideMargin() throws IOException {
+    final FourGramAlphabetModel model = model();
+    final CascadedEntropy cascade = new CascadedEntropy(model, 100);
+    for (final String text : TEXTS) {
+      final double e = model.entropy(text);
+      assertEquals(e, cascade.entropy(text), 0);
+      assertEquals(e, cascade.entropy(text, e), 0);
+      assertEquals(Double.POSITIVE_INFINITY, cascade.entropy(text.toCharArray(), 0, text.length(), e - 1));
+    }
+    assertEquals(12, cascade.getEvaluations());
+    assertEquals(8, cascade.getScreened());
+    assertEquals(0, cascade.getCheapRejections());
+    assertEquals(4, cascade.getModelRejections());
+    cascade.reset();
+    assertEquals(0, cascade.getEvaluations());
+  }
+
+  public void testScreening() throws IOException {
+    final FourGramAlphabetModel model = model();
+    final CascadedEntropy cascade = new CascadedEntropy(model, 1);
+    final double cutoff = model.entropy(TEXTS[0]);
+    assertEquals(cutoff, cascade.entropy(TEXTS[0], cutoff), 0);
+    // The bigram model is cruder, so too narrow a margin rejects acceptable text
+    assertEquals(Double.POSITIVE_INFINITY, new CascadedEntropy(model, 0).entropy(TEXTS[0], cutoff));
+    // Gibberish is rejected without consulting the full model
+    assertEquals(Double.POSITIVE_INFINITY, cascade.entropy(TEXTS[3], cutoff));
+    assertEquals(1, cascade.getCheapRejections());
+    assertEquals(0, cascade.getModelRejections());
+    assertTrue(cascade.toString().contains("1 rejected by CompiledFourGramModel, 0 rejected by FourGramAlphabetModel"));
+  }
+
+  public void testBatch() throws IOException {
+    final FourGramAlphabetModel model = model();
+    final int len = TEXTS[0].length();
+    final char[] buf = new char[TEXTS.length * len];
+    for (int k = 0; k < TEXTS.length; ++k) {
+      TEXTS[k].getChars(0, len, buf, k * len);
+    }
+    final double cutoff = model.entropy(TEXTS[2]);
+    for (final double margin : new double[] {0, 0.5, 100}) {
+      final CascadedEntropy cascade = new CascadedEntropy(model, margin);
+      final double[] scores = new double[TEXTS.length];
+      cascade.entropies(buf, len, TEXTS.length, scores, cutoff);
+      for (int k = 0; k < TEXTS.length; ++k) {
+        assertEquals(cascade.entropy(TEXTS[k], cutoff), scores[k], 1E-9);
+      }
+      assertEquals(2 * TEXTS.length, cascade.getScreened());
+      cascade.entropies(buf, len, TEXTS.length, scores);
+      for (int k = 0; k < TEXTS.length; ++k) {
+        assertEquals(model.entropy(TEXTS[k]), scores[k], 1E-9);
+      }
+      assertEquals(2 * TEXTS.length, cascade.getScreened());
+    }
+  }
+}
@@ -1,6 +1,10 @@
 package irvine.entropy;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -19,5 +23,240 @@ public class FourGramAlphabetModelTest extends TestCase {
       assertEquals(156.4425035662359, m.entropy("the quick brown fox jumped over the lazy dog."), 1E-6);
     }
   }
-}
 
+  public void testCursor() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    try (final ByteArrayInputStream bis = new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes())) {
+      m.add(bis);
+    }
+    final String text = "a lazy brown dog jumped";
+    final Entropy.Cursor cursor = m.cursor();
+    assertEquals(0.0, cursor.entropy());
+    for (int k = 0; k < text.length(); ++k) {
+      final Entropy.Cursor copy = cursor.copy();
+      final double delta = cursor.append(text.charAt(k));
+      assertEquals(m.entropy(text.substring(0, k + 1)), cursor.entropy(), 1E-9);
+      assertEquals(cursor.entropy(), copy.entropy() + delta, 1E-9);
+    }
+    final Entropy.Cursor c = m.cursor();
+    c.append(text);
+    assertEquals(m.entropy(text), c.entropy(), 1E-9);
+  }
+
+  public void testCharacterOverloads() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    m.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final String text = "a  lazy brown dog jumped";
+    final double e = m.entropy(text);
+    assertEquals(e, m.entropy(new StringBuilder(text)), 1E-9);
+    final char[] buf = ("xx" + text + "yyy").toCharArray();
+    assertEquals(e, m.entropy(buf, 2, text.length()), 1E-9);
+    assertEquals(0.0, m.entropy(buf, 2, 0), 1E-9);
+  }
+
+  public void testCutoff() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    m.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final String text = "a  lazy brown dog jumped";
+    final double e = m.entropy(text);
+    assertEquals(e, m.entropy(text, e + 1), 1E-9);
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy(text, e - 1));
+    final char[] buf = text.toCharArray();
+    assertEquals(e, m.entropy(buf, 0, buf.length, e + 1), 1E-9);
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy(buf, 0, buf.length, e - 1));
+    final CompiledFourGramModel c = m.compile();
+    assertEquals(Double.POSITIVE_INFINITY, c.entropy(buf, 0, buf.length, e - 1));
+  }
+
+  public void testCompile() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    m.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final CompiledFourGramModel c = m.compile();
+    assertEquals(m.getAlphabet(), c.getAlphabet());
+    for (final String text : new String[] {"", "d", "dog", "a lazy brown dog jumped", "zzz qqq the theth the"}) {
+      assertEquals(m.entropy(text), c.entropy(text), 1E-5);
+      assertEquals(m.entropy(text), c.entropy(text.toCharArray(), 0, text.length()), 1E-5);
+      final Entropy.Cursor cursor = c.cursor();
+      cursor.append(text);
+      assertEquals(m.entropy(text), cursor.entropy(), 1E-5);
+    }
+  }
+
+  public void testSaveLoad() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    m.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    m.setBuildCommand("test");
+    final String text = "a lazy brown dog jumped";
+    final File file = File.createTempFile("four", ".model");
+    try {
+      for (final boolean compress : new boolean[] {false, true}) {
+        m.saveModel(file.getPath(), compress);
+        final Entropy loaded = FourGramAlphabetModel.loadModel(file.getPath());
+        assertTrue(loaded instanceof FourGramAlphabetModel);
+        assertEquals("test", ((FourGramAlphabetModel) loaded).getBuildCommand());
+        assertEquals(m.getAlphabet(), ((FourGramAlphabetModel) loaded).getAlphabet());
+        assertEquals(m.entropy(text), loaded.entropy(text), 1E-12);
+        final CompiledFourGramModel c = m.compile();
+        c.saveModel(file.getPath(), compress);
+        final Entropy compiled = FourGramAlphabetModel.loadModel(file.getPath());
+        assertTrue(compiled instanceof CompiledFourGramModel);
+        assertEquals(c.entropy(text), compiled.entropy(text), 1E-12);
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testQuantize() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    m.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    m.setBuildCommand("test");
+    final CompiledFourGramModel c = m.compile();
+    final QuantizedFourGramModel q8 = c.quantize(8);
+    final QuantizedFourGramModel q16 = c.quantize(16);
+    assertEquals(8, q8.getBits());
+    assertEquals(16, q16.getBits());
+    assertEquals(2 * q8.bytes(), q16.bytes());
+    assertTrue(q8.report(c).startsWith("8-bit table of " + q8.bytes() + " bytes"));
+    final String text = "a lazy brown dog jumped";
+    final double e = c.entropy(text);
+    final double e8 = q8.entropy(text);
+    final double e16 = q16.entropy(text);
+    assertEquals(e, e8, 0.05 * e);
+    assertEquals(e, e16, 1E-3 * e);
+    assertTrue(Math.abs(e16 - e) <= Math.abs(e8 - e));
+    assertEquals(e16, q16.entropy(text.toCharArray(), 0, text.length()), 1E-12);
+    assertEquals(Double.POSITIVE_INFINITY, q16.entropy(text, e16 - 1));
+    assertEquals(e16, q16.entropy(text, e16 + 1), 1E-12);
+    final Entropy.Cursor cursor = q16.cursor();
+    for (int k = 0; k < text.length(); ++k) {
+      final Entropy.Cursor copy = cursor.copy();
+      final double delta = cursor.append(text.charAt(k));
+      assertEquals(q16.entropy(text.substring(0, k + 1)), cursor.entropy(), 1E-9);
+      assertEquals(cursor.entropy(), copy.entropy() + delta, 1E-9);
+    }
+    try {
+      c.quantize(12);
+      fail();
+    } catch (final IllegalArgumentException ex) {
+      // expected
+    }
+    final File file = File.createTempFile("four", ".model");
+    try {
+      for (final QuantizedFourGramModel q : new QuantizedFourGramModel[] {q8, q16}) {
+        for (final boolean compress : new boolean[] {false, true}) {
+          q.saveModel(file.getPath(), compress);
+          final Entropy loaded = FourGramAlphabetModel.loadModel(file.getPath());
+          assertTrue(loaded instanceof QuantizedFourGramModel);
+          assertEquals(q.getBits(), ((QuantizedFourGramModel) loaded).getBits());
+          assertEquals(m.getAlphabet(), ((QuantizedFourGramModel) loaded).getAlphabet());
+          assertTrue(loaded.toString().endsWith("test"));
+          assertEquals(q.entropy(text), loaded.entropy(text), 1E-12);
+        }
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testBatch() throws Exception {
+    final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    m.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final CompiledFourGramModel c = m.compile();
+    final String[] texts = {"a lazy brown dog jumped", "a lazy brown god jumped", "a lazy brown dog jumbed", "zzzzzzzzzzzzzzzzzzzzzzz", "a lazy brown dog jumped", "the quick brown fox jump"};
+    final int len = texts[0].length();
+    final StringBuilder sb = new StringBuilder();
+    for (final String t : texts) {
+      sb.append(t, 0, len);
+    }
+    final char[] buf = sb.toString().toCharArray();
+    final double[] scores = new double[texts.length];
+    for (final Entropy model : new Entropy[] {m, c, c.quantize(16), new CachingEntropy(m, 2)}) {
+      for (int count = 0; count <= texts.length; ++count) {
+        model.entropies(buf, len, count, scores);
+        for (int k = 0; k < count; ++k) {
+          assertEquals(model.entropy(buf, k * len, len), scores[k]);
+        }
+      }
+      final double cutoff = model.entropy(texts[1]);
+      model.entropies(buf, len, texts.length, scores, cutoff);
+      for (int k = 0; k < texts.length; ++k) {
+        assertEquals(model.entropy(buf, k * len, len, cutoff), scores[k]);
+      }
+      model.entropies(buf, len, texts.length, scores, 0);
+      for (final double s : scores) {
+        assertEquals(Double.POSITIVE_INFINITY, s);
+      }
+    }
+  }
+
+  public void testParallelBuild() throws Exception {
+    final String[] training = {
+      "The quick brown fox, jumped over the lazy dog!  Then it ran away...",
+      "a b  c   d    e, dog god good dodgy",
+    };
+    final FourGramAlphabetModel sequential = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    for (final String t : training) {
+      sequential.add(new ByteArrayInputStream(t.getBytes()));
+    }
+    for (final int chunk : new int[] {1, 2, 5, 1024}) {
+      final FourGramAlphabetModel parallel = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+      final FourGramCounter counter = parallel.counter(3, chunk);
+      for (final String t : training) {
+        counter.add(new ByteArrayInputStream(t.getBytes()));
+      }
+      parallel.add(counter);
+      final String info = sequential.toString();
+      assertTrue(parallel.toString().endsWith(info.substring(info.indexOf("training size"))));
+      for (final String text : new String[] {"the lazy dog", "a b c", "xyzzy", "he ran away", "good dodgy fox"}) {
+        assertEquals(sequential.entropy(text), parallel.entropy(text));
+      }
+    }
+  }
+
+  public void testShards() throws Exception {
+    final String[] training = {
+      "The quick brown fox, jumped over the lazy dog!  Then it ran away...",
+      "a b  c   d    e, dog god good dodgy",
+    };
+    final FourGramAlphabetModel sequential = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    final List<String> shards = new ArrayList<>();
+    try {
+      for (final String t : training) {
+        sequential.add(new ByteArrayInputStream(t.getBytes()));
+        final FourGramAlphabetModel m = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+        final FourGramCounter counter = m.counter(1);
+        counter.add(new ByteArrayInputStream(t.getBytes()));
+        final File shard = File.createTempFile("four", ".shard");
+        shards.add(shard.getPath());
+        m.saveShard(shard.getPath(), shards.size() == 1, counter);
+      }
+      try {
+        FourGramAlphabetModel.loadModel(shards.get(0));
+        fail();
+      } catch (final IOException e) {
+        // expected
+      }
+      final FourGramAlphabetModel merged = FourGramAlphabetModel.merge(shards);
+      final String info = sequential.toString();
+      assertTrue(merged.toString().endsWith(info.substring(info.indexOf("training size"))));
+      for (final String text : new String[] {"the lazy dog", "a b c", "xyzzy", "he ran away", "good dodgy fox"}) {
+        assertEquals(sequential.entropy(text), merged.entropy(text));
+      }
+      final FourGramAlphabetModel other = new FourGramAlphabetModel("abc");
+      final File shard = File.createTempFile("four", ".shard");
+      shards.add(shard.getPath());
+      other.saveShard(shard.getPath(), false, other.counter(1));
+      try {
+        FourGramAlphabetModel.merge(shards);
+        fail();
+      } catch (final IOException e) {
+        // expected
+      }
+    } finally {
+      for (final String shard : shards) {
+        assertTrue(new File(shard).delete());
+      }
+    }
+  }
+}
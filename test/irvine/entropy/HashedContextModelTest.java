@@ -0,0 +1,129 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class HashedContextModelTest extends TestCase {
+
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ";
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog";
+
+  private static HashedContextModel model(final int order, final long memory) throws Exception {
+    final HashedContextModel m = new HashedContextModel(ALPHABET, order, memory);
+    m.add(new ByteArrayInputStream(TRAINING.getBytes()));
+    return m;
+  }
+
+  public void testOrderFour() throws Exception {
+    // Same escape mechanism as the four-gram model, which differs only in
+    // how it counts the first few symbols of a stream
+    final FourGramAlphabetModel f = new FourGramAlphabetModel(ALPHABET);
+    f.add(new ByteArrayInputStream(TRAINING.getBytes()));
+    final HashedContextModel h = model(4, 1 << 20);
+    assertEquals(4, h.getOrder());
+    assertEquals(1 << 20, h.bytes());
+    assertEquals(0, h.getEvictions());
+    for (final String text : new String[] {"d", "dog", "a lazy brown dog jumped", "zzz qqq", "xy1z the"}) {
+      assertEquals(f.entropy(text), h.entropy(text), 0.05 * f.entropy(text));
+    }
+    assertEquals(4.90527477843843, h.entropy("dog"), 1E-9);
+  }
+
+  public void testHigherOrder() throws Exception {
+    final double e2 = model(2, 1 << 20).entropy(TRAINING);
+    for (int order = 3; order <= 8; ++order) {
+      assertTrue(model(order, 1 << 20).entropy(TRAINING) < 0.7 * e2);
+    }
+  }
+
+  public void testCursor() throws Exception {
+    final HashedContextModel m = model(6, 1 << 16);
+    final String text = "a lazy brown dog? jumped";
+    final Entropy.Cursor cursor = m.cursor();
+    assertEquals(0.0, cursor.entropy());
+    for (int k = 0; k < text.length(); ++k) {
+      final Entropy.Cursor copy = cursor.copy();
+      final double delta = cursor.append(text.charAt(k));
+      assertEquals(m.entropy(text.substring(0, k + 1)), cursor.entropy(), 1E-9);
+      assertEquals(cursor.entropy(), copy.entropy() + delta, 1E-9);
+    }
+    final char[] buf = ("xx" + text + "yyy").toCharArray();
+    final double e = m.entropy(text);
+    assertEquals(e, m.entropy(buf, 2, text.length()), 1E-9);
+    assertEquals(e, m.entropy(text, e + 1), 1E-9);
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy(text, e - 1));
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy(buf, 2, text.length(), e - 1));
+  }
+
+  public void testBoundedMemory() throws Exception {
+    // Far more contexts than buckets
+    final HashedContextModel m = model(8, 512);
+    assertEquals(512, m.bytes());
+    assertEquals(8, m.contexts());
+    assertTrue(m.getEvictions() > 0);
+    final double e = m.entropy("the lazy dog");
+    assertTrue(e > 0 && e < Double.POSITIVE_INFINITY);
+  }
+
+  public void testSaveLoad() throws Exception {
+    final HashedContextModel m = model(6, 1 << 16);
+    m.setBuildCommand("test");
+    final String text = "a lazy brown dog jumped";
+    final File file = File.createTempFile("hashed", ".model");
+    try {
+      for (final boolean compress : new boolean[] {false, true}) {
+        m.saveModel(file.getPath(), compress);
+        final Entropy loaded = FourGramAlphabetModel.loadModel(file.getPath());
+        assertTrue(loaded instanceof HashedContextModel);
+        final HashedContextModel h = (HashedContextModel) loaded;
+        assertEquals(6, h.getOrder());
+        assertEquals(ALPHABET, h.getAlphabet());
+        assertEquals("test", h.getBuildCommand());
+        assertEquals(m.contexts(), h.contexts());
+        assertEquals(m.entropy(text), h.entropy(text), 1E-12);
+        try {
+          h.add(new ByteArrayInputStream(TRAINING.getBytes()));
+          fail();
+        } catch (final UnsupportedOperationException e) {
+          // expected
+        }
+      }
+      // Upgrading or copying a hashed model with the four-gram tool
+      final File copy = File.createTempFile("hashed", ".model");
+      try {
+        FourGramAlphabetModel.main(new String[] {"-m", file.getPath(), "--save", copy.getPath()});
+        assertEquals(m.entropy(text), FourGramAlphabetModel.loadModel(copy.getPath()).entropy(text), 1E-12);
+        assertTrue(copy.delete());
+        FourGramAlphabetModel.main(new String[] {"-m", file.getPath(), "-q", "8", "--save", copy.getPath()});
+        assertFalse(copy.exists());
+      } finally {
+        copy.delete();
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testBadArguments() {
+    for (final int order : new int[] {0, 9}) {
+      try {
+        new HashedContextModel(ALPHABET, order, 1 << 20);
+        fail();
+      } catch (final IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      new HashedContextModel(ALPHABET, 6, 64);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class InstrumentedEntropyTest extends TestCase {
+
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog";
+
+  private static long sum(final long[] a) {
+    long s = 0;
+    for (final long v : a) {
+      s += v;
+    }
+    return s;
+  }
+
+  public void testFourGram() throws IOException {
+    final FourGramAlphabetModel model = new FourGramAlphabetModel("abcdefghijklmnopqrstuvwxyz ");
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    final InstrumentedEntropy instrumented = new InstrumentedEntropy(model, 1);
+    assertSame(model, instrumented.getModel());
+    assertEquals(model.getClass().getName(), instrumented.getModelClass());
+    assertEquals(model.entropy(TRAINING), instrumented.entropy(TRAINING), 0);
+    assertEquals(1, instrumented.getEvaluations());
+    assertEquals(TRAINING.length(), instrumented.getCharacters());
+    assertTrue(instrumented.getNanoseconds() > 0);
+    assertTrue(instrumented.getNanosecondsPerCharacter() > 0);
+    final long[] hits = instrumented.getHits();
+    assertEquals(5, hits.length);
+    assertEquals(TRAINING.length(), sum(hits));
+    // Apart from the first few symbols, the training text is predicted by the longest context
+    assertEquals(TRAINING.length() - 3, hits[4]);
+    assertEquals(0, sum(instrumented.getEscapes()));
+    instrumented.reset();
+    // Unknown symbols escape all the way
+    instrumented.entropy("?!");
+    assertEquals(2, instrumented.getHits()[0]);
+    instrumented.entropy("zq".toCharArray(), 0, 2);
+    // q is never seen after z, the model escapes from the context z for
+    // each start position until only the order 0 context remains
+    assertEquals(3, instrumented.getEscapes()[2]);
+    assertEquals(2, instrumented.getHits()[1]);
+    assertEquals(2, instrumented.getEvaluations());
+    assertTrue(instrumented.toString().contains("order -1"));
+  }
+
+  public void testNGram() throws IOException {
+    final NGramModel model = new NGramModel(4);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    final InstrumentedEntropy instrumented = new InstrumentedEntropy(model, 1);
+    final String text = "the lazy fox jumped 1";
+    assertEquals(model.entropy(text), instrumented.entropy(text, Double.POSITIVE_INFINITY), 0);
+    final long[] hits = instrumented.getHits();
+    final long[] escapes = instrumented.getEscapes();
+    assertEquals(5, hits.length);
+    assertEquals(text.length(), sum(hits));
+    // The digit was never seen, so escapes from every order
+    assertEquals(1, hits[0]);
+    assertTrue(escapes[1] >= 1);
+  }
+
+  private static FourGramAlphabetModel ab() throws IOException {
+    final FourGramAlphabetModel model = new FourGramAlphabetModel("ab");
+    model.add(new ByteArrayInputStream("abbaabab".getBytes(StandardCharsets.US_ASCII)));
+    return model;
+  }
+
+  public void testSampling() throws IOException {
+    final InstrumentedEntropy instrumented = new InstrumentedEntropy(ab(), 4);
+    assertEquals(4, instrumented.getSampleInterval());
+    for (int k = 0; k < 10; ++k) {
+      instrumented.entropy("ab");
+    }
+    assertEquals(10, instrumented.getEvaluations());
+    assertEquals(4, sum(instrumented.getHits()));
+    final char[] buf = "abba".toCharArray();
+    instrumented.entropies(buf, 2, 2, new double[2]);
+    assertEquals(12, instrumented.getEvaluations());
+    assertEquals(24, instrumented.getCharacters());
+    final Entropy.Cursor cursor = instrumented.cursor();
+    cursor.append('a');
+    cursor.copy().append('b');
+    assertEquals(14, instrumented.getEvaluations());
+    // Models which cannot be profiled
+    final InstrumentedEntropy plain = new InstrumentedEntropy(ab().compile());
+    plain.entropy("ab");
+    assertEquals(0, plain.getHits().length);
+    try {
+      new InstrumentedEntropy(plain, 0);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testJmx() throws JMException, IOException {
+    final InstrumentedEntropy instrumented = new InstrumentedEntropy(ab());
+    final ObjectName name = instrumented.register("test");
+    try {
+      instrumented.entropy("abab");
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(1L, server.getAttribute(name, "Evaluations"));
+      assertEquals(4L, server.getAttribute(name, "Characters"));
+      server.invoke(name, "reset", null, null);
+      assertEquals(0L, server.getAttribute(name, "Evaluations"));
+    } finally {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class ModelBuilderTest extends TestCase {
+
+  private static final String[] CORPUS = {
+    "Jack and Jill went up the hill -- to fetch a pail of water.\nJack fell down and broke his crown,\n\nand Jill came tumbling after.",
+    "Mississippi in 1999: \"all good/bad things\" needn't   LOOK   too HOLLOW; Zzz... 'quoted' #hash",
+  };
+
+  private static String normalize(final ModelBuilder.Recipe recipe, final String text) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (final OutputStream out = recipe.normalizer(bos)) {
+      // Write in awkward pieces to exercise buffering
+      final byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+      for (int k = 0; k < b.length; k += 7) {
+        out.write(b, k, Math.min(7, b.length - k));
+      }
+    }
+    return bos.toString(StandardCharsets.US_ASCII);
+  }
+
+  // What the shell pipeline for the default model produced
+  private static String reduced(final String text) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (final char c : text.replace('/', ' ').replace('-', ' ').toCharArray()) {
+      if ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789,.';: \n".indexOf(c) >= 0) {
+        sb.append(c);
+      }
+    }
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ReducedAlphabet.stream(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.US_ASCII)), bos);
+    return bos.toString(StandardCharsets.US_ASCII);
+  }
+
+  // As for InsertPlayfairDummies
+  private static String dummies(final String text, final char dummy) {
+    final StringBuilder sb = new StringBuilder();
+    int prev = -1;
+    boolean even = false;
+    for (final char c : text.toCharArray()) {
+      if (c == prev && even) {
+        sb.append(dummy);
+      } else {
+        even = !even;
+      }
+      sb.append(c);
+      prev = c;
+    }
+    return sb.toString();
+  }
+
+  public void testNormalize() throws IOException {
+    assertEquals(reduced(CORPUS[0]), normalize(ModelBuilder.recipe("default"), CORPUS[0]));
+    assertEquals(reduced(CORPUS[1]), normalize(ModelBuilder.recipe("default"), CORPUS[1]));
+    assertEquals("AIISSSIPPI", normalize(ModelBuilder.recipe("nospace"), "a/ii s s-s 1ippi"));
+    assertEquals("IACKANDIILLWENT", normalize(ModelBuilder.recipe("playfair5"), "Jack and Jill went"));
+    assertEquals("MISXSISXSIPXPI199X9", normalize(ModelBuilder.recipe("playfair6"), "Mississippi 1999"));
+    assertEquals("MIS*SIS*SIP*PI", normalize(ModelBuilder.recipe("playfair7x4"), "Mississippi 1999"));
+    for (final String text : CORPUS) {
+      final String upper = text.toUpperCase(Locale.ROOT);
+      assertEquals(dummies(upper.replace('J', 'I').replaceAll("[^A-Z]", ""), 'X'), normalize(ModelBuilder.recipe("playfair5"), text));
+      assertEquals(dummies(upper.replaceAll("[^A-Z0-9]", ""), 'X'), normalize(ModelBuilder.recipe("playfair6"), text));
+      assertEquals(dummies(upper.replaceAll("[^A-Z]", ""), '*'), normalize(ModelBuilder.recipe("playfair7x4"), text));
+    }
+    assertNull(ModelBuilder.recipe("no-such-model"));
+  }
+
+  public void testBuild() throws IOException {
+    final List<String> files = new ArrayList<>();
+    try {
+      for (int k = 0; k < CORPUS.length; ++k) {
+        final File file = File.createTempFile("corpus", k == 0 ? ".txt" : ".gz");
+        files.add(file.getPath());
+        try (final OutputStream out = k == 0 ? new FileOutputStream(file) : new GZIPOutputStream(new FileOutputStream(file))) {
+          out.write(CORPUS[k].getBytes(StandardCharsets.US_ASCII));
+        }
+      }
+      // The table of the 6x6 model is too large for a test
+      final List<ModelBuilder.Recipe> recipes = Arrays.asList(ModelBuilder.recipe("default"), ModelBuilder.recipe("nospace"), ModelBuilder.recipe("playfair5"), ModelBuilder.recipe("playfair7x4"));
+      final List<FourGramAlphabetModel> models = ModelBuilder.build(recipes, files, 2, "test");
+      assertEquals(recipes.size(), models.size());
+      for (int k = 0; k < recipes.size(); ++k) {
+        final ModelBuilder.Recipe recipe = recipes.get(k);
+        // Same as building sequentially from each normalised file in turn
+        final FourGramAlphabetModel expected = new FourGramAlphabetModel(recipe.getAlphabet());
+        expected.setUpcase(true);
+        for (final String text : CORPUS) {
+          expected.add(new ByteArrayInputStream(normalize(recipe, text).getBytes(StandardCharsets.US_ASCII)));
+        }
+        final FourGramAlphabetModel model = models.get(k);
+        assertEquals(recipe.getAlphabet(), model.getAlphabet());
+        assertTrue(model.getBuildCommand().startsWith("test " + recipe.getName()));
+        for (final String text : new String[] {"JACK AND JILL", "mississippi", "the quick brown fox"}) {
+          assertEquals(expected.entropy(text), model.entropy(text), 1E-12);
+        }
+      }
+    } finally {
+      for (final String file : files) {
+        assertTrue(new File(file).delete());
+      }
+    }
+  }
+}
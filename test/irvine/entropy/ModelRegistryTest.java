@@ -0,0 +1,93 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class ModelRegistryTest extends TestCase {
+
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog";
+
+  @Override
+  public void tearDown() {
+    ModelRegistry.setSoftReferences(false);
+    ModelRegistry.clear();
+  }
+
+  public void testDefault() throws IOException {
+    ModelRegistry.clear();
+    assertFalse(ModelRegistry.isLoaded(ModelRegistry.DEFAULT));
+    final Entropy model = ModelRegistry.getDefault();
+    assertTrue(model instanceof FourGramAlphabetModel);
+    assertTrue(ModelRegistry.isLoaded(ModelRegistry.DEFAULT));
+    assertSame(model, ModelRegistry.getDefault());
+    assertSame(model, ModelRegistry.get(ModelRegistry.DEFAULT));
+    ModelRegistry.clear();
+    assertFalse(ModelRegistry.isLoaded(ModelRegistry.DEFAULT));
+    assertNotSame(model, ModelRegistry.getDefault());
+  }
+
+  public void testBuiltIn() {
+    assertTrue(ModelRegistry.isBuiltIn(ModelRegistry.DEFAULT));
+    assertTrue(ModelRegistry.isBuiltIn(ModelRegistry.PLAYFAIR_5));
+    assertTrue(ModelRegistry.isBuiltIn(ModelRegistry.UNIWORD_ENGLISH));
+    assertFalse(ModelRegistry.isBuiltIn("no-such-model"));
+  }
+
+  public void testUnknown() {
+    try {
+      ModelRegistry.get("no-such-model");
+      fail();
+    } catch (final IOException e) {
+      assertEquals("Unknown model: no-such-model", e.getMessage());
+    }
+    assertFalse(ModelRegistry.isLoaded("no-such-model"));
+  }
+
+  public void testFiles() throws IOException {
+    final HashedContextModel hashed = new HashedContextModel("abcdefghijklmnopqrstuvwxyz ", 5, 1 << 16);
+    hashed.add(new ByteArrayInputStream(TRAINING.getBytes()));
+    final WordGramModel words = new WordGramModel(2);
+    words.add(new ByteArrayInputStream(TRAINING.getBytes()));
+    final File dir = File.createTempFile("registry", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    final File hashedFile = new File(dir, "hashed.model");
+    final File wordFile = new File(dir, "word.model");
+    try {
+      hashed.saveModel(hashedFile.getPath(), true);
+      words.saveModel(wordFile.getPath());
+      final Entropy a = ModelRegistry.get(hashedFile.getPath());
+      assertTrue(a instanceof HashedContextModel);
+      assertEquals(hashed.entropy(TRAINING), a.entropy(TRAINING), 1E-12);
+      // Different paths to the same file give the same model
+      assertSame(a, ModelRegistry.get(dir.getPath() + File.separator + "." + File.separator + "hashed.model"));
+      final Entropy b = ModelRegistry.get(wordFile.getPath());
+      assertTrue(b instanceof WordGramModel);
+      assertEquals(words.entropy(TRAINING), b.entropy(TRAINING), 1E-12);
+      assertTrue(ModelRegistry.isLoaded(hashedFile.getPath()));
+    } finally {
+      assertTrue(hashedFile.delete());
+      assertTrue(wordFile.delete());
+      assertTrue(dir.delete());
+    }
+  }
+
+  public void testSoftReferences() throws IOException {
+    ModelRegistry.clear();
+    final Entropy model = ModelRegistry.getDefault();
+    ModelRegistry.setSoftReferences(true);
+    assertTrue(ModelRegistry.isSoftReferences());
+    // Still strongly reachable here, so cannot have been discarded
+    assertSame(model, ModelRegistry.getDefault());
+    ModelRegistry.setSoftReferences(false);
+    assertFalse(ModelRegistry.isSoftReferences());
+    assertSame(model, ModelRegistry.getDefault());
+  }
+}
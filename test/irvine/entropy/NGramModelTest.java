@@ -1,9 +1,18 @@
 package irvine.entropy;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
+import irvine.util.OffHeapLongDynamicLongArray;
 import junit.framework.TestCase;
 
 /**
@@ -23,4 +32,236 @@ public class NGramModelTest extends TestCase {
     assertEquals(2.497377443391865, model.entropy("aaaaa"), 1e-4);
     assertEquals(20.399327543834637, model.entropy("abbabbababababaaabbc"), 1e-4);
   }
+
+  public void testCursor() throws IOException {
+    final NGramModel model = new NGramModel(3);
+    model.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes(StandardCharsets.US_ASCII)));
+    final String text = "a  lazy brown dog jumped";
+    final Entropy.Cursor cursor = model.cursor();
+    for (int k = 0; k < text.length(); ++k) {
+      final Entropy.Cursor copy = cursor.copy();
+      final double delta = cursor.append(text.charAt(k));
+      assertEquals(model.entropy(text.substring(0, k + 1)), cursor.entropy(), 1e-9);
+      assertEquals(cursor.entropy(), copy.entropy() + delta, 1e-9);
+    }
+  }
+
+  public void testCharacterOverloads() throws Exception {
+    final NGramModel model = new NGramModel(3);
+    model.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final String text = "a  lazy brown dog jumped";
+    final double e = model.entropy(text);
+    assertEquals(e, model.entropy(new StringBuilder(text)), 1e-9);
+    final char[] buf = ("xx" + text + "yyy").toCharArray();
+    assertEquals(e, model.entropy(buf, 2, text.length()), 1e-9);
+    assertEquals(0.0, model.entropy(buf, 2, 0), 1e-9);
+  }
+
+  public void testCutoff() throws Exception {
+    final NGramModel model = new NGramModel(3);
+    model.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final String text = "a  lazy brown dog jumped";
+    final double e = model.entropy(text);
+    assertEquals(e, model.entropy(text, e + 1), 1e-9);
+    assertEquals(Double.POSITIVE_INFINITY, model.entropy(text, e - 1));
+    final char[] buf = text.toCharArray();
+    assertEquals(e, model.entropy(buf, 0, buf.length, e + 1), 1e-9);
+    assertEquals(Double.POSITIVE_INFINITY, model.entropy(buf, 0, buf.length, e - 1));
+  }
+
+  public void testMerge() throws IOException {
+    final NGramModel a = new NGramModel(3);
+    a.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes()));
+    final NGramModel b = new NGramModel(3);
+    b.add(new ByteArrayInputStream("a b  c   d    e, dog god good dodgy 42".getBytes()));
+    final NGramModel copy = new NGramModel(3);
+    copy.add(a);
+    final NGramModel ab = new NGramModel(3);
+    ab.add(a);
+    ab.add(b);
+    final NGramModel ba = new NGramModel(3);
+    ba.add(b);
+    ba.add(a);
+    for (final String text : new String[] {"the lazy dog", "a b c", "xyzzy", "good dodgy fox 7"}) {
+      assertEquals(a.entropy(text), copy.entropy(text));
+      assertEquals(ab.entropy(text), ba.entropy(text));
+    }
+    assertTrue(ab.entropy("good dodgy fox") < a.entropy("good dodgy fox"));
+    try {
+      ab.add(new NGramModel(2));
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testCompact() throws IOException {
+    final NGramModel model = new NGramModel(4);
+    model.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog 42 times".getBytes()));
+    final String[] texts = {"", "the lazy dog", "a b c", "xyzzy", "good dodgy fox 7", "the quick brown fox"};
+    final double[] expected = new double[texts.length];
+    for (int k = 0; k < texts.length; ++k) {
+      expected[k] = model.entropy(texts[k]);
+    }
+    final long before = model.bytes();
+    model.compact();
+    assertTrue(model.bytes() < before);
+    for (int k = 0; k < texts.length; ++k) {
+      assertEquals(expected[k], model.entropy(texts[k]));
+      final Entropy.Cursor cursor = model.cursor();
+      cursor.append(texts[k]);
+      assertEquals(expected[k], cursor.entropy(), 1e-9);
+    }
+    try {
+      model.add(new ByteArrayInputStream("more".getBytes()));
+      fail();
+    } catch (final UnsupportedOperationException e) {
+      // expected
+    }
+    final File file = File.createTempFile("ngram", ".model");
+    try {
+      model.saveModel(file.getPath());
+      final NGramModel loaded = NGramModel.loadModel(file.getPath());
+      for (int k = 0; k < texts.length; ++k) {
+        assertEquals(expected[k], loaded.entropy(texts[k]));
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testOutsideAlphabet() throws IOException {
+    final NGramModel model = new NGramModel(4);
+    model.add(new ByteArrayInputStream("the quick brown fox jumped over the lazy dog".getBytes(StandardCharsets.US_ASCII)));
+    final double e = model.entropy("the, dog");
+    assertTrue(e > model.entropy("the dog"));
+    assertFalse(Double.isInfinite(e));
+    model.compact();
+    assertEquals(e, model.entropy("the, dog"), 1e-9);
+  }
+
+  public void testPrune() throws IOException {
+    final String text = "the quick brown fox jumped over the lazy dog and the dog jumped over the quick brown fox again and again";
+    final NGramModel model = new NGramModel(5);
+    model.add(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+    final long nodes = model.nodes();
+    final double e = model.entropy(text);
+    // Nothing is removed when already within budget and without a threshold
+    model.prune(Double.NEGATIVE_INFINITY, nodes, Long.MAX_VALUE);
+    assertEquals(nodes, model.nodes());
+    assertEquals(e, model.entropy(text), 1e-9);
+    assertEquals(10, model.prune(Double.NEGATIVE_INFINITY, nodes - 10, Long.MAX_VALUE));
+    assertEquals(nodes - 10, model.nodes());
+    final long bytes = model.bytes();
+    model.prune(Double.NEGATIVE_INFINITY, Long.MAX_VALUE, bytes / 2);
+    assertTrue(model.bytes() <= bytes / 2);
+    final double pruned = model.entropy(text);
+    final Entropy.Cursor cursor = model.cursor();
+    cursor.append(text);
+    assertEquals(pruned, cursor.entropy(), 1e-9);
+    // Everything but the root
+    model.prune(Double.POSITIVE_INFINITY, Long.MAX_VALUE, Long.MAX_VALUE);
+    assertEquals(1, model.nodes());
+    assertTrue(model.entropy(text) > pruned);
+    assertFalse(Double.isInfinite(model.entropy(text)));
+  }
+
+  public void testSaveLoad() throws Exception {
+    // Enough text for the tree to span several compressed blocks
+    final Random random = new Random(42);
+    final StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < 20000; ++k) {
+      sb.append(random.nextInt(5) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+    }
+    final String text = sb.toString();
+    final NGramModel model = new NGramModel(5);
+    model.add(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+    assertTrue(model.bytes() > 4L * Long.BYTES * CompressedBlocks.BLOCK_ENTRIES);
+    final String[] texts = {"the lazy dog", text.substring(100, 200), "xyzzy 42"};
+    final double[] expected = new double[texts.length];
+    for (int k = 0; k < texts.length; ++k) {
+      expected[k] = model.entropy(texts[k]);
+    }
+    final File file = File.createTempFile("ngram", ".model");
+    try {
+      for (int pass = 0; pass < 2; ++pass) {
+        model.saveModel(file.getPath());
+        final byte[] magic = new byte[NGramModel.MAGIC.length];
+        try (final InputStream in = new FileInputStream(file)) {
+          assertEquals(magic.length, in.read(magic));
+        }
+        assertTrue(Arrays.equals(NGramModel.MAGIC, magic));
+        final NGramModel loaded = NGramModel.loadModel(file.getPath());
+        assertEquals(model.bytes(), loaded.bytes());
+        for (int k = 0; k < texts.length; ++k) {
+          assertEquals(expected[k], loaded.entropy(texts[k]));
+        }
+        final Entropy registered = ModelRegistry.get(file.getPath());
+        assertTrue(registered instanceof NGramModel);
+        assertEquals(expected[0], registered.entropy(texts[0]));
+        ModelRegistry.clear();
+        // Then the same for the compact form
+        model.compact();
+      }
+      // Models serialized by earlier versions
+      try (final ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+        oos.writeObject(model);
+      }
+      assertEquals(expected[1], NGramModel.loadModel(file.getPath()).entropy(texts[1]));
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testOffHeapStore() throws IOException {
+    // Suffixes are found from the root rather than by suffix pointers
+    final String training = "the quick brown fox jumped over the lazy dog and then the dog jumped over the quick brown fox 42 times";
+    final NGramModel reference = new NGramModel(6);
+    final NGramModel model = new NGramModel(6, new OffHeapLongDynamicLongArray());
+    reference.add(new ByteArrayInputStream(training.getBytes(StandardCharsets.US_ASCII)));
+    model.add(new ByteArrayInputStream(training.getBytes(StandardCharsets.US_ASCII)));
+    for (final String text : new String[] {"the lazy fox", "then the quick dog jumped", "zzq  x!y 7 brown", training}) {
+      assertEquals(reference.entropy(text), model.entropy(text));
+      final Entropy.Cursor cursor = model.cursor();
+      for (int k = 0; k < text.length(); ++k) {
+        cursor.append(text.charAt(k));
+      }
+      assertEquals(reference.entropy(text), cursor.entropy(), 1E-9);
+      final long[] hits = new long[model.profileLength()];
+      final long[] escapes = new long[model.profileLength()];
+      final long[] referenceHits = new long[model.profileLength()];
+      final long[] referenceEscapes = new long[model.profileLength()];
+      model.profile(text, hits, escapes);
+      reference.profile(text, referenceHits, referenceEscapes);
+      assertTrue(Arrays.equals(referenceHits, hits));
+      assertTrue(Arrays.equals(referenceEscapes, escapes));
+    }
+  }
+
+  public void testMappedStore() throws IOException {
+    final File store = File.createTempFile("ngram", ".tree");
+    final File file = File.createTempFile("ngram", ".model");
+    try {
+      assertTrue(store.delete());
+      final NGramModel reference = new NGramModel(4);
+      final NGramModel model = new NGramModel(4, new OffHeapLongDynamicLongArray(store));
+      final byte[] text = "the quick brown fox jumped over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+      reference.add(new ByteArrayInputStream(text));
+      model.add(new ByteArrayInputStream(text));
+      assertEquals(reference.entropy("the lazy fox"), model.entropy("the lazy fox"));
+      model.saveModel(file.getPath());
+      assertTrue(file.length() < store.length());
+      final NGramModel loaded = NGramModel.loadModel(file.getPath());
+      assertEquals(reference.entropy("the lazy fox"), loaded.entropy("the lazy fox"));
+      try {
+        new NGramModel(4, new OffHeapLongDynamicLongArray(store));
+        fail();
+      } catch (final IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      assertTrue(file.delete());
+      assertTrue(store.delete());
+    }
+  }
 }
@@ -0,0 +1,48 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import irvine.StandardIoTestCase;
+import irvine.TestUtils;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class NGramPrunerTest extends StandardIoTestCase {
+
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog and the dog jumped over the quick brown fox";
+
+  public void test() throws IOException {
+    final NGramModel model = new NGramModel(5);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    final File in = File.createTempFile("ngram", ".model");
+    final File out = File.createTempFile("pruned", ".model");
+    final File validation = File.createTempFile("validation", ".txt");
+    try {
+      model.saveModel(in.getPath());
+      try (final OutputStream os = new FileOutputStream(validation)) {
+        os.write("the lazy fox jumped over the quick dog".getBytes(StandardCharsets.US_ASCII));
+      }
+      final double before = NGramPruner.bitsPerCharacter(model, validation.getPath());
+      assertTrue(before > 0);
+      NGramPruner.main(new String[] {"-i", in.getPath(), "-o", out.getPath(), "--max-nodes", "20", "-v", validation.getPath()});
+      final NGramModel pruned = NGramModel.loadModel(out.getPath());
+      assertEquals(20, pruned.nodes());
+      TestUtils.containsAll(getOut(),
+        "Before: " + model.nodes() + " nodes",
+        "After: 20 nodes",
+        String.format("%.4f bits per character before", before),
+        String.format("%.4f after", NGramPruner.bitsPerCharacter(pruned, validation.getPath())));
+    } finally {
+      assertTrue(in.delete());
+      assertTrue(out.delete());
+      assertTrue(validation.delete());
+    }
+  }
+}
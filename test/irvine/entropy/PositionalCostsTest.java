@@ -0,0 +1,84 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class PositionalCostsTest extends TestCase {
+
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ";
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog and then the dog jumped over the quick brown fox";
+
+  private static void check(final Entropy model) {
+    final Random random = new Random(1);
+    final char[] text = new char[200];
+    for (int k = 0; k < text.length; ++k) {
+      text[k] = TRAINING.charAt(random.nextInt(TRAINING.length()));
+    }
+    final double[] c = new double[text.length];
+    model.costs(text, 0, text.length, c);
+    double sum = 0;
+    for (final double v : c) {
+      sum += v;
+    }
+    assertEquals(model.entropy(text, 0, text.length), sum, 1E-9);
+    final PositionalCosts costs = new PositionalCosts(model, text);
+    assertSame(text, costs.getText());
+    assertEquals(sum, costs.entropy(), 1E-9);
+    assertEquals(c[7], costs.cost(7), 0);
+    final int[] changed = new int[4];
+    for (int move = 0; move < 500; ++move) {
+      final int n = 1 + random.nextInt(changed.length);
+      final char[] old = new char[n];
+      for (int k = 0; k < n; ++k) {
+        // Changes at the ends and close together are the interesting cases
+        changed[k] = random.nextInt(4) == 0 ? text.length - 1 - random.nextInt(3) : random.nextInt(text.length);
+        old[k] = text[changed[k]];
+        text[changed[k]] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+      }
+      final double e = costs.rescore(changed, n);
+      assertEquals(model.entropy(text, 0, text.length), e, 1E-9);
+      if (random.nextBoolean()) {
+        costs.commit();
+        assertEquals(e, costs.entropy(), 0);
+      } else {
+        for (int k = n - 1; k >= 0; --k) {
+          text[changed[k]] = old[k];
+        }
+      }
+      assertEquals(model.entropy(text, 0, text.length), costs.entropy(), 1E-9);
+    }
+    costs.recompute();
+    assertEquals(model.entropy(text, 0, text.length), costs.entropy(), 1E-9);
+  }
+
+  public void testFourGram() throws IOException {
+    final FourGramAlphabetModel model = new FourGramAlphabetModel(ALPHABET);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(4, model.getOrder());
+    check(model);
+    check(model.compile());
+    check(new CachingEntropy(model, 64));
+  }
+
+  public void testHashed() throws IOException {
+    final HashedContextModel model = new HashedContextModel(ALPHABET, 6, 1 << 16);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(6, model.getOrder());
+    check(model);
+  }
+
+  public void testUnbounded() throws IOException {
+    final NGramModel model = new NGramModel(4);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(0, model.getOrder());
+    check(model);
+  }
+}
@@ -0,0 +1,129 @@
+package irvine.entropy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class SparseContextModelTest extends TestCase {
+
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ";
+  private static final String TRAINING = "the quick brown fox jumped over the lazy dog";
+
+  private static SparseContextModel model(final String alphabet, final int order, final String training) throws Exception {
+    final SparseContextModel m = new SparseContextModel(alphabet, order);
+    m.add(new StringReader(training));
+    return m;
+  }
+
+  public void testSameAsHashed() throws Exception {
+    for (int order = 1; order <= 8; ++order) {
+      final SparseContextModel s = model(ALPHABET, order, TRAINING);
+      final HashedContextModel h = new HashedContextModel(ALPHABET, order, 1 << 20);
+      h.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+      assertEquals(order, s.getOrder());
+      for (final String text : new String[] {"", "d", "dog", "a lazy brown dog jumped", "zzz qqq", "xy1z the", TRAINING}) {
+        assertEquals(h.entropy(text), s.entropy(text), 1E-9);
+      }
+    }
+  }
+
+  private static String large() {
+    // Latin-1 supplement and Latin extended-A, beyond the dense models
+    final StringBuilder sb = new StringBuilder(" ");
+    for (char c = 0xC0; c < 0x180; ++c) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  public void testLargeAlphabet() throws Exception {
+    final String alphabet = large();
+    assertEquals(193, alphabet.length());
+    final String training = "\u00e9t\u00e9 \u00e0 \u0159\u00ed\u010d\u00e1\u0148 \u00e9t\u00e9 \u00e0 \u0142\u00f3d\u017a \u00e9t\u00e9";
+    final SparseContextModel m = model(alphabet, 5, training);
+    assertTrue(m.contexts() > 0);
+    final double seen = m.entropy("\u00e9t\u00e9 \u00e0");
+    final double unseen = m.entropy("\u0101\u0103\u0105\u0107 \u0109");
+    assertTrue(seen > 0 && seen < unseen);
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy("\u0101", 1));
+    final SparseContextModel playfair = model("ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.!*@-_$#,/+?;%=&'\\)[]:<(>\"{}", 6, "ATTACK AT DAWN. {REPEAT} ATTACK AT DAWN!");
+    assertTrue(playfair.entropy("ATTACK{") < playfair.entropy("{KCATTA"));
+  }
+
+  public void testOrderLimit() throws Exception {
+    final StringBuilder sb = new StringBuilder();
+    for (char c = 1; c < 0x1000; ++c) {
+      sb.append(c);
+    }
+    // 12 bits per symbol, so at most 5 symbols of context fit in a long
+    assertEquals(6, new SparseContextModel(sb.toString(), 6).getOrder());
+    try {
+      new SparseContextModel(sb.toString(), 7);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      assertEquals("Order 7 too large for alphabet of 4095 symbols", e.getMessage());
+    }
+    // 9 bits per symbol, so 7 symbols of context use the sign bit as sentinel
+    final SparseContextModel bytes = new SparseContextModel(sb.substring(0, 256), 8);
+    bytes.add(new StringReader(sb.substring(0, 256) + sb.substring(0, 256)));
+    assertTrue(bytes.entropy(sb.substring(0, 20)) < bytes.entropy(new StringBuilder(sb.substring(0, 20)).reverse()));
+    try {
+      SparseContextModel.main(new String[] {"-m", "x.model", "-b", "-a", sb.toString(), "-O", "7"});
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // Rejected by the flag validator rather than the constructor
+      assertEquals("Exit with: 1", e.getMessage());
+    }
+    try {
+      new SparseContextModel("abca", 3);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testCursor() throws Exception {
+    final SparseContextModel m = model(ALPHABET, 6, TRAINING);
+    final String text = "a lazy brown dog? jumped";
+    final Entropy.Cursor cursor = m.cursor();
+    for (int k = 0; k < text.length(); ++k) {
+      final Entropy.Cursor copy = cursor.copy();
+      final double delta = cursor.append(text.charAt(k));
+      assertEquals(m.entropy(text.substring(0, k + 1)), cursor.entropy(), 1E-9);
+      assertEquals(cursor.entropy(), copy.entropy() + delta, 1E-9);
+    }
+    final char[] buf = ("xx" + text + "yyy").toCharArray();
+    final double e = m.entropy(text);
+    assertEquals(e, m.entropy(buf, 2, text.length()), 1E-9);
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy(text, e - 1));
+    assertEquals(Double.POSITIVE_INFINITY, m.entropy(buf, 2, text.length(), e - 1));
+  }
+
+  public void testSaveLoad() throws Exception {
+    final SparseContextModel m = model(large(), 4, "\u00e9t\u00e9 \u00e0 \u0159\u00ed\u010d\u00e1\u0148");
+    m.setUpcase(true);
+    m.setBuildCommand("test");
+    final String text = "\u00c9T\u00c9 \u00e0";
+    final File file = File.createTempFile("sparse", ".model");
+    try {
+      m.saveModel(file.getPath());
+      final SparseContextModel loaded = SparseContextModel.loadModel(file.getPath());
+      assertEquals(m.entropy(text), loaded.entropy(text), 0);
+      assertTrue(loaded.isUpcase());
+      assertEquals("test", loaded.getBuildCommand());
+      final Entropy registered = ModelRegistry.get(file.getPath());
+      assertTrue(registered instanceof SparseContextModel);
+      assertEquals(m.entropy(text), registered.entropy(text), 0);
+    } finally {
+      ModelRegistry.clear();
+      assertTrue(file.delete());
+    }
+  }
+}
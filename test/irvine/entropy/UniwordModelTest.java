@@ -1,10 +1,15 @@
 package irvine.entropy;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import irvine.StandardIoTestCase;
 import irvine.TestUtils;
+import irvine.util.IrvineHashFunction;
+import irvine.util.Sort;
 
 /**
  * Tests the corresponding class.
@@ -61,5 +66,45 @@ public class UniwordModelTest extends StandardIoTestCase {
       assertTrue(t.delete());
     }
   }
-}
 
+  public void testFormats() throws Exception {
+    final File t = TestUtils.stringToFile("5 dog" + LS + "3 the" + LS + "2 lazy" + LS + "1 42" + LS, File.createTempFile("uniword", "model"));
+    final File legacy = File.createTempFile("uniword", ".legacy");
+    final String mx = t.getPath() + ".model";
+    try {
+      final UniwordModel m = new UniwordModel(t);
+      UniwordModel.main(new String[]{"--build", mx, t.getPath()});
+      // Original format of sorted hashes and counts
+      final IrvineHashFunction hf = new IrvineHashFunction();
+      final long[] hashes = {hf.hash("dog"), hf.hash("the"), hf.hash("lazy"), hf.hash("42")};
+      final long[] counts = {5, 3, 2, 1};
+      Sort.sort(hashes, counts);
+      final double scale = Math.log(5) / 255.0;
+      try (final DataOutputStream dos = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(legacy)))) {
+        dos.writeInt(hashes.length);
+        for (final long h : hashes) {
+          dos.writeLong(h);
+        }
+        for (final long c : counts) {
+          dos.writeByte((int) (Math.log(c) / scale + 0.5));
+        }
+        dos.writeDouble(Math.log(12));
+        dos.writeDouble(scale);
+      }
+      final UniwordModel mapped = new UniwordModel(mx);
+      final UniwordModel old = new UniwordModel(legacy.getPath());
+      for (final String text : new String[] {"", "the lazy dog", "The, lazy... DOG!", "the=dog/(lazy)", "42 43 fox", "d#g d$g", "\\X{dog", "dog \\PSQ"}) {
+        final double e = m.entropy(text);
+        assertEquals(e, mapped.entropy(text));
+        assertEquals(e, old.entropy(text), 1E-12);
+        assertEquals(e, m.entropy(("x" + text + "y").toCharArray(), 1, text.length()));
+      }
+      assertEquals(0.0, m.entropy("\\X{dog"));
+      assertEquals(Double.POSITIVE_INFINITY, m.entropy("fox fox fox", 1));
+    } finally {
+      assertTrue(t.delete());
+      assertTrue(legacy.delete());
+      assertTrue(new File(mx).delete());
+    }
+  }
+}
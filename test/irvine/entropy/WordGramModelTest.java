@@ -1,6 +1,7 @@
 package irvine.entropy;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
@@ -18,4 +19,40 @@ public class WordGramModelTest extends TestCase {
     assertEquals(1.2527, model.entropy("hello"), 1e-3);
     assertEquals(3.19867, model.entropy("this hello"), 1e-3);
   }
+
+  private static final String TRAINING = "The quick brown fox jumped over the lazy dog.  The dog, being lazy, did not move!\nthe fox ran away from the dog and the fox was happy";
+  private static final String[] TEXTS = {"", "the lazy dog", "the fox ran", "xyzzy the fox", "the dog, being lazy", "a b c d", "supercalifragilisticexpialidocious fox", "the... dog"};
+
+  public void testHigherOrder() throws IOException {
+    final WordGramModel model = new WordGramModel(3);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    final double[] expected = {0, 4.214593690373678, 3.9269116179218972, 16.297482649199683, 4.620058798481843, 53.876733279783586, 15.737866861264262, 15.737866861264262};
+    for (int k = 0; k < TEXTS.length; ++k) {
+      assertEquals(expected[k], model.entropy(TEXTS[k]), 1e-12);
+      assertEquals(expected[k], model.entropy(TEXTS[k].toCharArray(), 0, TEXTS[k].length()), 1e-12);
+    }
+    assertEquals(Double.POSITIVE_INFINITY, model.entropy("a b c d", 50));
+  }
+
+  public void testSaveLoad() throws IOException {
+    final WordGramModel model = new WordGramModel(2);
+    model.add(new ByteArrayInputStream(TRAINING.getBytes(StandardCharsets.US_ASCII)));
+    final File file = File.createTempFile("word", ".model");
+    try {
+      model.saveModel(file.getPath());
+      final WordGramModel loaded = WordGramModel.loadModel(file.getPath());
+      assertEquals(model.toString(), loaded.toString());
+      for (final String text : TEXTS) {
+        assertEquals(model.entropy(text), loaded.entropy(text));
+      }
+      try {
+        loaded.add(new ByteArrayInputStream("more".getBytes(StandardCharsets.US_ASCII)));
+        fail();
+      } catch (final UnsupportedOperationException e) {
+        // expected
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
 }
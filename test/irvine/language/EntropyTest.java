@@ -0,0 +1,72 @@
+package irvine.language;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Random;
+
+import irvine.entropy.ModelRegistry;
+import irvine.util.LimitedLengthPriorityQueue;
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class EntropyTest extends TestCase {
+
+  private static String input(final int lines) {
+    final Random random = new Random(42);
+    final String[] words = {"THE", "CAT", "SAT", "ON", "MAT", "DOG", "XQZ", "JAZZ", "A"};
+    final StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < lines; ++k) {
+      // Few words, so there are many repeated lines and tied scores
+      final int n = 1 + random.nextInt(3);
+      for (int j = 0; j < n; ++j) {
+        if (j > 0) {
+          sb.append(' ');
+        }
+        sb.append(words[random.nextInt(words.length)]);
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static String run(final String input, final int threads, final boolean best, final int results) throws IOException {
+    final irvine.entropy.Entropy model = ModelRegistry.getDefault();
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final LimitedLengthPriorityQueue<String> queue = results > 0 ? new LimitedLengthPriorityQueue<>(results, false) : null;
+    try (final PrintStream out = new PrintStream(bos); final BufferedReader reader = new BufferedReader(new StringReader(input))) {
+      if (threads > 1) {
+        Entropy.parallel(model, reader, out, best, queue, threads);
+      } else {
+        Entropy.sequential(model, reader, out, best, queue);
+      }
+      if (queue != null) {
+        for (final LimitedLengthPriorityQueue.Node<String> r : queue) {
+          out.print(r.getScore() + " " + r.getValue() + "\n");
+        }
+      }
+    }
+    return bos.toString();
+  }
+
+  public void testParallelSameAsSequential() throws IOException {
+    // Sizes either side of a whole number of batches
+    for (final int lines : new int[] {0, 1, 4096, 20001}) {
+      final String input = input(lines);
+      final String plain = run(input, 1, false, 0);
+      assertEquals(lines, plain.isEmpty() ? 0 : plain.split("\n").length);
+      final String best = run(input, 1, true, 0);
+      final String top = run(input, 1, false, 5);
+      for (final int threads : new int[] {2, 3}) {
+        assertEquals(plain, run(input, threads, false, 0));
+        assertEquals(best, run(input, threads, true, 0));
+        assertEquals(top, run(input, threads, false, 5));
+      }
+    }
+  }
+}
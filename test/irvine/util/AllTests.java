@@ -24,6 +24,7 @@ public class AllTests extends TestSuite {
     suite.addTestSuite(LongDynamicArrayTest.class);
     suite.addTestSuite(LongDynamicLongArrayTest.class);
     suite.addTestSuite(LongUtilsTest.class);
+    suite.addTestSuite(OffHeapLongDynamicLongArrayTest.class);
     suite.addTestSuite(PermutationTest.class);
     suite.addTestSuite(ShuffleTest.class);
     suite.addTestSuite(SortTest.class);
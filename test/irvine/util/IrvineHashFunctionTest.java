@@ -77,4 +77,13 @@ public class IrvineHashFunctionTest extends AbstractHashFunctionTest {
       assertEquals(h0, s);
     }
   }
+
+  public void testUpdate() {
+    final String text = "the quick brown fox";
+    long hash = 0;
+    for (int k = 0; k < text.length(); ++k) {
+      hash = IrvineHashFunction.update(hash, k, text.charAt(k));
+    }
+    assertEquals(getHashFunction().hash(text), hash);
+  }
 }
@@ -0,0 +1,131 @@
+package irvine.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import irvine.TestUtils;
+import junit.framework.TestCase;
+
+/**
+ * Test the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class OffHeapLongDynamicLongArrayTest extends TestCase {
+
+  private void check(final LongLongArray la) {
+    assertEquals(0, la.length());
+    try {
+      la.get(-1);
+      fail("Got did not exist");
+    } catch (final IndexOutOfBoundsException e) {
+      // ok
+    }
+    try {
+      la.truncate(-1);
+      fail("Negative truncate");
+    } catch (final IndexOutOfBoundsException e) {
+      // ok
+    }
+    la.truncate(5); // should do nothing
+    final Random r = new Random(42);
+    int max = -1;
+    for (int i = 0; i < 5000; ++i) {
+      final int j = r.nextInt(3000000);
+      final long v = r.nextLong() | 1;
+      la.set(j, v);
+      assertEquals(v, la.get(j));
+      max = Math.max(max, j);
+      assertEquals(max + 1, la.length());
+    }
+    final long ll = 1L << 20;
+    la.truncate(ll + 1);
+    assertEquals(ll + 1, la.length());
+    la.set(3 * ll, 44);
+    for (long i = ll + 1; i < ll + 1000; ++i) {
+      assertEquals(0, la.get(i));
+    }
+    assertEquals(0, la.get(2 * ll + 5));
+    assertEquals(44, la.get(3 * ll));
+    la.truncate(0);
+    assertEquals(0, la.length());
+    assertEquals(0, la.get(3 * ll));
+  }
+
+  public void testDirect() {
+    check(new OffHeapLongDynamicLongArray());
+  }
+
+  public void testMapped() throws IOException {
+    final File file = File.createTempFile("array", ".dat");
+    try {
+      assertTrue(file.delete());
+      check(new OffHeapLongDynamicLongArray(file));
+      final OffHeapLongDynamicLongArray a = new OffHeapLongDynamicLongArray(file);
+      assertEquals(0, a.length());
+      a.set(5, 42);
+      a.set((1 << 20) + 7, 43);
+      a.force();
+      final OffHeapLongDynamicLongArray b = new OffHeapLongDynamicLongArray(file);
+      assertEquals((1 << 20) + 8, b.length());
+      assertEquals(42, b.get(5));
+      assertEquals(43, b.get((1 << 20) + 7));
+      assertEquals(0, b.get(6));
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testNotArrayFile() throws IOException {
+    final File file = File.createTempFile("array", ".dat");
+    try {
+      TestUtils.stringToFile("not an array", file);
+      new OffHeapLongDynamicLongArray(file);
+      fail();
+    } catch (final IOException e) {
+      // expected
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  private static LongLongArray roundTrip(final LongLongArray a) throws IOException, ClassNotFoundException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (final ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(a);
+    }
+    try (final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      return (LongLongArray) ois.readObject();
+    }
+  }
+
+  public void testSerialization() throws Exception {
+    final OffHeapLongDynamicLongArray a = new OffHeapLongDynamicLongArray();
+    a.set(3, 7);
+    a.set(100, -1);
+    final LongLongArray b = roundTrip(a);
+    assertEquals(101, b.length());
+    assertEquals(7, b.get(3));
+    assertEquals(-1, b.get(100));
+    final File file = File.createTempFile("array", ".dat");
+    try {
+      assertTrue(file.delete());
+      final OffHeapLongDynamicLongArray m = new OffHeapLongDynamicLongArray(file);
+      m.set(9, 9);
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      try (final ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+        oos.writeObject(m);
+      }
+      assertTrue(bos.size() < 1000); // only the file name is recorded
+      final LongLongArray n = roundTrip(m);
+      assertEquals(10, n.length());
+      assertEquals(9, n.get(9));
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+}
@@ -19,4 +19,13 @@ public class StringUtilsTest extends TestCase {
   public void testSyndrome() {
     assertEquals("[0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 1, 0, 0, 2, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0]", Arrays.toString(StringUtils.syndrome("Mississippi")));
   }
+
+  public void testCleanChar() {
+    assertEquals('q', StringUtils.cleanChar('Q'));
+    assertEquals('7', StringUtils.cleanChar('7'));
+    assertEquals('\uFFFF', StringUtils.cleanChar(','));
+    assertEquals(1, StringUtils.cleanChar('/'));
+    assertEquals(0, StringUtils.cleanChar('#'));
+    assertEquals("quick", StringUtils.clean("Qu,ick"));
+  }
 }